@@ -2,8 +2,17 @@ package com.jivesoftware.os.filer.chunk.store;
 
 import com.jivesoftware.os.filer.io.AutoGrowingByteBufferBackedFiler;
 import com.jivesoftware.os.filer.io.ByteBufferFactory;
+import com.jivesoftware.os.filer.io.DuplicatableFiler;
 import com.jivesoftware.os.filer.io.FileBackedMemMappedByteBufferFactory;
+import com.jivesoftware.os.filer.io.FileChannelFiler;
+import com.jivesoftware.os.filer.io.FileChannelPageCache;
+import com.jivesoftware.os.filer.io.FilerMetrics;
+import com.jivesoftware.os.filer.io.InstrumentedByteBufferFactory;
+import com.jivesoftware.os.filer.io.InstrumentedFiler;
+import com.jivesoftware.os.filer.io.Preallocation;
+import com.jivesoftware.os.filer.io.WindowedByteBufferBackedFiler;
 import com.jivesoftware.os.filer.io.chunk.ChunkStore;
+import com.jivesoftware.os.filer.io.chunk.FlushPolicy;
 import com.jivesoftware.os.filer.io.chunk.StripedFiler;
 import java.io.File;
 import java.io.IOException;
@@ -15,6 +24,48 @@ public class ChunkStoreInitializer {
 
     private static final long referenceNumber = 1;
 
+    private final FlushPolicy flushPolicy;
+    private final boolean instrumented;
+    private final int numberOfStripes;
+    private final long arenaSize;
+
+    public ChunkStoreInitializer() {
+        this(FlushPolicy.none());
+    }
+
+    /**
+     * @param flushPolicy applied to every store this opens or creates, use ChunkStore.commit() when it is FlushPolicy.onCommit()
+     */
+    public ChunkStoreInitializer(FlushPolicy flushPolicy) {
+        this(flushPolicy, false);
+    }
+
+    /**
+     * @param instrumented when true the filers of the stores opened or created from files record into FilerMetrics.get(chunkName) and the stores keep
+     * their own ChunkMetrics tagged with chunkName
+     */
+    public ChunkStoreInitializer(FlushPolicy flushPolicy, boolean instrumented) {
+        this(flushPolicy, instrumented, 128);
+    }
+
+    /**
+     * @param numberOfStripes how many independently locked stripes each store is split into, more stripes means less contention
+     */
+    public ChunkStoreInitializer(FlushPolicy flushPolicy, boolean instrumented, int numberOfStripes) {
+        this(flushPolicy, instrumented, numberOfStripes, 0);
+    }
+
+    /**
+     * @param arenaSize given to every store this opens or creates, see ChunkStore.setArenaSize(), 0 leaves arenas off. close() stores with arenas
+     * once they are no longer written, otherwise the unused space of their arenas stays reserved
+     */
+    public ChunkStoreInitializer(FlushPolicy flushPolicy, boolean instrumented, int numberOfStripes, long arenaSize) {
+        this.flushPolicy = flushPolicy;
+        this.instrumented = instrumented;
+        this.numberOfStripes = numberOfStripes;
+        this.arenaSize = arenaSize;
+    }
+
     public ChunkStore openOrCreate(File[] dirs,
         int directoryOffset,
         String chunkName,
@@ -22,20 +73,121 @@ public class ChunkStoreInitializer {
         ByteBufferFactory cacheByteBufferFactory,
         int initialCacheSize,
         int maxNewCacheSize) throws Exception {
+        return openOrCreate(dirs, directoryOffset, chunkName, initialSize, Preallocation.NONE, cacheByteBufferFactory, initialCacheSize, maxNewCacheSize);
+    }
 
-        FileBackedMemMappedByteBufferFactory factory = new FileBackedMemMappedByteBufferFactory(chunkName, directoryOffset, dirs);
+    /**
+     * @param preallocation how far segment files are extended beyond what is asked for, see Preallocation.fullSegment(MAX_BUFFER_SEGMENT_SIZE, ...)
+     */
+    public ChunkStore openOrCreate(File[] dirs,
+        int directoryOffset,
+        String chunkName,
+        long initialSize,
+        Preallocation preallocation,
+        ByteBufferFactory cacheByteBufferFactory,
+        int initialCacheSize,
+        int maxNewCacheSize) throws Exception {
+
+        ByteBufferFactory factory = new FileBackedMemMappedByteBufferFactory(chunkName, directoryOffset, preallocation, dirs);
+        if (instrumented) {
+            factory = new InstrumentedByteBufferFactory(factory, FilerMetrics.get(chunkName));
+        }
         AutoGrowingByteBufferBackedFiler filer = new AutoGrowingByteBufferBackedFiler(factory, initialSize,
             AutoGrowingByteBufferBackedFiler.MAX_BUFFER_SEGMENT_SIZE);
         if (filer.exists()) {
-            return open(filer, cacheByteBufferFactory, initialCacheSize, maxNewCacheSize);
+            return open(instrument(chunkName, filer), metricsName(chunkName));
         } else {
-            return create(filer, cacheByteBufferFactory, initialCacheSize, maxNewCacheSize);
+            return create(instrument(chunkName, filer), metricsName(chunkName));
+        }
+    }
+
+    /**
+     * Opens or creates a ChunkStore which only keeps maxMappedBytes worth of its segments mapped at once, unmapping idle ones as others are needed.
+     *
+     * @param segmentSize must stay the same for the life of the store, openOrCreate() uses AutoGrowingByteBufferBackedFiler.MAX_BUFFER_SEGMENT_SIZE
+     */
+    public ChunkStore openOrCreateWindowed(File[] dirs,
+        int directoryOffset,
+        String chunkName,
+        long initialSize,
+        long segmentSize,
+        long maxMappedBytes) throws Exception {
+        return openOrCreateWindowed(dirs, directoryOffset, chunkName, initialSize, segmentSize, maxMappedBytes, Preallocation.NONE);
+    }
+
+    /**
+     * @param preallocation how far segment files are extended beyond what is asked for, see Preallocation.fullSegment(segmentSize, ...)
+     */
+    public ChunkStore openOrCreateWindowed(File[] dirs,
+        int directoryOffset,
+        String chunkName,
+        long initialSize,
+        long segmentSize,
+        long maxMappedBytes,
+        Preallocation preallocation) throws Exception {
+
+        FileBackedMemMappedByteBufferFactory files = new FileBackedMemMappedByteBufferFactory(chunkName, directoryOffset, preallocation, dirs);
+        ByteBufferFactory factory = files;
+        if (instrumented) {
+            factory = new InstrumentedByteBufferFactory(files, FilerMetrics.get(chunkName));
+        }
+        WindowedByteBufferBackedFiler filer = new WindowedByteBufferBackedFiler(files, factory, initialSize, segmentSize, maxMappedBytes);
+        if (filer.exists()) {
+            return open(instrument(chunkName, filer), metricsName(chunkName));
+        } else {
+            return create(instrument(chunkName, filer), metricsName(chunkName));
+        }
+    }
+
+    /**
+     * Opens or creates a ChunkStore which reads and writes through a FileChannel instead of memory mapping the file, so the store is not bounded by address
+     * space.
+     *
+     * @param pageCache nullable in which case every read goes to the channel
+     */
+    public ChunkStore openOrCreateFileChannel(File[] dirs,
+        int directoryOffset,
+        String chunkName,
+        FileChannelPageCache pageCache) throws Exception {
+
+        File file = fileChannelFile(dirs, directoryOffset, chunkName);
+        ensureDirectory(file.getParentFile());
+        boolean exists = file.exists();
+        FileChannelFiler filer = new FileChannelFiler(file, pageCache);
+        if (exists) {
+            return open(instrument(chunkName, filer), metricsName(chunkName));
+        } else {
+            return create(instrument(chunkName, filer), metricsName(chunkName));
         }
     }
 
     public boolean checkExists(File[] dirs, int directoryOffset, String chunkName) throws IOException {
         FileBackedMemMappedByteBufferFactory factory = new FileBackedMemMappedByteBufferFactory(chunkName, directoryOffset, dirs);
-        return new AutoGrowingByteBufferBackedFiler(factory, 1024, AutoGrowingByteBufferBackedFiler.MAX_BUFFER_SEGMENT_SIZE).exists();
+        return new AutoGrowingByteBufferBackedFiler(factory, 1024, AutoGrowingByteBufferBackedFiler.MAX_BUFFER_SEGMENT_SIZE).exists()
+            || fileChannelFile(dirs, directoryOffset, chunkName).exists();
+    }
+
+    private String metricsName(String chunkName) {
+        return instrumented ? chunkName : null;
+    }
+
+    private DuplicatableFiler instrument(String chunkName, DuplicatableFiler filer) {
+        return instrumented ? new InstrumentedFiler(filer, FilerMetrics.get(chunkName)) : filer;
+    }
+
+    private File fileChannelFile(File[] dirs, int directoryOffset, String chunkName) {
+        File directory = dirs[Math.abs(chunkName.hashCode() + directoryOffset) % dirs.length];
+        return new File(directory, chunkName + "-channel");
+    }
+
+    private void ensureDirectory(File directory) {
+        if (!directory.exists()) {
+            if (!directory.mkdirs()) {
+                if (!directory.exists()) {
+                    throw new RuntimeException("Failed to create directory: " + directory);
+                }
+            }
+        }
     }
 
     public ChunkStore open(ByteBufferFactory filer,
@@ -43,16 +195,18 @@ public class ChunkStoreInitializer {
         ByteBufferFactory cacheByteBufferFactory,
         int initialCacheSize,
         int maxNewCacheSize) throws Exception {
-        return open(new AutoGrowingByteBufferBackedFiler(filer, segmentSize, segmentSize), cacheByteBufferFactory, initialCacheSize, maxNewCacheSize);
+        return open(new AutoGrowingByteBufferBackedFiler(filer, segmentSize, segmentSize), null);
     }
 
-    private ChunkStore open(AutoGrowingByteBufferBackedFiler filer,
-        ByteBufferFactory cacheByteBufferFactory,
-        int initialCacheSize,
-        int maxNewCacheSize) throws Exception {
-        StripedFiler stripedFiler = new StripedFiler(filer, new byte[] { 0 }, cacheByteBufferFactory, 128);
+    private ChunkStore open(DuplicatableFiler filer, String metricsName) throws Exception {
+        StripedFiler stripedFiler = new StripedFiler(filer, numberOfStripes);
         ChunkStore chunkStore = new ChunkStore(stripedFiler);
+        if (metricsName != null) {
+            chunkStore.setMetricsName(metricsName);
+        }
+        chunkStore.setFlushPolicy(flushPolicy);
         chunkStore.open();
+        chunkStore.setArenaSize(arenaSize);
         return chunkStore;
     }
 
@@ -61,17 +215,19 @@ public class ChunkStoreInitializer {
         ByteBufferFactory cacheByteBufferFactory,
         int initialCacheSize,
         int maxNewCacheSize) throws Exception {
-        return create(new AutoGrowingByteBufferBackedFiler(factory, segmentSize, segmentSize), cacheByteBufferFactory, initialCacheSize, maxNewCacheSize);
+        return create(new AutoGrowingByteBufferBackedFiler(factory, segmentSize, segmentSize), null);
     }
 
-    private ChunkStore create(AutoGrowingByteBufferBackedFiler filer,
-        ByteBufferFactory cacheByteBufferFactory,
-        int initialCacheSize,
-        int maxNewCacheSize) throws Exception {
-        StripedFiler stripedFiler = new StripedFiler(filer, new byte[] { 0 }, cacheByteBufferFactory, 128);
+    private ChunkStore create(DuplicatableFiler filer, String metricsName) throws Exception {
+        StripedFiler stripedFiler = new StripedFiler(filer, numberOfStripes);
         ChunkStore chunkStore = new ChunkStore(stripedFiler);
+        if (metricsName != null) {
+            chunkStore.setMetricsName(metricsName);
+        }
+        chunkStore.setFlushPolicy(flushPolicy);
         chunkStore.setup(referenceNumber);
         chunkStore.createAndOpen(stripedFiler);
+        chunkStore.setArenaSize(arenaSize);
         return chunkStore;
     }
 
@@ -61,7 +61,7 @@ public class KeyedFPIndexUtil {
                 }
             }
 
-            return chunkStore.execute(fp, opener, filerTransaction);
+            return chunkStore.readOnly(fp, opener, filerTransaction);
         } finally {
             semaphore.release();
         }
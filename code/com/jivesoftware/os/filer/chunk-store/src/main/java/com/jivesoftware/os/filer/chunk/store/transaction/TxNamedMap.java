@@ -89,7 +89,7 @@ public class TxNamedMap {
                 return mapTransaction.commit(null, null, null);
             }
         }
-        return chunkStore.execute(constantFP, KeyedFPIndexOpener.DEFAULT, new ChunkTransaction<PowerKeyedFPIndex, R>() {
+        return chunkStore.readOnly(constantFP, KeyedFPIndexOpener.DEFAULT, new ChunkTransaction<PowerKeyedFPIndex, R>() {
 
             @Override
             public R commit(PowerKeyedFPIndex monkey, ChunkFiler filer, Object lock) throws IOException {
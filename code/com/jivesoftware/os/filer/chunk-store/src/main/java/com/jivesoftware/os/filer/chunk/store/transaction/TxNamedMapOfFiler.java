@@ -253,7 +253,7 @@ public class TxNamedMapOfFiler<N extends FPIndex<byte[], N>, H, M> {
                 return filerTransaction.commit(null, null, null);
             }
         }
-        return chunkStore.execute(constantFP, KeyedFPIndexOpener.DEFAULT, new ChunkTransaction<PowerKeyedFPIndex, R>() {
+        return chunkStore.readOnly(constantFP, KeyedFPIndexOpener.DEFAULT, new ChunkTransaction<PowerKeyedFPIndex, R>() {
 
             @Override
             public R commit(PowerKeyedFPIndex monkey, ChunkFiler filer, Object lock) throws IOException {
@@ -9,29 +9,44 @@
 package com.jivesoftware.os.filer.chunk.store;
 
 import com.jivesoftware.os.filer.io.CreateFiler;
+import com.jivesoftware.os.filer.io.FileChannelPageCache;
+import com.jivesoftware.os.filer.io.FilerMetrics;
 import com.jivesoftware.os.filer.io.FilerIO;
 import com.jivesoftware.os.filer.io.HeapByteBufferFactory;
 import com.jivesoftware.os.filer.io.NoOpCreateFiler;
 import com.jivesoftware.os.filer.io.NoOpOpenFiler;
+import com.jivesoftware.os.filer.io.OpenFiler;
+import com.jivesoftware.os.filer.io.Preallocation;
 import com.jivesoftware.os.filer.io.StripingLocksProvider;
 import com.jivesoftware.os.filer.io.api.ChunkTransaction;
 import com.jivesoftware.os.filer.io.chunk.ChunkFiler;
+import com.jivesoftware.os.filer.io.chunk.ChunkHandle;
 import com.jivesoftware.os.filer.io.chunk.ChunkStore;
+import com.jivesoftware.os.filer.io.chunk.FlushPolicy;
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Random;
+import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.testng.annotations.Test;
 
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
 import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
 
 /**
  * @author jonathan.colt
@@ -129,10 +144,15 @@ public class ChunkStoreTest {
     }
 
     private void writeIntToChunk(ChunkStore chunkStore, long chunkFP, final int value) throws IOException {
+        writeIntToChunk(chunkStore, chunkFP, 0, value);
+    }
+
+    private void writeIntToChunk(ChunkStore chunkStore, long chunkFP, final long offset, final int value) throws IOException {
         chunkStore.execute(chunkFP, openFiler, new ChunkTransaction<Void, Void>() {
             @Override
             public Void commit(Void monkey, ChunkFiler filer, Object lock) throws IOException {
                 synchronized (lock) {
+                    filer.seek(offset);
                     FilerIO.writeInt(filer, value, "");
                     return null;
                 }
@@ -141,10 +161,15 @@ public class ChunkStoreTest {
     }
 
     private void assertIntInChunk(ChunkStore chunkStore, long chunk10, final int expected) throws IOException {
+        assertIntInChunk(chunkStore, chunk10, 0, expected);
+    }
+
+    private void assertIntInChunk(ChunkStore chunkStore, long chunk10, final long offset, final int expected) throws IOException {
         chunkStore.execute(chunk10, openFiler, new ChunkTransaction<Void, Void>() {
             @Override
             public Void commit(Void monkey, ChunkFiler filer, Object lock) throws IOException {
                 synchronized (lock) {
+                    filer.seek(offset);
                     int value = FilerIO.readInt(filer, "");
                     System.out.println("expected:" + value);
                     assertEquals(value, expected);
@@ -211,6 +236,464 @@ public class ChunkStoreTest {
         assertIntInChunk(chunkStore, chunk10, 10);
     }
 
+    @Test
+    public void testExistingFileChannelChunkStore() throws Exception {
+        File dir = Files.createTempDirectory("testExistingFileChannelChunkStore").toFile();
+        FileChannelPageCache pageCache = new FileChannelPageCache(4096, 64);
+        ChunkStore chunkStore = new ChunkStoreInitializer().openOrCreateFileChannel(new File[]{dir}, 0, "data", pageCache);
+
+        long chunk10 = chunkStore.newChunk(10L, createFiler);
+        writeIntToChunk(chunkStore, chunk10, 10);
+        long chunk5000 = chunkStore.newChunk(5_000L, createFiler);
+        writeIntToChunk(chunkStore, chunk5000, 5_000);
+
+        long expectedReferenceNumber = chunkStore.getReferenceNumber();
+
+        chunkStore = new ChunkStoreInitializer().openOrCreateFileChannel(new File[]{dir}, 0, "data", null);
+        assertEquals(chunkStore.getReferenceNumber(), expectedReferenceNumber);
+
+        assertIntInChunk(chunkStore, chunk10, 10);
+        assertIntInChunk(chunkStore, chunk5000, 5_000);
+    }
+
+    @Test
+    public void testWindowedChunkStore() throws Exception {
+        File dir = Files.createTempDirectory("testWindowedChunkStore").toFile();
+        ChunkStore chunkStore = new ChunkStoreInitializer().openOrCreateWindowed(new File[]{dir}, 0, "data", 1024, 4096, 3 * 4096);
+
+        long[] chunkFPs = new long[64];
+        for (int i = 0; i < chunkFPs.length; i++) {
+            chunkFPs[i] = chunkStore.newChunk(1000L, createFiler);
+            writeIntToChunk(chunkStore, chunkFPs[i], i);
+        }
+        for (int i = 0; i < chunkFPs.length; i++) {
+            assertIntInChunk(chunkStore, chunkFPs[i], i);
+        }
+
+        long expectedReferenceNumber = chunkStore.getReferenceNumber();
+        chunkStore = new ChunkStoreInitializer().openOrCreateWindowed(new File[]{dir}, 0, "data", 1024, 4096, 3 * 4096);
+        assertEquals(chunkStore.getReferenceNumber(), expectedReferenceNumber);
+        for (int i = chunkFPs.length - 1; i >= 0; i--) {
+            assertIntInChunk(chunkStore, chunkFPs[i], i);
+        }
+    }
+
+    @Test
+    public void testArenasReleasedOnClose() throws Exception {
+        File dir = Files.createTempDirectory("testArenasReleasedOnClose").toFile();
+        HeapByteBufferFactory byteBufferFactory = new HeapByteBufferFactory();
+        ChunkStore chunkStore = new ChunkStoreInitializer(FlushPolicy.none(), false, 128, 64 * 1024).openOrCreate(new File[]{dir}, 0, "data", 1024,
+            byteBufferFactory, 500, 5_000);
+        long chunkFP = chunkStore.newChunk(8L, createFiler);
+        chunkStore.close();
+
+        chunkStore = new ChunkStoreInitializer().openOrCreate(new File[]{dir}, 0, "data", 1024, byteBufferFactory, 500, 5_000);
+        long reusedFP = chunkStore.newChunk(8L, createFiler);
+        assertTrue(reusedFP > chunkFP && reusedFP < chunkFP + 64 * 1024, "close should have freed what the arena left over " + reusedFP);
+    }
+
+    @Test
+    public void testArenasOfDeadThreadsAreReleased() throws Exception {
+        File dir = Files.createTempDirectory("testArenasOfDeadThreadsAreReleased").toFile();
+        HeapByteBufferFactory byteBufferFactory = new HeapByteBufferFactory();
+        final ChunkStore chunkStore = new ChunkStoreInitializer().openOrCreate(new File[]{dir}, 0, "data", 1024, byteBufferFactory, 500, 5_000);
+        chunkStore.setArenaSize(64 * 1024);
+
+        final long[] chunkFP = new long[1];
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    chunkFP[0] = chunkStore.newChunk(8L, createFiler);
+                } catch (IOException x) {
+                    throw new RuntimeException(x);
+                }
+            }
+        };
+        writer.start();
+        writer.join();
+
+        chunkStore.newChunk(8L, createFiler);
+        long reusedFP = chunkStore.newChunk(8L, createFiler);
+        assertTrue(reusedFP > chunkFP[0] && reusedFP < chunkFP[0] + 64 * 1024, "the dead writers arena should have been freed " + reusedFP);
+    }
+
+    @Test
+    public void testFlushPolicies() throws Exception {
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+        try {
+            FlushPolicy[] flushPolicies = {FlushPolicy.none(), FlushPolicy.onCommit(), FlushPolicy.periodic(executor, 10)};
+            for (FlushPolicy flushPolicy : flushPolicies) {
+                File dir = Files.createTempDirectory("testFlushPolicies").toFile();
+                HeapByteBufferFactory byteBufferFactory = new HeapByteBufferFactory();
+                ChunkStore chunkStore = new ChunkStoreInitializer(flushPolicy).openOrCreate(new File[]{dir}, 0, "data", 1024, byteBufferFactory, 500, 5_000);
+
+                long chunk10 = chunkStore.newChunk(10L, createFiler);
+                writeIntToChunk(chunkStore, chunk10, 10);
+                chunkStore.commit();
+                Thread.sleep(50);
+
+                chunkStore = new ChunkStoreInitializer(flushPolicy).openOrCreate(new File[]{dir}, 0, "data", 1024, byteBufferFactory, 500, 5_000);
+                assertIntInChunk(chunkStore, chunk10, 10);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testConcurrentNewAndRemove() throws Exception {
+        File dir = Files.createTempDirectory("testConcurrentNewAndRemove").toFile();
+        HeapByteBufferFactory byteBufferFactory = new HeapByteBufferFactory();
+        final ChunkStore chunkStore = new ChunkStoreInitializer().openOrCreate(new File[]{dir}, 0, "data", 1024, byteBufferFactory, 500, 5_000);
+
+        final int numThreads = 8;
+        final int numIterations = 200;
+        final ConcurrentHashMap<Long, Integer> live = new ConcurrentHashMap<>();
+        ExecutorService executorService = Executors.newFixedThreadPool(numThreads);
+        try {
+            List<Future<?>> futures = new ArrayList<>(numThreads);
+            for (int n = 0; n < numThreads; n++) {
+                final int thread = n;
+                futures.add(executorService.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        Random random = new Random(thread);
+                        for (int i = 0; i < numIterations; i++) {
+                            int value = thread * numIterations + i;
+                            long chunkFP = chunkStore.newChunk(8L << random.nextInt(6), createFiler);
+                            writeIntToChunk(chunkStore, chunkFP, value);
+                            assertIntInChunk(chunkStore, chunkFP, value);
+                            if (random.nextBoolean()) {
+                                chunkStore.remove(chunkFP);
+                            } else {
+                                assertTrue(live.put(chunkFP, value) == null, "Handed out twice " + chunkFP);
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executorService.shutdownNow();
+        }
+
+        Set<Long> chunkFPs = new HashSet<>(live.keySet());
+        assertEquals(chunkFPs.size(), live.size());
+        for (Long chunkFP : chunkFPs) {
+            assertIntInChunk(chunkStore, chunkFP, live.get(chunkFP));
+        }
+        ChunkStore reopened = new ChunkStoreInitializer().openOrCreate(new File[]{dir}, 0, "data", 1024, byteBufferFactory, 500, 5_000);
+        for (Long chunkFP : chunkFPs) {
+            assertIntInChunk(reopened, chunkFP, live.get(chunkFP));
+        }
+    }
+
+    @Test
+    public void testArenas() throws Exception {
+        File dir = Files.createTempDirectory("testArenas").toFile();
+        HeapByteBufferFactory byteBufferFactory = new HeapByteBufferFactory();
+        final ChunkStore chunkStore = new ChunkStoreInitializer().openOrCreate(new File[]{dir}, 0, "data", 1024, byteBufferFactory, 500, 5_000);
+        chunkStore.setArenaSize(64 * 1024);
+
+        final int numThreads = 4;
+        final ConcurrentHashMap<Long, Integer> live = new ConcurrentHashMap<>();
+        ExecutorService executorService = Executors.newFixedThreadPool(numThreads);
+        try {
+            List<Future<?>> futures = new ArrayList<>(numThreads);
+            for (int n = 0; n < numThreads; n++) {
+                final int thread = n;
+                futures.add(executorService.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        for (int i = 0; i < 500; i++) {
+                            int value = thread * 500 + i;
+                            long chunkFP = chunkStore.newChunk((long) (8 + (i % 1000)), createFiler);
+                            writeIntToChunk(chunkStore, chunkFP, value);
+                            assertTrue(live.put(chunkFP, value) == null, "Handed out twice " + chunkFP);
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executorService.shutdownNow();
+        }
+        for (Long chunkFP : live.keySet()) {
+            assertIntInChunk(chunkStore, chunkFP, live.get(chunkFP));
+        }
+
+        long sizeInBytes = chunkStore.sizeInBytes();
+        chunkStore.releaseArenas();
+        for (int i = 0; i < 20; i++) {
+            long chunkFP = chunkStore.newChunk(8L, createFiler);
+            assertTrue(live.put(chunkFP, -i) == null, "Handed out twice " + chunkFP);
+            writeIntToChunk(chunkStore, chunkFP, -i);
+        }
+        assertEquals(chunkStore.sizeInBytes(), sizeInBytes, "should have reused what the arenas left over");
+        for (Long chunkFP : live.keySet()) {
+            assertIntInChunk(chunkStore, chunkFP, live.get(chunkFP));
+        }
+    }
+
+    @Test
+    public void testInstrumentedChunkStore() throws Exception {
+        File dir = Files.createTempDirectory("testInstrumentedChunkStore").toFile();
+        HeapByteBufferFactory byteBufferFactory = new HeapByteBufferFactory();
+        ChunkStore chunkStore = new ChunkStoreInitializer(FlushPolicy.onCommit(), true).openOrCreate(new File[]{dir}, 0, "instrumented", 1024,
+            byteBufferFactory, 500, 5_000);
+
+        long chunk10 = chunkStore.newChunk(4096L, createFiler);
+        writeIntToChunk(chunkStore, chunk10, 10);
+        chunkStore.commit();
+        assertIntInChunk(chunkStore, chunk10, 10);
+
+        FilerMetrics metrics = FilerMetrics.get("instrumented");
+        assertTrue(metrics.getBytesWritten() > 0);
+        assertTrue(metrics.getBytesRead() > 0);
+        assertTrue(metrics.getSeeks() > 0);
+        assertTrue(metrics.getRemaps() > 0);
+        assertEquals(metrics.getForces(), 1);
+        assertTrue(metrics.writeLatency().count() > 0);
+    }
+
+    @Test
+    public void testInstrumentedWindowedChunkStore() throws Exception {
+        File dir = Files.createTempDirectory("testInstrumentedWindowedChunkStore").toFile();
+        ChunkStore chunkStore = new ChunkStoreInitializer(FlushPolicy.onCommit(), true).openOrCreateWindowed(new File[]{dir}, 0, "instrumentedWindowed",
+            1024, 4096, 3 * 4096, Preallocation.fullSegment(4096, true));
+
+        long chunk10 = chunkStore.newChunk(8L, createFiler);
+        writeIntToChunk(chunkStore, chunk10, 10);
+        chunkStore.commit();
+        assertIntInChunk(chunkStore, chunk10, 10);
+
+        FilerMetrics metrics = FilerMetrics.get("instrumentedWindowed");
+        assertTrue(metrics.getAllocations() > 0);
+        assertTrue(metrics.getBytesWritten() > 0);
+        assertEquals(metrics.getForces(), 1);
+        assertEquals(new File(dir, "instrumentedWindowed-0").length(), 4096);
+    }
+
+    @Test
+    public void testReadMany() throws Exception {
+        File dir = Files.createTempDirectory("testReadMany").toFile();
+        HeapByteBufferFactory byteBufferFactory = new HeapByteBufferFactory();
+        ChunkStore chunkStore = new ChunkStoreInitializer().openOrCreate(new File[]{dir}, 0, "data", 1024, byteBufferFactory, 500, 5_000);
+
+        List<Long> chunkFPs = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            long chunkFP = chunkStore.newChunk(8L, createFiler);
+            writeIntToChunk(chunkStore, chunkFP, i);
+            chunkFPs.add(chunkFP);
+        }
+        assertIntInChunk(chunkStore, chunkFPs.get(3), 3); // leaves one chunk cached
+        List<Long> shuffled = new ArrayList<>(chunkFPs);
+        Collections.shuffle(shuffled, new Random(1234));
+
+        long[] fps = new long[shuffled.size()];
+        ByteBuffer[] into = new ByteBuffer[shuffled.size()];
+        for (int i = 0; i < fps.length; i++) {
+            fps[i] = shuffled.get(i);
+            into[i] = (i == 5) ? null : ByteBuffer.allocate(4);
+        }
+        chunkStore.readMany(fps, into);
+        for (int i = 0; i < fps.length; i++) {
+            if (i != 5) {
+                assertEquals(into[i].position(), 4);
+                assertEquals(into[i].getInt(0), chunkFPs.indexOf(fps[i]));
+            }
+        }
+    }
+
+    @Test
+    public void testNewChunks() throws Exception {
+        File dir = Files.createTempDirectory("testNewChunks").toFile();
+        HeapByteBufferFactory byteBufferFactory = new HeapByteBufferFactory();
+        ChunkStore chunkStore = new ChunkStoreInitializer().openOrCreate(new File[]{dir}, 0, "data", 1024, byteBufferFactory, 500, 5_000);
+
+        Long[] hints = new Long[20];
+        for (int i = 0; i < hints.length; i++) {
+            hints[i] = (i % 2 == 0) ? 8L : 1_000L;
+        }
+        long[] chunkFPs = chunkStore.newChunks(hints, createFiler);
+        assertEquals(chunkFPs.length, hints.length);
+        for (int i = 0; i < chunkFPs.length; i++) {
+            if (i > 0) {
+                assertTrue(chunkFPs[i] > chunkFPs[i - 1]);
+            }
+            writeIntToChunk(chunkStore, chunkFPs[i], i);
+        }
+        for (int i = 0; i < chunkFPs.length; i++) {
+            assertIntInChunk(chunkStore, chunkFPs[i], i);
+        }
+
+        ChunkStore reopened = new ChunkStoreInitializer().openOrCreate(new File[]{dir}, 0, "data", 1024, byteBufferFactory, 500, 5_000);
+        for (int i = 0; i < chunkFPs.length; i++) {
+            assertIntInChunk(reopened, chunkFPs[i], i);
+        }
+        assertTrue(reopened.newChunk(8L, createFiler) > chunkFPs[chunkFPs.length - 1]);
+        assertEquals(reopened.newChunks(new Long[0], createFiler).length, 0);
+    }
+
+    @Test
+    public void testLazyZeroing() throws Exception {
+        File dir = Files.createTempDirectory("testLazyZeroing").toFile();
+        HeapByteBufferFactory byteBufferFactory = new HeapByteBufferFactory();
+        ChunkStore chunkStore = new ChunkStoreInitializer().openOrCreate(new File[]{dir}, 0, "data", 1024, byteBufferFactory, 500, 5_000);
+
+        long chunkFP = chunkStore.newChunk(8L, createFiler);
+        writeIntToChunk(chunkStore, chunkFP, 7);
+        chunkStore.remove(chunkFP);
+        assertEquals(chunkStore.getPendingScrubBytes(), 256);
+
+        long reusedFP = chunkStore.newChunk(8L, createFiler);
+        assertEquals(reusedFP, chunkFP);
+        assertEquals(chunkStore.getPendingScrubBytes(), 0);
+        assertIntInChunk(chunkStore, reusedFP, 0);
+        assertEquals(chunkStore.scrub(Long.MAX_VALUE), 0); // already zeroed on reuse
+
+        long bigFP = chunkStore.newChunk(4L * 1024 * 1024, createFiler);
+        writeIntToChunk(chunkStore, bigFP, 9);
+        chunkStore.remove(bigFP);
+        assertEquals(chunkStore.getPendingScrubBytes(), 4L * 1024 * 1024);
+        assertEquals(chunkStore.scrub(Long.MAX_VALUE), 4L * 1024 * 1024 - 8); // the free list link is left alone
+        assertEquals(chunkStore.getPendingScrubBytes(), 0);
+        assertEquals(chunkStore.newChunk(4L * 1024 * 1024, createFiler), bigFP);
+        assertIntInChunk(chunkStore, bigFP, 0);
+    }
+
+    @Test
+    public void testSplitAndCoalesce() throws Exception {
+        File dir = Files.createTempDirectory("testSplitAndCoalesce").toFile();
+        HeapByteBufferFactory byteBufferFactory = new HeapByteBufferFactory();
+        ChunkStore chunkStore = new ChunkStoreInitializer().openOrCreate(new File[]{dir}, 0, "data", 1024, byteBufferFactory, 500, 5_000);
+
+        // a freed 2^12 chunk is split to serve 2^8 chunks
+        long bigFP = chunkStore.newChunk(4_096L, createFiler);
+        long sentinelFP = chunkStore.newChunk(8L, createFiler);
+        chunkStore.remove(bigFP);
+        long smallFP = chunkStore.newChunk(8L, createFiler);
+        assertEquals(smallFP, bigFP);
+        long nextFP = chunkStore.newChunk(8L, createFiler);
+        assertTrue(nextFP > bigFP && nextFP < sentinelFP);
+
+        // adjacent free chunks merge back into one large chunk
+        chunkStore = new ChunkStoreInitializer().openOrCreate(new File[]{dir}, 0, "merged", 1024, byteBufferFactory, 500, 5_000);
+        long[] chunkFPs = new long[4];
+        for (int i = 0; i < chunkFPs.length; i++) {
+            chunkFPs[i] = chunkStore.newChunk(8L, createFiler);
+            writeIntToChunk(chunkStore, chunkFPs[i], i + 1);
+        }
+        chunkStore.newChunk(8L, createFiler);
+        for (long chunkFP : chunkFPs) {
+            chunkStore.remove(chunkFP);
+        }
+        assertTrue(chunkStore.coalesce() >= 3);
+        long mergedFP = chunkStore.newChunk(1_000L, createFiler);
+        assertEquals(mergedFP, chunkFPs[0]);
+        assertIntInChunk(chunkStore, mergedFP, 0);
+
+        // free chunks at the end of the file go back to the tail
+        long tailFP = chunkStore.newChunk(8L, createFiler);
+        writeIntToChunk(chunkStore, tailFP, 7);
+        chunkStore.remove(tailFP);
+        chunkStore.coalesce();
+        assertEquals(chunkStore.newChunk(100_000L, createFiler), tailFP);
+        assertIntInChunk(chunkStore, tailFP, 0);
+    }
+
+    @Test
+    public void testCoalesceDirty() throws Exception {
+        File dir = Files.createTempDirectory("testCoalesceDirty").toFile();
+        HeapByteBufferFactory byteBufferFactory = new HeapByteBufferFactory();
+        ChunkStore chunkStore = new ChunkStoreInitializer().openOrCreate(new File[]{dir}, 0, "data", 1024, byteBufferFactory, 500, 5_000);
+
+        long[] chunkFPs = new long[4];
+        for (int i = 0; i < chunkFPs.length; i++) {
+            chunkFPs[i] = chunkStore.newChunk(8L, createFiler);
+            writeIntToChunk(chunkStore, chunkFPs[i], 100, i + 1);
+        }
+        long sentinelFP = chunkStore.newChunk(8L, createFiler);
+        chunkStore.newChunk(8L, createFiler);
+        for (long chunkFP : chunkFPs) {
+            chunkStore.remove(chunkFP);
+        }
+        assertEquals(chunkStore.coalesce(), 3);
+        assertEquals(chunkStore.getPendingScrubBytes(), 1_024);
+        assertTrue(chunkStore.scrub(Long.MAX_VALUE) > 0);
+        assertEquals(chunkStore.getPendingScrubBytes(), 0);
+
+        long mergedFP = chunkStore.newChunk(1_000L, createFiler);
+        assertEquals(mergedFP, chunkFPs[0]);
+        for (int i = 1; i < chunkFPs.length; i++) {
+            assertIntInChunk(chunkStore, mergedFP, (chunkFPs[i] - chunkFPs[0]) + 100, 0);
+        }
+
+        // the slack carving left behind the merged chunk is folded in once its neighbour is free
+        chunkStore.remove(mergedFP);
+        chunkStore.remove(sentinelFP);
+        chunkStore.coalesce();
+        assertEquals(chunkStore.newChunk(1_000L, createFiler), mergedFP);
+        assertEquals(chunkStore.newChunk(8L, createFiler), mergedFP + 1_024 + 8);
+    }
+
+    @Test
+    public void testScheduledCoalescer() throws Exception {
+        File dir = Files.createTempDirectory("testScheduledCoalescer").toFile();
+        HeapByteBufferFactory byteBufferFactory = new HeapByteBufferFactory();
+        ChunkStore chunkStore = new ChunkStoreInitializer().openOrCreate(new File[]{dir}, 0, "data", 1024, byteBufferFactory, 500, 5_000);
+
+        chunkStore.newChunk(8L, createFiler);
+        long tailFP = chunkStore.newChunk(8L, createFiler);
+        writeIntToChunk(chunkStore, tailFP, 7);
+        chunkStore.remove(tailFP);
+        assertEquals(chunkStore.getPendingScrubBytes(), 256);
+
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+        try {
+            chunkStore.scheduleCoalescer(executor, 10);
+            long deadline = System.currentTimeMillis() + 10_000;
+            while (chunkStore.getPendingScrubBytes() != 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(chunkStore.getPendingScrubBytes(), 0, "the coalescer should have handed the removed chunk back to the tail");
+        assertEquals(chunkStore.newChunk(100_000L, createFiler), tailFP);
+        assertIntInChunk(chunkStore, tailFP, 0);
+    }
+
+    @Test
+    public void testCompactHeader() throws Exception {
+        File dir = Files.createTempDirectory("testCompactHeader").toFile();
+        HeapByteBufferFactory byteBufferFactory = new HeapByteBufferFactory();
+        ChunkStore chunkStore = new ChunkStoreInitializer().openOrCreate(new File[]{dir}, 0, "data", 1024, byteBufferFactory, 500, 5_000);
+
+        long chunk1 = chunkStore.newChunk(8L, createFiler);
+        long chunk2 = chunkStore.newChunk(8L, createFiler);
+        assertEquals(chunk2 - chunk1, 256 + 8);
+        writeIntToChunk(chunkStore, chunk2, 2);
+        assertTrue(chunkStore.isValid(chunk1));
+        assertTrue(!chunkStore.isValid(chunk1 + 8));
+
+        chunkStore.remove(chunk1);
+        assertEquals(chunkStore.scrub(Long.MAX_VALUE), 256 - 8); // the free list link is left alone
+        assertEquals(chunkStore.newChunk(8L, createFiler), chunk1);
+        assertIntInChunk(chunkStore, chunk1, 0);
+
+        ChunkStore reopened = new ChunkStoreInitializer().openOrCreate(new File[]{dir}, 0, "data", 1024, byteBufferFactory, 500, 5_000);
+        assertIntInChunk(reopened, chunk2, 2);
+        assertEquals(reopened.newChunk(8L, createFiler), chunk2 + 256 + 8);
+    }
+
     @Test
     public void testResizingChunkStore() throws Exception {
         final int size = 512;
@@ -247,6 +730,263 @@ public class ChunkStoreTest {
         });
     }
 
+    @Test
+    public void testReadOnly() throws Exception {
+        File dir = Files.createTempDirectory("testReadOnly").toFile();
+        HeapByteBufferFactory byteBufferFactory = new HeapByteBufferFactory();
+        final ChunkStore chunkStore = new ChunkStoreInitializer(FlushPolicy.none(), false, 4)
+            .openOrCreate(new File[]{dir}, 0, "data", 1024, byteBufferFactory, 500, 5_000);
+
+        final long[] fps = new long[32];
+        for (int i = 0; i < fps.length; i++) {
+            fps[i] = chunkStore.newChunk(8L, createFiler);
+            writeIntToChunk(chunkStore, fps[i], i);
+        }
+
+        final int numThreads = 4;
+        ExecutorService executorService = Executors.newFixedThreadPool(numThreads);
+        try {
+            List<Future<?>> futures = new ArrayList<>(numThreads);
+            for (int n = 0; n < numThreads; n++) {
+                futures.add(executorService.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        for (int i = 0; i < 1_000; i++) {
+                            final int index = i % fps.length;
+                            int value = chunkStore.readOnly(fps[index], openFiler, new ChunkTransaction<Void, Integer>() {
+                                @Override
+                                public Integer commit(Void monkey, ChunkFiler filer, Object lock) throws IOException {
+                                    filer.seek(0);
+                                    return FilerIO.readInt(filer, "value");
+                                }
+                            });
+                            assertEquals(value, index);
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executorService.shutdownNow();
+        }
+
+        // with the idle cache off nothing a reader left behind is kept
+        chunkStore.setIdleChunkCache(0, 0);
+        final AtomicInteger opens = new AtomicInteger();
+        OpenFiler<Void, ChunkFiler> countingOpener = new OpenFiler<Void, ChunkFiler>() {
+            @Override
+            public Void open(ChunkFiler filer) throws IOException {
+                opens.incrementAndGet();
+                return null;
+            }
+        };
+        for (int i = 0; i < 2; i++) {
+            chunkStore.readOnly(fps[1], countingOpener, new ChunkTransaction<Void, Void>() {
+                @Override
+                public Void commit(Void monkey, ChunkFiler filer, Object lock) throws IOException {
+                    return null;
+                }
+            });
+        }
+        assertEquals(opens.get(), 2);
+
+        chunkStore.remove(fps[0]);
+        assertEquals(chunkStore.newChunk(8L, createFiler), fps[0], "a chunk only ever read should still be removable");
+        for (int i = 1; i < fps.length; i++) {
+            assertIntInChunk(chunkStore, fps[i], i);
+        }
+    }
+
+    @Test
+    public void testHandle() throws Exception {
+        File dir = Files.createTempDirectory("testHandle").toFile();
+        HeapByteBufferFactory byteBufferFactory = new HeapByteBufferFactory();
+        ChunkStore chunkStore = new ChunkStoreInitializer().openOrCreate(new File[]{dir}, 0, "data", 1024, byteBufferFactory, 500, 5_000);
+
+        long chunkFP = chunkStore.newChunk(8L, createFiler);
+        ChunkHandle<Void> handle = chunkStore.open(chunkFP, openFiler);
+        final Set<ChunkFiler> filers = new HashSet<>();
+        for (int i = 0; i < 100; i++) {
+            final int value = i;
+            handle.execute(new ChunkTransaction<Void, Void>() {
+                @Override
+                public Void commit(Void monkey, ChunkFiler filer, Object lock) throws IOException {
+                    synchronized (lock) {
+                        assertEquals(filer.getFilePointer(), 0L);
+                        FilerIO.writeInt(filer, value, "value");
+                    }
+                    filers.add(filer);
+                    return null;
+                }
+            });
+        }
+        assertEquals(filers.size(), 1, "a handle should reuse the filer it was acquired with");
+        handle.retain();
+        handle.close();
+        assertIntInChunk(chunkStore, chunkFP, 99);
+        handle.close();
+
+        try {
+            handle.execute(new ChunkTransaction<Void, Void>() {
+                @Override
+                public Void commit(Void monkey, ChunkFiler filer, Object lock) throws IOException {
+                    return null;
+                }
+            });
+            fail("closed handles should not execute");
+        } catch (IllegalStateException x) {
+            // expected
+        }
+
+        chunkStore.remove(chunkFP);
+        assertEquals(chunkStore.newChunk(8L, createFiler), chunkFP);
+    }
+
+    @Test
+    public void testLegacyRemoveZeroes() throws Exception {
+        File dir = Files.createTempDirectory("testLegacyRemoveZeroes").toFile();
+        long chunkFP = writeLegacyStore(new File(dir, "data-0"), false);
+        HeapByteBufferFactory byteBufferFactory = new HeapByteBufferFactory();
+        ChunkStore chunkStore = new ChunkStoreInitializer().openOrCreate(new File[]{dir}, 0, "data", 1024, byteBufferFactory, 500, 5_000);
+        assertIntInChunk(chunkStore, chunkFP, -1);
+
+        chunkStore.remove(chunkFP);
+        assertEquals(chunkStore.getPendingScrubBytes(), 0, "format 0 stores must not be left for the scrubber");
+        assertIntInChunk(chunkStore, chunkFP, 0);
+        assertIntInChunk(chunkStore, chunkFP, 252, 0);
+    }
+
+    /**
+     * Writes a format 0 store, as laid out before the format byte, holding one 2^8 chunk full of ones unless it is empty.
+     *
+     * @return the fp of the chunk, or of where the first chunk will go
+     */
+    private long writeLegacyStore(File file, boolean empty) throws IOException {
+        long chunkFP = 8 + 8 + (8 * (64 - 8));
+        long chunkLength = 8 + 8 + 8 + 8 + 256;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.writeLong(empty ? chunkFP : chunkFP + chunkLength);
+            raf.writeLong(0);
+            for (int i = 8; i < 64; i++) {
+                raf.writeLong(-1);
+            }
+            if (!empty) {
+                raf.writeLong(Long.MAX_VALUE);
+                raf.writeLong(8);
+                raf.writeLong(-1);
+                raf.writeLong(chunkLength);
+                for (int i = 0; i < 256; i++) {
+                    raf.write(0xFF);
+                }
+            }
+            raf.setLength(1024);
+        }
+        return chunkFP;
+    }
+
+    @Test
+    public void testUpgradeEmptyStore() throws Exception {
+        HeapByteBufferFactory byteBufferFactory = new HeapByteBufferFactory();
+        File dir = Files.createTempDirectory("testUpgradeEmptyStore").toFile();
+        long firstFP = writeLegacyStore(new File(dir, "data-0"), true);
+        ChunkStore chunkStore = new ChunkStoreInitializer().openOrCreate(new File[]{dir}, 0, "data", 1024, byteBufferFactory, 500, 5_000);
+        assertEquals(chunkStore.newChunk(8L, createFiler), firstFP);
+        assertEquals(chunkStore.newChunk(8L, createFiler), firstFP + 32 + 256, "open() must leave an empty format 0 store alone");
+        assertTrue(!chunkStore.upgradeEmptyStore(), "populated stores are not migrated");
+
+        dir = Files.createTempDirectory("testUpgradeEmptyStore").toFile();
+        writeLegacyStore(new File(dir, "data-0"), true);
+        chunkStore = new ChunkStoreInitializer().openOrCreate(new File[]{dir}, 0, "data", 1024, byteBufferFactory, 500, 5_000);
+        assertTrue(chunkStore.upgradeEmptyStore());
+        assertTrue(!chunkStore.upgradeEmptyStore());
+        assertEquals(chunkStore.newChunk(8L, createFiler), firstFP);
+        assertEquals(chunkStore.newChunk(8L, createFiler), firstFP + 8 + 256);
+
+        chunkStore = new ChunkStoreInitializer().openOrCreate(new File[]{dir}, 0, "data", 1024, byteBufferFactory, 500, 5_000);
+        assertEquals(chunkStore.newChunk(8L, createFiler), firstFP + 2 * (8 + 256), "the upgrade should have been persisted");
+    }
+
+    @Test
+    public void testIdleChunkCache() throws Exception {
+        File dir = Files.createTempDirectory("testIdleChunkCache").toFile();
+        HeapByteBufferFactory byteBufferFactory = new HeapByteBufferFactory();
+        ChunkStore chunkStore = new ChunkStoreInitializer().openOrCreate(new File[]{dir}, 0, "data", 1024, byteBufferFactory, 500, 5_000);
+
+        final AtomicInteger opens = new AtomicInteger();
+        OpenFiler<Integer, ChunkFiler> countingOpener = new OpenFiler<Integer, ChunkFiler>() {
+            @Override
+            public Integer open(ChunkFiler filer) throws IOException {
+                return opens.incrementAndGet();
+            }
+        };
+        ChunkTransaction<Integer, Integer> monkeyOf = new ChunkTransaction<Integer, Integer>() {
+            @Override
+            public Integer commit(Integer monkey, ChunkFiler filer, Object lock) throws IOException {
+                return monkey;
+            }
+        };
+
+        long chunkFP = chunkStore.newChunk(8L, createFiler);
+        chunkStore.execute(chunkFP, openFiler, new ChunkTransaction<Void, Void>() {
+            @Override
+            public Void commit(Void monkey, ChunkFiler filer, Object lock) throws IOException {
+                return null;
+            }
+        });
+        chunkStore.rollCache();
+
+        for (int i = 0; i < 10; i++) {
+            assertEquals(chunkStore.execute(chunkFP, countingOpener, monkeyOf), Integer.valueOf(1));
+        }
+        assertEquals(opens.get(), 1, "an idle chunk should not be reopened");
+
+        chunkStore.remove(chunkFP);
+        assertEquals(chunkStore.newChunk(8L, createFiler), chunkFP);
+        assertNull(chunkStore.execute(chunkFP, countingOpener, monkeyOf), "a reused chunk should get the monkey its creator made");
+
+        chunkStore.setIdleChunkCache(0, 0);
+        assertEquals(chunkStore.execute(chunkFP, countingOpener, monkeyOf), Integer.valueOf(2));
+        assertEquals(chunkStore.execute(chunkFP, countingOpener, monkeyOf), Integer.valueOf(3));
+    }
+
+    @Test
+    public void testIdleChunkCacheAtDefaultStripes() throws Exception {
+        File dir = Files.createTempDirectory("testIdleChunkCacheAtDefaultStripes").toFile();
+        HeapByteBufferFactory byteBufferFactory = new HeapByteBufferFactory();
+        ChunkStore chunkStore = new ChunkStoreInitializer().openOrCreate(new File[]{dir}, 0, "data", 1024, byteBufferFactory, 500, 5_000);
+
+        final AtomicInteger opens = new AtomicInteger();
+        OpenFiler<Void, ChunkFiler> countingOpener = new OpenFiler<Void, ChunkFiler>() {
+            @Override
+            public Void open(ChunkFiler filer) throws IOException {
+                opens.incrementAndGet();
+                return null;
+            }
+        };
+        ChunkTransaction<Void, Void> noop = new ChunkTransaction<Void, Void>() {
+            @Override
+            public Void commit(Void monkey, ChunkFiler filer, Object lock) throws IOException {
+                return null;
+            }
+        };
+
+        // equally sized chunks only land on a few of the 128 stripes, so each of those stripes gets far more than 256 / 128 of them
+        long[] fps = new long[256];
+        for (int i = 0; i < fps.length; i++) {
+            fps[i] = chunkStore.newChunk(8L, createFiler);
+        }
+        chunkStore.rollCache();
+        for (int round = 0; round < 3; round++) {
+            for (long fp : fps) {
+                chunkStore.execute(fp, countingOpener, noop);
+            }
+        }
+        assertEquals(opens.get(), fps.length, "a hot set of " + fps.length + " chunks should stay idle rather than be reopened");
+    }
+
     @Test
     public void testAddRemove() throws Exception {
         File dir = Files.createTempDirectory("testAddRemove").toFile();
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2015 Jive Software.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jivesoftware.os.filer.chunk.store;
+
+import com.jivesoftware.os.filer.io.HeapByteBufferFactory;
+import com.jivesoftware.os.filer.io.NoOpCreateFiler;
+import com.jivesoftware.os.filer.io.NoOpOpenFiler;
+import com.jivesoftware.os.filer.io.api.ChunkTransaction;
+import com.jivesoftware.os.filer.io.chunk.ChunkFiler;
+import com.jivesoftware.os.filer.io.chunk.ChunkStore;
+import com.jivesoftware.os.filer.io.chunk.SlabStore;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.Set;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * @author jonathan.colt
+ */
+public class SlabStoreTest {
+
+    private final NoOpOpenFiler<ChunkFiler> openFiler = new NoOpOpenFiler<>();
+    private final NoOpCreateFiler<ChunkFiler> createFiler = new NoOpCreateFiler<>();
+
+    @Test
+    public void testSlots() throws Exception {
+        File dir = Files.createTempDirectory("testSlots").toFile();
+        HeapByteBufferFactory byteBufferFactory = new HeapByteBufferFactory();
+        ChunkStore chunkStore = new ChunkStoreInitializer().openOrCreate(new File[]{dir}, 0, "data", 1024, byteBufferFactory, 500, 5_000);
+        long directoryFP = SlabStore.create(chunkStore);
+        SlabStore slabStore = new SlabStore(chunkStore, directoryFP);
+
+        long[] addresses = new long[1_000];
+        Set<Long> slabFPs = new HashSet<>();
+        for (int i = 0; i < addresses.length; i++) {
+            addresses[i] = slabStore.newSlot(8L, createFiler);
+            slabFPs.add(SlabStore.slabFP(addresses[i]));
+            writeLong(slabStore, addresses[i], i);
+        }
+        assertTrue(slabFPs.size() <= 3, "slabs:" + slabFPs.size());
+
+        SlabStore reopened = new SlabStore(chunkStore, directoryFP);
+        for (int i = 0; i < addresses.length; i++) {
+            assertEquals(readLong(reopened, addresses[i]), i);
+        }
+
+        Set<Long> removed = new HashSet<>();
+        for (int i = 0; i < addresses.length; i += 2) {
+            reopened.remove(addresses[i]);
+            removed.add(addresses[i]);
+        }
+        for (int i = 0; i < addresses.length; i += 2) {
+            long address = reopened.newSlot(8L, createFiler);
+            assertTrue(removed.remove(address));
+            assertEquals(readLong(reopened, address), 0);
+        }
+        for (int i = 1; i < addresses.length; i += 2) {
+            assertEquals(readLong(reopened, addresses[i]), i);
+        }
+
+        long bigger = reopened.newSlot(100L, createFiler);
+        assertTrue(!slabFPs.contains(SlabStore.slabFP(bigger)));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testTooBig() throws Exception {
+        File dir = Files.createTempDirectory("testTooBig").toFile();
+        HeapByteBufferFactory byteBufferFactory = new HeapByteBufferFactory();
+        ChunkStore chunkStore = new ChunkStoreInitializer().openOrCreate(new File[]{dir}, 0, "data", 1024, byteBufferFactory, 500, 5_000);
+        new SlabStore(chunkStore, SlabStore.create(chunkStore)).newSlot(129L, createFiler);
+    }
+
+    private void writeLong(SlabStore slabStore, final long address, final long value) throws IOException {
+        slabStore.execute(address, openFiler, new ChunkTransaction<Void, Void>() {
+            @Override
+            public Void commit(Void monkey, ChunkFiler filer, Object lock) throws IOException {
+                assertEquals(filer.getChunkFP(), address);
+                synchronized (lock) {
+                    filer.putLong(0, value);
+                    return null;
+                }
+            }
+        });
+    }
+
+    private long readLong(SlabStore slabStore, long address) throws IOException {
+        return slabStore.execute(address, openFiler, new ChunkTransaction<Void, Long>() {
+            @Override
+            public Long commit(Void monkey, ChunkFiler filer, Object lock) throws IOException {
+                synchronized (lock) {
+                    return filer.getLong(0);
+                }
+            }
+        });
+    }
+}
@@ -17,22 +17,35 @@ package com.jivesoftware.os.filer.io;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  *
  * @author jonathan.colt
  */
-public class AutoGrowingByteBufferBackedFiler implements Filer {
+public class AutoGrowingByteBufferBackedFiler implements DuplicatableFiler {
 
     public static final long MAX_BUFFER_SEGMENT_SIZE = FilerIO.chunkLength(30);
-    public static long MAX_POSITION = MAX_BUFFER_SEGMENT_SIZE * 100;
+    public static long MAX_POSITION = MAX_BUFFER_SEGMENT_SIZE << 16; // 64TB at the max segment size
 
     private final ByteBufferFactory byteBufferFactory;
     private final long initialBufferSegmentSize;
     private final long maxBufferSegmentSize;
+    private final int segmentShift;
+    private final long segmentMask;
+
+    private final List<Superseded> superseded;
+    private boolean duplicated;
+    private volatile long generation; // bumped under the roots lock, compared by StripedFiler readers which don't hold it
 
     private ByteBufferBackedFiler[] filers;
+    private AtomicBoolean[] dirty; // shared with duplicates, survives reallocation
     private int fpFilerIndex;
 
     public AutoGrowingByteBufferBackedFiler(ByteBufferFactory byteBufferFactory,
@@ -41,64 +54,113 @@ public class AutoGrowingByteBufferBackedFiler implements Filer {
         this.byteBufferFactory = byteBufferFactory;
         this.initialBufferSegmentSize = FilerIO.chunkLength(FilerIO.chunkPower(initialBufferSegmentSize, 0));
         this.maxBufferSegmentSize = Math.min(FilerIO.chunkLength(FilerIO.chunkPower(maxBufferSegmentSize, 0)), MAX_BUFFER_SEGMENT_SIZE);
+        this.segmentShift = Long.numberOfTrailingZeros(this.maxBufferSegmentSize);
+        this.segmentMask = this.maxBufferSegmentSize - 1;
         this.filers = new ByteBufferBackedFiler[0];
+        this.dirty = new AtomicBoolean[0];
+        this.superseded = new ArrayList<>();
     }
 
-    private AutoGrowingByteBufferBackedFiler(long maxBufferSegmentSize, ByteBufferBackedFiler[] filers) {
+    private AutoGrowingByteBufferBackedFiler(long maxBufferSegmentSize, ByteBufferBackedFiler[] filers, AtomicBoolean[] dirty, long generation) {
         this.byteBufferFactory = null;
         this.initialBufferSegmentSize = -1;
         this.maxBufferSegmentSize = maxBufferSegmentSize;
+        this.segmentShift = Long.numberOfTrailingZeros(maxBufferSegmentSize);
+        this.segmentMask = maxBufferSegmentSize - 1;
         this.filers = filers;
+        this.dirty = dirty;
         this.fpFilerIndex = -1;
+        this.superseded = null;
+        this.generation = generation;
     }
 
+    @Override
     public AutoGrowingByteBufferBackedFiler duplicate(long startFP, long endFp) {
+        duplicated = true;
         ByteBufferBackedFiler[] duplicate = new ByteBufferBackedFiler[filers.length];
         for (int i = 0; i < duplicate.length; i++) {
-            if ((i + 1) * maxBufferSegmentSize < startFP || (i - 1) * maxBufferSegmentSize > endFp) {
+            if (((long) (i + 1) << segmentShift) < startFP || ((long) (i - 1) << segmentShift) > endFp) {
                 continue;
             }
             duplicate[i] = new ByteBufferBackedFiler(filers[i].buffer.duplicate());
         }
-        return new AutoGrowingByteBufferBackedFiler(maxBufferSegmentSize, duplicate);
+        return new AutoGrowingByteBufferBackedFiler(maxBufferSegmentSize, duplicate, Arrays.copyOf(dirty, dirty.length), generation);
     }
 
-    public AutoGrowingByteBufferBackedFiler duplicateNew(AutoGrowingByteBufferBackedFiler current) {
+    @Override
+    public AutoGrowingByteBufferBackedFiler duplicateNew(DuplicatableFiler duplicatable) {
+        duplicated = true;
+        AutoGrowingByteBufferBackedFiler current = (AutoGrowingByteBufferBackedFiler) duplicatable;
         ByteBufferBackedFiler[] duplicate = new ByteBufferBackedFiler[filers.length];
         System.arraycopy(current.filers, 0, duplicate, 0, current.filers.length - 1);
         for (int i = current.filers.length - 1; i < duplicate.length; i++) {
             duplicate[i] = new ByteBufferBackedFiler(filers[i].buffer.duplicate());
         }
-        return new AutoGrowingByteBufferBackedFiler(maxBufferSegmentSize, duplicate);
+        return new AutoGrowingByteBufferBackedFiler(maxBufferSegmentSize, duplicate, Arrays.copyOf(dirty, dirty.length), generation);
     }
 
+    @Override
     public AutoGrowingByteBufferBackedFiler duplicateAll() {
+        duplicated = true;
         ByteBufferBackedFiler[] duplicate = new ByteBufferBackedFiler[filers.length];
         for (int i = 0; i < duplicate.length; i++) {
             duplicate[i] = new ByteBufferBackedFiler(filers[i].buffer.duplicate());
         }
-        return new AutoGrowingByteBufferBackedFiler(maxBufferSegmentSize, duplicate);
+        return new AutoGrowingByteBufferBackedFiler(maxBufferSegmentSize, duplicate, Arrays.copyOf(dirty, dirty.length), generation);
     }
 
+    @Override
     public boolean exists() {
         byte[] key = String.valueOf(0)
             .getBytes(StandardCharsets.UTF_8);
         return byteBufferFactory.exists(key);
     }
 
+    @Override
+    public long generation() {
+        return generation;
+    }
+
+    @Override
+    public void reclaim(long oldestGeneration) throws IOException {
+        if (superseded == null) {
+            return; // duplicates never grow
+        }
+        for (Iterator<Superseded> iterator = superseded.iterator(); iterator.hasNext();) {
+            Superseded s = iterator.next();
+            if (oldestGeneration > s.generation) {
+                byteBufferFactory.release(s.key, s.buffer);
+                iterator.remove();
+            }
+        }
+    }
+
+    private ByteBufferBackedFiler reallocate(int index, long newSize) {
+        byte[] key = String.valueOf(index)
+            .getBytes(StandardCharsets.UTF_8);
+        ByteBuffer oldBuffer = filers[index].buffer;
+        ByteBuffer reallocate = byteBufferFactory.reallocate(key, oldBuffer, newSize);
+        if (reallocate != oldBuffer) {
+            if (duplicated) {
+                // duplicates taken during this generation may still be reading oldBuffer
+                superseded.add(new Superseded(key, oldBuffer, generation));
+            } else {
+                byteBufferFactory.release(key, oldBuffer);
+            }
+        }
+        return new ByteBufferBackedFiler(reallocate);
+    }
+
     final void position(long position) throws IOException {
-        if (position > MAX_POSITION) {
+        if (position > MAX_POSITION || (position >>> segmentShift) >= Integer.MAX_VALUE) {
             throw new IllegalStateException("Encountered a likely runaway file position! position=" + position);
         }
-        int f = (int) (position / maxBufferSegmentSize); // TODO can/should convert to bitshifts?
-        long fseek = position % maxBufferSegmentSize; // TODO can/should  convert to bitshifts?
+        int f = (int) (position >>> segmentShift);
+        long fseek = position & segmentMask;
         if (f >= filers.length) {
             int lastFilerIndex = filers.length - 1;
             if (lastFilerIndex > -1 && filers[lastFilerIndex].length() < maxBufferSegmentSize) {
-                byte[] key = String.valueOf(lastFilerIndex)
-                    .getBytes(StandardCharsets.UTF_8);
-                ByteBuffer reallocate = byteBufferFactory.reallocate(key, filers[lastFilerIndex].buffer, maxBufferSegmentSize);
-                filers[lastFilerIndex] = new ByteBufferBackedFiler(reallocate);
+                filers[lastFilerIndex] = reallocate(lastFilerIndex, maxBufferSegmentSize);
             }
 
             int newLength = f + 1;
@@ -113,17 +175,21 @@ public class AutoGrowingByteBufferBackedFiler implements Filer {
                     newFilers[n] = new ByteBufferBackedFiler(byteBufferFactory.allocate(key, Math.max(fseek, initialBufferSegmentSize)));
                 }
             }
+            AtomicBoolean[] newDirty = Arrays.copyOf(dirty, newLength);
+            for (int n = dirty.length; n < newLength; n++) {
+                newDirty[n] = new AtomicBoolean(true);
+            }
             filers = newFilers;
+            dirty = newDirty;
+            generation++;
 
         } else if (f == filers.length - 1 && fseek > filers[f].length()) {
             long newSize = filers[f].length() * 2;
             while (newSize < fseek) {
                 newSize *= 2;
             }
-            byte[] key = String.valueOf(f)
-                .getBytes(StandardCharsets.UTF_8);
-            ByteBuffer reallocate = byteBufferFactory.reallocate(key, filers[f].buffer, Math.min(maxBufferSegmentSize, newSize));
-            filers[f] = new ByteBufferBackedFiler(reallocate);
+            filers[f] = reallocate(f, Math.min(maxBufferSegmentSize, newSize));
+            generation++;
         }
         filers[f].seek(fseek);
         fpFilerIndex = f;
@@ -146,7 +212,7 @@ public class AutoGrowingByteBufferBackedFiler implements Filer {
         if (filers.length == 0) {
             return 0;
         }
-        return ((filers.length - 1) * maxBufferSegmentSize) + filers[filers.length - 1].length();
+        return ((long) (filers.length - 1) << segmentShift) + filers[filers.length - 1].length();
     }
 
     @Override
@@ -159,7 +225,7 @@ public class AutoGrowingByteBufferBackedFiler implements Filer {
         if (filers.length == 0) {
             return 0;
         }
-        long fp = (fpFilerIndex * maxBufferSegmentSize) + filers[fpFilerIndex].getFilePointer();
+        long fp = ((long) fpFilerIndex << segmentShift) + filers[fpFilerIndex].getFilePointer();
         return fp;
     }
 
@@ -216,7 +282,7 @@ public class AutoGrowingByteBufferBackedFiler implements Filer {
         if (len == remaining) {
             return -1;
         }
-        return offset;
+        return len - remaining;
     }
 
     @Override
@@ -225,6 +291,7 @@ public class AutoGrowingByteBufferBackedFiler implements Filer {
             position(getFilePointer());
         }
         filers[fpFilerIndex].write(b);
+        dirty(fpFilerIndex);
 
     }
 
@@ -241,6 +308,7 @@ public class AutoGrowingByteBufferBackedFiler implements Filer {
 
         long canWrite = Math.min(len, filers[fpFilerIndex].length() - filers[fpFilerIndex].getFilePointer());
         filers[fpFilerIndex].write(b, offset, (int) canWrite);
+        dirty(fpFilerIndex);
         long remaingToWrite = len - canWrite;
         offset += canWrite;
         while (remaingToWrite > 0) {
@@ -248,11 +316,215 @@ public class AutoGrowingByteBufferBackedFiler implements Filer {
             filers[fpFilerIndex].seek(0);
             canWrite = Math.min(remaingToWrite, filers[fpFilerIndex].length() - filers[fpFilerIndex].getFilePointer());
             filers[fpFilerIndex].write(b, offset, (int) canWrite);
+            dirty(fpFilerIndex);
             remaingToWrite -= canWrite;
             offset += canWrite;
         }
     }
 
+    @Override
+    public void write(ByteBuffer src) throws IOException {
+        int len = src.remaining();
+        long fp = getFilePointer();
+        position(fp + len);
+        position(fp);
+
+        while (src.hasRemaining()) {
+            ByteBufferBackedFiler filer = filers[fpFilerIndex];
+            int canWrite = (int) Math.min(src.remaining(), filer.length() - filer.getFilePointer());
+            if (canWrite == 0) {
+                fpFilerIndex++;
+                filers[fpFilerIndex].seek(0);
+                continue;
+            }
+            ByteBuffer slice = src.duplicate();
+            slice.limit(slice.position() + canWrite);
+            filer.write(slice);
+            dirty(fpFilerIndex);
+            src.position(slice.position());
+        }
+    }
+
+    @Override
+    public long transferTo(TransferableFiler target, long maxBytes) throws IOException {
+        if (filers.length == 0) {
+            return -1;
+        }
+        long remaining = maxBytes;
+        while (remaining > 0) {
+            long transferred = filers[fpFilerIndex].transferTo(target, remaining);
+            if (transferred == -1) {
+                if (fpFilerIndex == filers.length - 1) {
+                    break;
+                }
+                fpFilerIndex++;
+                filers[fpFilerIndex].seek(0);
+            } else {
+                remaining -= transferred;
+            }
+        }
+        if (remaining == maxBytes && maxBytes > 0) {
+            return -1;
+        }
+        return maxBytes - remaining;
+    }
+
+    @Override
+    public byte getByte(long position) throws IOException {
+        return filers[(int) (position >>> segmentShift)].getByte(position & segmentMask);
+    }
+
+    @Override
+    public short getShort(long position) throws IOException {
+        long fseek = position & segmentMask;
+        if (fseek + 2 <= maxBufferSegmentSize) {
+            return filers[(int) (position >>> segmentShift)].getShort(fseek);
+        }
+        return (short) ((getByte(position) << 8) | (getByte(position + 1) & 0xFF));
+    }
+
+    @Override
+    public int getInt(long position) throws IOException {
+        long fseek = position & segmentMask;
+        if (fseek + 4 <= maxBufferSegmentSize) {
+            return filers[(int) (position >>> segmentShift)].getInt(fseek);
+        }
+        int v = 0;
+        for (int i = 0; i < 4; i++) {
+            v = (v << 8) | (getByte(position + i) & 0xFF);
+        }
+        return v;
+    }
+
+    @Override
+    public long getLong(long position) throws IOException {
+        long fseek = position & segmentMask;
+        if (fseek + 8 <= maxBufferSegmentSize) {
+            return filers[(int) (position >>> segmentShift)].getLong(fseek);
+        }
+        long v = 0;
+        for (int i = 0; i < 8; i++) {
+            v = (v << 8) | (getByte(position + i) & 0xFF);
+        }
+        return v;
+    }
+
+    @Override
+    public void get(long position, byte[] b, int offset, int len) throws IOException {
+        while (len > 0) {
+            long fseek = position & segmentMask;
+            int l = (int) Math.min(len, maxBufferSegmentSize - fseek);
+            filers[(int) (position >>> segmentShift)].get(fseek, b, offset, l);
+            position += l;
+            offset += l;
+            len -= l;
+        }
+    }
+
+    @Override
+    public void putByte(long position, byte v) throws IOException {
+        ensure(position + 1);
+        int f = (int) (position >>> segmentShift);
+        filers[f].putByte(position & segmentMask, v);
+        dirty(f);
+    }
+
+    @Override
+    public void putShort(long position, short v) throws IOException {
+        ensure(position + 2);
+        long fseek = position & segmentMask;
+        if (fseek + 2 <= maxBufferSegmentSize) {
+            int f = (int) (position >>> segmentShift);
+            filers[f].putShort(fseek, v);
+            dirty(f);
+        } else {
+            putByte(position, (byte) (v >>> 8));
+            putByte(position + 1, (byte) v);
+        }
+    }
+
+    @Override
+    public void putInt(long position, int v) throws IOException {
+        ensure(position + 4);
+        long fseek = position & segmentMask;
+        if (fseek + 4 <= maxBufferSegmentSize) {
+            int f = (int) (position >>> segmentShift);
+            filers[f].putInt(fseek, v);
+            dirty(f);
+        } else {
+            for (int i = 0; i < 4; i++) {
+                putByte(position + i, (byte) (v >>> (24 - (i * 8))));
+            }
+        }
+    }
+
+    @Override
+    public void putLong(long position, long v) throws IOException {
+        ensure(position + 8);
+        long fseek = position & segmentMask;
+        if (fseek + 8 <= maxBufferSegmentSize) {
+            int f = (int) (position >>> segmentShift);
+            filers[f].putLong(fseek, v);
+            dirty(f);
+        } else {
+            for (int i = 0; i < 8; i++) {
+                putByte(position + i, (byte) (v >>> (56 - (i * 8))));
+            }
+        }
+    }
+
+    @Override
+    public void put(long position, byte[] b, int offset, int len) throws IOException {
+        ensure(position + len);
+        while (len > 0) {
+            long fseek = position & segmentMask;
+            int l = (int) Math.min(len, maxBufferSegmentSize - fseek);
+            int f = (int) (position >>> segmentShift);
+            filers[f].put(fseek, b, offset, l);
+            dirty(f);
+            position += l;
+            offset += l;
+            len -= l;
+        }
+    }
+
+    /**
+     * Marked after the write so a concurrent force() which clears the mark either sees the write or leaves the segment dirty.
+     */
+    private void dirty(int f) {
+        AtomicBoolean d = dirty[f];
+        if (!d.get()) {
+            d.set(true);
+        }
+    }
+
+    @Override
+    public void force() throws IOException {
+        for (int f = 0; f < filers.length; f++) {
+            if (filers[f] != null && dirty[f].compareAndSet(true, false)) {
+                ByteBuffer buffer = filers[f].buffer;
+                if (buffer instanceof MappedByteBuffer) {
+                    ((MappedByteBuffer) buffer).force();
+                }
+            }
+        }
+    }
+
+    /**
+     * Grows the backing segments so that endPosition is addressable without disturbing the file pointer.
+     */
+    private void ensure(long endPosition) throws IOException {
+        long lastPosition = endPosition - 1;
+        int f = (int) (lastPosition >>> segmentShift);
+        int lastFilerIndex = filers.length - 1;
+        if (f < lastFilerIndex || (f == lastFilerIndex && (lastPosition & segmentMask) < filers[f].length())) {
+            return;
+        }
+        long fp = getFilePointer();
+        position(endPosition);
+        position(fp);
+    }
+
     @Override
     public void close() throws IOException {
         for (ByteBufferBackedFiler filer : filers) {
@@ -260,4 +532,17 @@ public class AutoGrowingByteBufferBackedFiler implements Filer {
         }
     }
 
+    private static class Superseded {
+
+        private final byte[] key;
+        private final ByteBuffer buffer;
+        private final long generation;
+
+        Superseded(byte[] key, ByteBuffer buffer, long generation) {
+            this.key = key;
+            this.buffer = buffer;
+            this.generation = generation;
+        }
+    }
+
 }
@@ -0,0 +1,304 @@
+/*
+ * Copyright 2015 Jive Software.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jivesoftware.os.filer.io;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * A RandomAccessFiler for sequential consumers which reads ahead a window at a time and coalesces consecutive writes into one write behind buffer.
+ * Both buffers are keyed by absolute file position so seek() is free and getFilePointer() is always exact. Pending writes are pushed to the file by
+ * flush(), close(), setLength(), any read and any write which isn't contiguous with them. Not thread safe.
+ *
+ * @author jonathan.colt
+ */
+public class BufferedRandomAccessFiler implements Filer {
+
+    private final RandomAccessFile file;
+    private final String fileName;
+    private final byte[] readBuffer;
+    private final byte[] writeBuffer;
+    private final byte[] primitive = new byte[8];
+    private long readStart;
+    private int readLength;
+    private long writeStart;
+    private int writeLength;
+    private long fp;
+    private long fileFP; // where the underlying file's pointer is, -1 when unknown
+
+    /**
+     *
+     * @param file
+     * @param mode
+     * @param readAheadSize 0 reads straight through
+     * @param writeBehindSize 0 writes straight through
+     * @throws IOException
+     */
+    public BufferedRandomAccessFiler(File file, String mode, int readAheadSize, int writeBehindSize) throws IOException {
+        this.file = new RandomAccessFile(file, mode);
+        this.fileName = file.getName();
+        this.readBuffer = new byte[readAheadSize];
+        this.writeBuffer = new byte[writeBehindSize];
+        this.fileFP = 0;
+    }
+
+    @Override
+    public void seek(long position) throws IOException {
+        if (position < 0) {
+            throw new IOException("Negative seek offset " + position);
+        }
+        fp = position;
+    }
+
+    @Override
+    public long skip(long position) throws IOException {
+        if (position < 0 && -position > fp) {
+            throw new IOException("Skipped off the end of the beginning");
+        } else if (position > 0 && Long.MAX_VALUE - fp <= position) {
+            throw new IOException("Skipped off the end of the World");
+        }
+        fp += position;
+        return fp;
+    }
+
+    @Override
+    public long length() throws IOException {
+        return writeLength > 0 ? Math.max(file.length(), writeStart + writeLength) : file.length();
+    }
+
+    @Override
+    public void setLength(long len) throws IOException {
+        flushWrites();
+        file.setLength(len);
+        readLength = 0;
+        fileFP = -1;
+    }
+
+    @Override
+    public long getFilePointer() throws IOException {
+        return fp;
+    }
+
+    @Override
+    public void eof() throws IOException {
+        setLength(fp);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        flushWrites();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flushWrites();
+        } finally {
+            file.close();
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (fp >= readStart && fp < readStart + readLength && writeLength == 0) {
+            int b = readBuffer[(int) (fp - readStart)] & 0xFF;
+            fp++;
+            return b;
+        }
+        int read = read(primitive, 0, 1);
+        return read < 1 ? -1 : primitive[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b) throws IOException {
+        return read(b, 0, b.length);
+    }
+
+    @Override
+    public int read(byte[] b, int _offset, int _len) throws IOException {
+        if (_len == 0) {
+            return 0;
+        }
+        flushWrites();
+        int read = 0;
+        while (read < _len) {
+            if (fp >= readStart && fp < readStart + readLength) {
+                int l = (int) Math.min(_len - read, readStart + readLength - fp);
+                System.arraycopy(readBuffer, (int) (fp - readStart), b, _offset + read, l);
+                fp += l;
+                read += l;
+            } else if (_len - read >= readBuffer.length) {
+                int l = fileRead(fp, b, _offset + read, _len - read);
+                if (l < 0) {
+                    break;
+                }
+                fp += l;
+                read += l;
+            } else {
+                readLength = 0;
+                int l = fileRead(fp, readBuffer, 0, readBuffer.length);
+                if (l < 0) {
+                    break;
+                }
+                readStart = fp;
+                readLength = l;
+            }
+        }
+        return read == 0 ? -1 : read;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        primitive[0] = (byte) b;
+        write(primitive, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b) throws IOException {
+        write(b, 0, b.length);
+    }
+
+    @Override
+    public void write(byte[] b, int _offset, int _len) throws IOException {
+        if (readLength > 0 && fp < readStart + readLength && fp + _len > readStart) {
+            readLength = 0;
+        }
+        if (writeLength > 0 && (fp != writeStart + writeLength || _len > writeBuffer.length - writeLength)) {
+            flushWrites();
+        }
+        if (_len >= writeBuffer.length) {
+            fileWrite(fp, b, _offset, _len);
+        } else {
+            if (writeLength == 0) {
+                writeStart = fp;
+            }
+            System.arraycopy(b, _offset, writeBuffer, writeLength, _len);
+            writeLength += _len;
+        }
+        fp += _len;
+    }
+
+    @Override
+    public byte getByte(long position) throws IOException {
+        get(position, primitive, 0, 1);
+        return primitive[0];
+    }
+
+    @Override
+    public short getShort(long position) throws IOException {
+        get(position, primitive, 0, 2);
+        return (short) (((primitive[0] & 0xFF) << 8) | (primitive[1] & 0xFF));
+    }
+
+    @Override
+    public int getInt(long position) throws IOException {
+        get(position, primitive, 0, 4);
+        return FilerIO.bytesInt(primitive);
+    }
+
+    @Override
+    public long getLong(long position) throws IOException {
+        get(position, primitive, 0, 8);
+        return FilerIO.bytesLong(primitive);
+    }
+
+    @Override
+    public void get(long position, byte[] b, int _offset, int _len) throws IOException {
+        long restore = fp;
+        try {
+            fp = position;
+            int read = 0;
+            while (read < _len) {
+                int l = read(b, _offset + read, _len - read);
+                if (l < 0) {
+                    throw new EOFException("Failed to read " + _len + " bytes at position:" + position + " from " + fileName);
+                }
+                read += l;
+            }
+        } finally {
+            fp = restore;
+        }
+    }
+
+    @Override
+    public void putByte(long position, byte v) throws IOException {
+        primitive[0] = v;
+        put(position, primitive, 0, 1);
+    }
+
+    @Override
+    public void putShort(long position, short v) throws IOException {
+        primitive[0] = (byte) (v >>> 8);
+        primitive[1] = (byte) v;
+        put(position, primitive, 0, 2);
+    }
+
+    @Override
+    public void putInt(long position, int v) throws IOException {
+        FilerIO.intBytes(v, primitive, 0);
+        put(position, primitive, 0, 4);
+    }
+
+    @Override
+    public void putLong(long position, long v) throws IOException {
+        FilerIO.longBytes(v, primitive, 0);
+        put(position, primitive, 0, 8);
+    }
+
+    @Override
+    public void put(long position, byte[] b, int _offset, int _len) throws IOException {
+        long restore = fp;
+        try {
+            fp = position;
+            write(b, _offset, _len);
+        } finally {
+            fp = restore;
+        }
+    }
+
+    private void flushWrites() throws IOException {
+        if (writeLength > 0) {
+            int l = writeLength;
+            writeLength = 0;
+            fileWrite(writeStart, writeBuffer, 0, l);
+        }
+    }
+
+    private int fileRead(long position, byte[] b, int _offset, int _len) throws IOException {
+        if (fileFP != position) {
+            file.seek(position);
+        }
+        int read = file.read(b, _offset, _len);
+        fileFP = read < 0 ? -1 : position + read;
+        return read;
+    }
+
+    private void fileWrite(long position, byte[] b, int _offset, int _len) throws IOException {
+        if (fileFP != position) {
+            file.seek(position);
+        }
+        fileFP = -1;
+        file.write(b, _offset, _len);
+        fileFP = position + _len;
+    }
+
+    @Override
+    public String toString() {
+        return "BufferedRandomAccessFiler{" + "fileName=" + fileName + ", readAhead=" + readBuffer.length + ", writeBehind=" + writeBuffer.length + '}';
+    }
+}
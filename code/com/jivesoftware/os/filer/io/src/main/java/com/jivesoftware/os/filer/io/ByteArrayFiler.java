@@ -173,6 +173,70 @@ public class ByteArrayFiler implements Filer {
     public void flush() throws IOException {
     }
 
+    @Override
+    public byte getByte(long position) throws IOException {
+        return bytes[(int) position];
+    }
+
+    @Override
+    public short getShort(long position) throws IOException {
+        int i = (int) position;
+        return (short) ((bytes[i] << 8) | (bytes[i + 1] & 0xFF));
+    }
+
+    @Override
+    public int getInt(long position) throws IOException {
+        return FilerIO.bytesInt(bytes, (int) position);
+    }
+
+    @Override
+    public long getLong(long position) throws IOException {
+        return FilerIO.bytesLong(bytes, (int) position);
+    }
+
+    @Override
+    public void get(long position, byte[] b, int _offset, int _len) throws IOException {
+        System.arraycopy(bytes, (int) position, b, _offset, _len);
+    }
+
+    @Override
+    public void putByte(long position, byte v) throws IOException {
+        ensure(position, 1);
+        bytes[(int) position] = v;
+    }
+
+    @Override
+    public void putShort(long position, short v) throws IOException {
+        ensure(position, 2);
+        int i = (int) position;
+        bytes[i] = (byte) (v >>> 8);
+        bytes[i + 1] = (byte) v;
+    }
+
+    @Override
+    public void putInt(long position, int v) throws IOException {
+        ensure(position, 4);
+        FilerIO.intBytes(v, bytes, (int) position);
+    }
+
+    @Override
+    public void putLong(long position, long v) throws IOException {
+        ensure(position, 8);
+        FilerIO.longBytes(v, bytes, (int) position);
+    }
+
+    @Override
+    public void put(long position, byte[] b, int _offset, int _len) throws IOException {
+        ensure(position, _len);
+        System.arraycopy(b, _offset, bytes, (int) position, _len);
+    }
+
+    private void ensure(long position, int len) {
+        if (position + len > bytes.length) {
+            bytes = grow(bytes, (int) (position + len - bytes.length) + (bytes.length * 2));
+        }
+    }
+
     private static byte[] trim(byte[] src, int count) {
         byte[] newSrc = new byte[count];
         System.arraycopy(src, 0, newSrc, 0, count);
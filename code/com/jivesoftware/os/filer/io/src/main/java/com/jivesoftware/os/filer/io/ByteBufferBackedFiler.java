@@ -15,7 +15,7 @@ import java.nio.ByteBuffer;
  *
  * @author jonathan.colt
  */
-public class ByteBufferBackedFiler implements Filer {
+public class ByteBufferBackedFiler implements TransferableFiler {
 
     final ByteBuffer buffer;
 
@@ -25,13 +25,12 @@ public class ByteBufferBackedFiler implements Filer {
 
     @Override
     public void seek(long position) throws IOException {
-        buffer.position((int) position); // what a pain! limited to an int!
+        buffer.position(index(position));
     }
 
     @Override
     public long skip(long position) throws IOException {
-        int p = buffer.position();
-        p += position;
+        int p = index(buffer.position() + position);
         buffer.position(p);
         return p;
     }
@@ -106,4 +105,87 @@ public class ByteBufferBackedFiler implements Filer {
         buffer.put(b, _offset, _len);
     }
 
+    @Override
+    public void write(ByteBuffer src) throws IOException {
+        buffer.put(src);
+    }
+
+    @Override
+    public long transferTo(TransferableFiler target, long maxBytes) throws IOException {
+        int remaining = buffer.remaining();
+        if (remaining == 0) {
+            return -1;
+        }
+        int count = (int) Math.min(maxBytes, remaining);
+        ByteBuffer src = buffer.duplicate();
+        src.limit(src.position() + count);
+        target.write(src);
+        buffer.position(buffer.position() + count);
+        return count;
+    }
+
+    @Override
+    public byte getByte(long position) throws IOException {
+        return buffer.get(index(position));
+    }
+
+    @Override
+    public short getShort(long position) throws IOException {
+        return buffer.getShort(index(position));
+    }
+
+    @Override
+    public int getInt(long position) throws IOException {
+        return buffer.getInt(index(position));
+    }
+
+    @Override
+    public long getLong(long position) throws IOException {
+        return buffer.getLong(index(position));
+    }
+
+    @Override
+    public void get(long position, byte[] b, int _offset, int _len) throws IOException {
+        ByteBuffer view = buffer.duplicate(); // leaves the shared position alone
+        view.position(index(position));
+        view.get(b, _offset, _len);
+    }
+
+    @Override
+    public void putByte(long position, byte v) throws IOException {
+        buffer.put(index(position), v);
+    }
+
+    @Override
+    public void putShort(long position, short v) throws IOException {
+        buffer.putShort(index(position), v);
+    }
+
+    @Override
+    public void putInt(long position, int v) throws IOException {
+        buffer.putInt(index(position), v);
+    }
+
+    @Override
+    public void putLong(long position, long v) throws IOException {
+        buffer.putLong(index(position), v);
+    }
+
+    @Override
+    public void put(long position, byte[] b, int _offset, int _len) throws IOException {
+        ByteBuffer view = buffer.duplicate(); // leaves the shared position alone
+        view.position(index(position));
+        view.put(b, _offset, _len);
+    }
+
+    /**
+     * A single ByteBuffer is int addressed so anything beyond that needs a segmented filer like AutoGrowingByteBufferBackedFiler.
+     */
+    private static int index(long position) throws IOException {
+        if (position < 0 || position > Integer.MAX_VALUE) {
+            throw new IOException("Position " + position + " is not addressable by a single ByteBuffer.");
+        }
+        return (int) position;
+    }
+
 }
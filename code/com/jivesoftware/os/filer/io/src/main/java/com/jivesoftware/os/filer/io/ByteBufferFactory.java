@@ -29,4 +29,13 @@ public interface ByteBufferFactory {
      */
     ByteBuffer reallocate(byte[] key, ByteBuffer oldBuffer, long newSize);
 
+    /**
+     * Called once a buffer previously handed out for key is no longer referenced by anyone so that implementations can free it eagerly rather than waiting on
+     * the GC.
+     *
+     * @param key
+     * @param buffer never touched again by the caller
+     */
+    void release(byte[] key, ByteBuffer buffer);
+
 }
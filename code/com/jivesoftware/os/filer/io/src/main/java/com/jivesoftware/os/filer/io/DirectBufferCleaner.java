@@ -1,5 +1,6 @@
 package com.jivesoftware.os.filer.io;
 
+import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.nio.ByteBuffer;
@@ -14,6 +15,8 @@ public class DirectBufferCleaner {
     private static final Class<?> cleanerClass;
     private static final Method cleanMethod;
     private static final boolean available;
+    private static final Object unsafe;
+    private static final Method invokeCleanerMethod;
 
     static {
         Class<?> _directBufferClass = null;
@@ -21,6 +24,8 @@ public class DirectBufferCleaner {
         Class<?> _cleanerClass = null;
         Method _cleanMethod = null;
         boolean _available = false;
+        Object _unsafe = null;
+        Method _invokeCleanerMethod = null;
         try {
             _directBufferClass = Class.forName("sun.nio.ch.DirectBuffer");
             _directBufferCleanerMethod = _directBufferClass.getMethod("cleaner");
@@ -28,14 +33,35 @@ public class DirectBufferCleaner {
             _cleanMethod = _cleanerClass.getMethod("clean");
             _available = true;
         } catch (ClassNotFoundException | NoSuchMethodException | SecurityException e) {
-            System.out.println("Failed to reflect direct buffer cleaner, these methods will be unavailable");
-            e.printStackTrace();
+            // sun.misc.Cleaner is gone as of java 9 which instead exposes Unsafe.invokeCleaner(ByteBuffer)
+            try {
+                Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+                theUnsafe.setAccessible(true);
+                _unsafe = theUnsafe.get(null);
+                _invokeCleanerMethod = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            } catch (ClassNotFoundException | NoSuchFieldException | NoSuchMethodException | SecurityException | IllegalAccessException e2) {
+                System.out.println("Failed to reflect direct buffer cleaner, these methods will be unavailable");
+                e.printStackTrace();
+                _unsafe = null;
+                _invokeCleanerMethod = null;
+            }
         }
         directBufferClass = _directBufferClass;
         directBufferCleanerMethod = _directBufferCleanerMethod;
         cleanerClass = _cleanerClass;
         cleanMethod = _cleanMethod;
         available = _available;
+        unsafe = _unsafe;
+        invokeCleanerMethod = _invokeCleanerMethod;
+    }
+
+    /**
+     *
+     * @return true if clean() is able to free direct and mapped buffers on this jvm
+     */
+    static public boolean isAvailable() {
+        return available || invokeCleanerMethod != null;
     }
 
     static public void clean(ByteBuffer bb) {
@@ -47,6 +73,13 @@ public class DirectBufferCleaner {
                 System.out.println("Failed to clean buffer");
                 e.printStackTrace();
             }
+        } else if (invokeCleanerMethod != null && bb.isDirect()) {
+            try {
+                invokeCleanerMethod.invoke(unsafe, bb);
+            } catch (IllegalAccessException | IllegalArgumentException | InvocationTargetException e) {
+                System.out.println("Failed to clean buffer");
+                e.printStackTrace();
+            }
         }
     }
 
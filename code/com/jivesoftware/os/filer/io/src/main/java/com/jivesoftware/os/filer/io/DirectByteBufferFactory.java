@@ -38,6 +38,11 @@ public class DirectByteBufferFactory implements ByteBufferFactory {
         return newBuffer;
     }
 
+    @Override
+    public void release(byte[] key, ByteBuffer buffer) {
+        DirectBufferCleaner.clean(buffer);
+    }
+
     @Override
     public boolean exists(byte[] key) {
         return false;
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2015 Jive Software.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jivesoftware.os.filer.io;
+
+import java.io.IOException;
+
+/**
+ * A filer which can hand out duplicates that share the same backing storage but have their own file pointer. This is what StripedFiler needs from its root.
+ *
+ * @author jonathan.colt
+ */
+public interface DuplicatableFiler extends TransferableFiler {
+
+    /**
+     *
+     * @param startFP
+     * @param endFP
+     * @return a duplicate which is only required to address startFP thru endFP
+     */
+    DuplicatableFiler duplicate(long startFP, long endFP);
+
+    /**
+     *
+     * @param current a previous duplicate of this filer
+     * @return a duplicate which reuses what it can from current and picks up anything this filer has grown since
+     */
+    DuplicatableFiler duplicateNew(DuplicatableFiler current);
+
+    /**
+     *
+     * @return
+     */
+    DuplicatableFiler duplicateAll();
+
+    /**
+     *
+     * @return true if the backing storage already exists
+     */
+    boolean exists();
+
+    /**
+     *
+     * @return changes whenever this filer swaps out storage a duplicate may reference, e.g. by growing or unmapping a segment. A duplicate reports the
+     * generation of the filer it was taken from at the time it was taken. Must be safe to call without holding the lock the filer grows under.
+     */
+    long generation();
+
+    /**
+     * Hands back whatever this filer has swapped out which can no longer be reached by any duplicate, e.g. smaller mappings of a grown segment.
+     *
+     * @param oldestGeneration generation of the oldest duplicate still in use or Long.MAX_VALUE if there are none
+     * @throws IOException
+     */
+    void reclaim(long oldestGeneration) throws IOException;
+
+    /**
+     * Unlike flush() this returns only once everything written so far, through this filer or any of its duplicates, is durable.
+     *
+     * @throws IOException
+     */
+    void force() throws IOException;
+}
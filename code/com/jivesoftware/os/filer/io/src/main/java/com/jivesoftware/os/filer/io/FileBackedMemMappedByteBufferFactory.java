@@ -6,12 +6,21 @@ import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import org.apache.commons.io.Charsets;
 
 /**
  * TODO this implementation of ByteBufferFactory is inherently unsafe because its allocate() method is only capable of growing an existing buffer rather than
  * handing out a new one. Eventually we need to extend ByteBufferFactory to formalize notions of create(), open(), copy(), resize().
  *
+ * The most recent mapping for each key is tracked as live. Mapping a key again supersedes the previous mapping which stays mapped until release() unmaps it,
+ * which keeps virtual memory proportional to the data rather than to however many times a segment has been grown.
+ *
  * @author jonathan.colt
  */
 public class FileBackedMemMappedByteBufferFactory implements ByteBufferFactory {
@@ -19,10 +28,22 @@ public class FileBackedMemMappedByteBufferFactory implements ByteBufferFactory {
     private final String prefix;
     private final int directoryOffset;
     private final File[] directories;
+    private final Preallocation preallocation;
+
+    private final Map<String, ByteBuffer> live = new ConcurrentHashMap<>();
+    private final Set<ByteBuffer> superseded = Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<ByteBuffer, Boolean>()));
+    private final AtomicLong mappedCount = new AtomicLong();
+    private final AtomicLong mappedBytes = new AtomicLong();
+    private final AtomicLong supersededBytes = new AtomicLong();
 
     public FileBackedMemMappedByteBufferFactory(String prefix, int directoryOffset, File... directories) {
+        this(prefix, directoryOffset, Preallocation.NONE, directories);
+    }
+
+    public FileBackedMemMappedByteBufferFactory(String prefix, int directoryOffset, Preallocation preallocation, File... directories) {
         this.prefix = prefix;
         this.directoryOffset = directoryOffset;
+        this.preallocation = preallocation;
         this.directories = directories;
     }
 
@@ -39,7 +60,7 @@ public class FileBackedMemMappedByteBufferFactory implements ByteBufferFactory {
             try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
                 raf.seek(0);
                 try (FileChannel channel = raf.getChannel()) {
-                    return channel.map(FileChannel.MapMode.READ_WRITE, 0, (int) channel.size());
+                    return mapped(key, channel.map(FileChannel.MapMode.READ_WRITE, 0, (int) channel.size()));
                 }
             }
         } catch (IOException e) {
@@ -67,12 +88,11 @@ public class FileBackedMemMappedByteBufferFactory implements ByteBufferFactory {
             File file = new File(directory, prefix + "-" + name);
             try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
                 if (length > raf.length()) {
-                    raf.seek(length - 1);
-                    raf.write(0);
+                    preallocation.extend(raf, preallocation.lengthFor(length));
                 }
                 raf.seek(0);
                 try (FileChannel channel = raf.getChannel()) {
-                    return channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+                    return mapped(name, channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size()));
                 }
             }
         } catch (IOException e) {
@@ -86,6 +106,81 @@ public class FileBackedMemMappedByteBufferFactory implements ByteBufferFactory {
         return allocate(key, newSize);
     }
 
+    /**
+     * Forces the file behind key to disk without mapping it, for data written through a mapping which has since been released.
+     *
+     * @param key
+     * @throws IOException
+     */
+    public void force(byte[] key) throws IOException {
+        String name = new String(key, Charsets.UTF_8);
+        File file = new File(getDirectory(name), prefix + "-" + name);
+        if (file.exists()) {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.getChannel().force(false);
+            }
+        }
+    }
+
+    /**
+     * Unmaps the buffer. The caller guarantees neither the buffer nor any duplicate or slice of it will be touched again.
+     */
+    @Override
+    public void release(byte[] key, ByteBuffer buffer) {
+        String name = new String(key, Charsets.UTF_8);
+        if (superseded.remove(buffer)) {
+            supersededBytes.addAndGet(-buffer.capacity());
+        } else if (!live.remove(name, buffer)) {
+            return; // not ours or already released
+        }
+        mappedCount.decrementAndGet();
+        mappedBytes.addAndGet(-buffer.capacity());
+        DirectBufferCleaner.clean(buffer);
+    }
+
+    /**
+     *
+     * @return number of mappings which have not been released, including superseded ones
+     */
+    public long mappedCount() {
+        return mappedCount.get();
+    }
+
+    /**
+     *
+     * @return bytes of address space held by mappings which have not been released, including superseded ones
+     */
+    public long mappedBytes() {
+        return mappedBytes.get();
+    }
+
+    /**
+     *
+     * @return number of mappings which have been replaced by a newer mapping of the same key but are still awaiting release
+     */
+    public long supersededCount() {
+        return superseded.size();
+    }
+
+    /**
+     *
+     * @return bytes of address space held by superseded mappings which are still awaiting release
+     */
+    public long supersededBytes() {
+        return supersededBytes.get();
+    }
+
+    private MappedByteBuffer mapped(String key, MappedByteBuffer buffer) {
+        mappedCount.incrementAndGet();
+        mappedBytes.addAndGet(buffer.capacity());
+        ByteBuffer previous = live.put(key, buffer);
+        if (previous != null) {
+            superseded.add(previous);
+            supersededBytes.addAndGet(previous.capacity());
+        }
+        return buffer;
+    }
+
     private void ensureDirectory(File directory) {
         if (!directory.exists()) {
             if (!directory.mkdirs()) {
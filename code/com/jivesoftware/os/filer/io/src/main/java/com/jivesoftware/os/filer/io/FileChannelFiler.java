@@ -0,0 +1,320 @@
+/*
+ * Copyright 2015 Jive Software.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jivesoftware.os.filer.io;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A Filer which uses positional FileChannel reads and writes (pread/pwrite) instead of memory mapping the file. Duplicates share the channel and the optional
+ * page cache but keep their own file pointer, which gives StripedFiler the same semantics it has over AutoGrowingByteBufferBackedFiler without the file having
+ * to fit in the address space.
+ *
+ * @author jonathan.colt
+ */
+public class FileChannelFiler implements DuplicatableFiler {
+
+    private final File file;
+    private final FileChannel channel;
+    private final FileChannelPageCache pageCache;
+    private final boolean owner;
+    private final byte[] primitive = new byte[8];
+    private final ByteBuffer primitiveBuffer = ByteBuffer.wrap(primitive);
+    private long fp;
+
+    /**
+     *
+     * @param file
+     * @param pageCache nullable in which case every read goes to the channel
+     * @throws IOException
+     */
+    public FileChannelFiler(File file, FileChannelPageCache pageCache) throws IOException {
+        this(file, new RandomAccessFile(file, "rw").getChannel(), pageCache, true);
+    }
+
+    private FileChannelFiler(File file, FileChannel channel, FileChannelPageCache pageCache, boolean owner) {
+        this.file = file;
+        this.channel = channel;
+        this.pageCache = pageCache;
+        this.owner = owner;
+    }
+
+    @Override
+    public FileChannelFiler duplicate(long startFP, long endFP) {
+        return new FileChannelFiler(file, channel, pageCache, false);
+    }
+
+    @Override
+    public FileChannelFiler duplicateNew(DuplicatableFiler current) {
+        return (FileChannelFiler) current;
+    }
+
+    @Override
+    public FileChannelFiler duplicateAll() {
+        return new FileChannelFiler(file, channel, pageCache, false);
+    }
+
+    @Override
+    public boolean exists() {
+        return file.exists();
+    }
+
+    @Override
+    public long generation() {
+        return 0;
+    }
+
+    @Override
+    public void reclaim(long oldestGeneration) throws IOException {
+    }
+
+    @Override
+    public void seek(long position) throws IOException {
+        fp = position;
+    }
+
+    @Override
+    public long skip(long position) throws IOException {
+        fp += position;
+        return fp;
+    }
+
+    @Override
+    public long length() throws IOException {
+        return channel.size();
+    }
+
+    @Override
+    public void setLength(long len) throws IOException {
+        long size = channel.size();
+        if (len < size) {
+            channel.truncate(len);
+            if (pageCache != null) {
+                pageCache.invalidateAll();
+            }
+        } else if (len > size) {
+            putByte(len - 1, (byte) 0);
+        }
+    }
+
+    @Override
+    public long getFilePointer() throws IOException {
+        return fp;
+    }
+
+    @Override
+    public void eof() throws IOException {
+        fp = channel.size();
+    }
+
+    @Override
+    public void flush() throws IOException {
+    }
+
+    @Override
+    public void force() throws IOException {
+        channel.force(false);
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (fp >= channel.size()) {
+            return -1;
+        }
+        int b = getByte(fp) & 0xFF;
+        fp++;
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b) throws IOException {
+        return read(b, 0, b.length);
+    }
+
+    @Override
+    public int read(byte[] b, int _offset, int _len) throws IOException {
+        long remaining = channel.size() - fp;
+        if (remaining <= 0) {
+            return -1;
+        }
+        int count = (int) Math.min(_len, remaining);
+        get(fp, b, _offset, count);
+        fp += count;
+        return count;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        putByte(fp, (byte) b);
+        fp++;
+    }
+
+    @Override
+    public void write(byte[] b) throws IOException {
+        write(b, 0, b.length);
+    }
+
+    @Override
+    public void write(byte[] b, int _offset, int _len) throws IOException {
+        put(fp, b, _offset, _len);
+        fp += _len;
+    }
+
+    @Override
+    public void write(ByteBuffer src) throws IOException {
+        long position = fp;
+        int len = src.remaining();
+        ByteBuffer written = (pageCache != null) ? src.duplicate() : null;
+        while (src.hasRemaining()) {
+            channel.write(src, position + (len - src.remaining()));
+        }
+        if (pageCache != null) {
+            pageCache.written(position, written);
+        }
+        fp += len;
+    }
+
+    @Override
+    public long transferTo(TransferableFiler target, long maxBytes) throws IOException {
+        long len = Math.min(maxBytes, channel.size() - fp);
+        if (len <= 0) {
+            return maxBytes > 0 ? -1 : 0;
+        }
+        long transferred;
+        if (target instanceof FileChannelFiler) {
+            FileChannelFiler to = (FileChannelFiler) target;
+            // duplicates only ever use positional reads and writes so the target channel's own position is free for transferTo
+            synchronized (to.channel) {
+                to.channel.position(to.fp);
+                transferred = channel.transferTo(fp, len, to.channel);
+            }
+            if (to.pageCache != null) {
+                to.pageCache.invalidate(to.fp, transferred);
+            }
+            to.fp += transferred;
+        } else {
+            byte[] chunk = FilerIO.borrowCopyBuffer();
+            try {
+                transferred = Math.min(len, chunk.length);
+                get(fp, chunk, 0, (int) transferred);
+                target.write(ByteBuffer.wrap(chunk, 0, (int) transferred));
+            } finally {
+                FilerIO.returnCopyBuffer(chunk);
+            }
+        }
+        fp += transferred;
+        return transferred;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (owner) {
+            channel.close();
+        }
+    }
+
+    @Override
+    public byte getByte(long position) throws IOException {
+        get(position, primitive, 0, 1);
+        return primitive[0];
+    }
+
+    @Override
+    public short getShort(long position) throws IOException {
+        get(position, primitive, 0, 2);
+        return primitiveBuffer.getShort(0);
+    }
+
+    @Override
+    public int getInt(long position) throws IOException {
+        get(position, primitive, 0, 4);
+        return primitiveBuffer.getInt(0);
+    }
+
+    @Override
+    public long getLong(long position) throws IOException {
+        get(position, primitive, 0, 8);
+        return primitiveBuffer.getLong(0);
+    }
+
+    @Override
+    public void get(long position, byte[] b, int _offset, int _len) throws IOException {
+        if (pageCache != null) {
+            if (position + _len > channel.size()) {
+                throw new EOFException("Failed to read " + _len + " bytes at position:" + position + " from " + file);
+            }
+            pageCache.read(channel, position, b, _offset, _len);
+        } else {
+            ByteBuffer buffer = (b == primitive) ? primitiveBuffer : ByteBuffer.wrap(b);
+            buffer.limit(_offset + _len);
+            buffer.position(_offset);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + (buffer.position() - _offset)) == -1) {
+                    throw new EOFException("Failed to read " + _len + " bytes at position:" + position + " from " + file);
+                }
+            }
+            buffer.clear();
+        }
+    }
+
+    @Override
+    public void putByte(long position, byte v) throws IOException {
+        primitive[0] = v;
+        put(position, primitive, 0, 1);
+    }
+
+    @Override
+    public void putShort(long position, short v) throws IOException {
+        primitiveBuffer.putShort(0, v);
+        put(position, primitive, 0, 2);
+    }
+
+    @Override
+    public void putInt(long position, int v) throws IOException {
+        primitiveBuffer.putInt(0, v);
+        put(position, primitive, 0, 4);
+    }
+
+    @Override
+    public void putLong(long position, long v) throws IOException {
+        primitiveBuffer.putLong(0, v);
+        put(position, primitive, 0, 8);
+    }
+
+    @Override
+    public void put(long position, byte[] b, int _offset, int _len) throws IOException {
+        ByteBuffer buffer = (b == primitive) ? primitiveBuffer : ByteBuffer.wrap(b);
+        buffer.limit(_offset + _len);
+        buffer.position(_offset);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + (buffer.position() - _offset));
+        }
+        buffer.clear();
+        if (pageCache != null) {
+            pageCache.written(position, b, _offset, _len);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "FileChannelFiler{" + "file=" + file + ", fp=" + fp + '}';
+    }
+
+}
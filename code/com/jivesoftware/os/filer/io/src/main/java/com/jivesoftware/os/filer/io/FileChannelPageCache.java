@@ -0,0 +1,170 @@
+/*
+ * Copyright 2015 Jive Software.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jivesoftware.os.filer.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * A bounded, direct mapped, write through cache of file pages for a single FileChannel. Each slot is guarded by its own monitor so duplicates of a
+ * FileChannelFiler can share one cache across stripes.
+ *
+ * @author jonathan.colt
+ */
+public class FileChannelPageCache {
+
+    private final int pageSize;
+    private final int pageShift;
+    private final long pageMask;
+    private final Page[] pages;
+
+    /**
+     *
+     * @param pageSize rounded up to a power of 2
+     * @param numberOfPages
+     */
+    public FileChannelPageCache(int pageSize, int numberOfPages) {
+        this.pageSize = (int) FilerIO.chunkLength(FilerIO.chunkPower(pageSize, 0));
+        this.pageShift = Integer.numberOfTrailingZeros(this.pageSize);
+        this.pageMask = this.pageSize - 1;
+        this.pages = new Page[numberOfPages];
+        for (int i = 0; i < pages.length; i++) {
+            pages[i] = new Page(this.pageSize);
+        }
+    }
+
+    public long sizeInBytes() {
+        return (long) pageSize * pages.length;
+    }
+
+    void read(FileChannel channel, long position, byte[] b, int offset, int len) throws IOException {
+        while (len > 0) {
+            long pageId = position >>> pageShift;
+            int pageOffset = (int) (position & pageMask);
+            int l = Math.min(len, pageSize - pageOffset);
+            Page page = pages[(int) (pageId % pages.length)];
+            synchronized (page) {
+                if (page.id != pageId) {
+                    page.load(channel, pageId, pageShift);
+                }
+                System.arraycopy(page.bytes, pageOffset, b, offset, l);
+            }
+            position += l;
+            offset += l;
+            len -= l;
+        }
+    }
+
+    /**
+     * Must be called after the bytes have been written to the channel.
+     */
+    void written(long position, byte[] b, int offset, int len) {
+        while (len > 0) {
+            long pageId = position >>> pageShift;
+            int pageOffset = (int) (position & pageMask);
+            int l = Math.min(len, pageSize - pageOffset);
+            Page page = pages[(int) (pageId % pages.length)];
+            synchronized (page) {
+                if (page.id == pageId) {
+                    System.arraycopy(b, offset, page.bytes, pageOffset, l);
+                }
+            }
+            position += l;
+            offset += l;
+            len -= l;
+        }
+    }
+
+    /**
+     * Must be called after the bytes have been written to the channel. Consumes src.
+     */
+    void written(long position, ByteBuffer src) {
+        while (src.hasRemaining()) {
+            long pageId = position >>> pageShift;
+            int pageOffset = (int) (position & pageMask);
+            int l = Math.min(src.remaining(), pageSize - pageOffset);
+            Page page = pages[(int) (pageId % pages.length)];
+            synchronized (page) {
+                if (page.id == pageId) {
+                    ByteBuffer slice = src.duplicate();
+                    slice.limit(slice.position() + l);
+                    slice.get(page.bytes, pageOffset, l);
+                }
+            }
+            src.position(src.position() + l);
+            position += l;
+        }
+    }
+
+    /**
+     * For writes which bypassed written(), e.g. FileChannel.transferTo().
+     */
+    void invalidate(long position, long len) {
+        if (len <= 0) {
+            return;
+        }
+        long firstPageId = position >>> pageShift;
+        long lastPageId = (position + len - 1) >>> pageShift;
+        if (lastPageId - firstPageId >= pages.length) {
+            invalidateAll();
+            return;
+        }
+        for (long pageId = firstPageId; pageId <= lastPageId; pageId++) {
+            Page page = pages[(int) (pageId % pages.length)];
+            synchronized (page) {
+                if (page.id == pageId) {
+                    page.id = -1;
+                }
+            }
+        }
+    }
+
+    void invalidateAll() {
+        for (Page page : pages) {
+            synchronized (page) {
+                page.id = -1;
+            }
+        }
+    }
+
+    private static class Page {
+
+        private final byte[] bytes;
+        private final ByteBuffer buffer;
+        private long id = -1;
+
+        Page(int pageSize) {
+            this.bytes = new byte[pageSize];
+            this.buffer = ByteBuffer.wrap(bytes);
+        }
+
+        void load(FileChannel channel, long pageId, int pageShift) throws IOException {
+            id = -1;
+            buffer.clear();
+            long position = pageId << pageShift;
+            while (buffer.hasRemaining()) {
+                int read = channel.read(buffer, position + buffer.position());
+                if (read == -1) {
+                    break;
+                }
+            }
+            Arrays.fill(bytes, buffer.position(), bytes.length, (byte) 0);
+            id = pageId;
+        }
+    }
+}
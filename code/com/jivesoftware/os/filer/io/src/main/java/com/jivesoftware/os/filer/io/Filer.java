@@ -66,4 +66,98 @@ public interface Filer extends Readable, Writeable {
      */
     void flush() throws IOException;
 
+    /**
+     * Reads a byte at an absolute position. Does not move the file pointer.
+     *
+     * @param position
+     * @return
+     * @throws IOException
+     */
+    byte getByte(long position) throws IOException;
+
+    /**
+     * Reads a big endian short at an absolute position. Does not move the file pointer.
+     *
+     * @param position
+     * @return
+     * @throws IOException
+     */
+    short getShort(long position) throws IOException;
+
+    /**
+     * Reads a big endian int at an absolute position. Does not move the file pointer.
+     *
+     * @param position
+     * @return
+     * @throws IOException
+     */
+    int getInt(long position) throws IOException;
+
+    /**
+     * Reads a big endian long at an absolute position. Does not move the file pointer.
+     *
+     * @param position
+     * @return
+     * @throws IOException
+     */
+    long getLong(long position) throws IOException;
+
+    /**
+     * Fills the caller provided buffer from an absolute position. Does not move the file pointer.
+     *
+     * @param position
+     * @param b
+     * @param _offset
+     * @param _len
+     * @throws IOException
+     */
+    void get(long position, byte[] b, int _offset, int _len) throws IOException;
+
+    /**
+     * Writes a byte at an absolute position. Does not move the file pointer.
+     *
+     * @param position
+     * @param v
+     * @throws IOException
+     */
+    void putByte(long position, byte v) throws IOException;
+
+    /**
+     * Writes a big endian short at an absolute position. Does not move the file pointer.
+     *
+     * @param position
+     * @param v
+     * @throws IOException
+     */
+    void putShort(long position, short v) throws IOException;
+
+    /**
+     * Writes a big endian int at an absolute position. Does not move the file pointer.
+     *
+     * @param position
+     * @param v
+     * @throws IOException
+     */
+    void putInt(long position, int v) throws IOException;
+
+    /**
+     * Writes a big endian long at an absolute position. Does not move the file pointer.
+     *
+     * @param position
+     * @param v
+     * @throws IOException
+     */
+    void putLong(long position, long v) throws IOException;
+
+    /**
+     * Writes the caller provided buffer at an absolute position. Does not move the file pointer.
+     *
+     * @param position
+     * @param b
+     * @param _offset
+     * @param _len
+     * @throws IOException
+     */
+    void put(long position, byte[] b, int _offset, int _len) throws IOException;
+
 }
@@ -6,6 +6,8 @@ import java.io.DataOutput;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.charset.StandardCharsets;
 
 /**
@@ -14,7 +16,31 @@ import java.nio.charset.StandardCharsets;
  */
 public class FilerIO {
 
+    private static final int COPY_BUFFER_SIZE = 1024 * 1024; //1MB
+
+    private static final ThreadLocal<byte[]> copyBuffers = new ThreadLocal<byte[]>() {
+
+        @Override
+        protected byte[] initialValue() {
+            return new byte[COPY_BUFFER_SIZE];
+        }
+    };
+
+    /**
+     * Removed from the thread local while borrowed so a nested copy on the same thread gets a buffer of its own.
+     */
+    static byte[] borrowCopyBuffer() {
+        byte[] chunk = copyBuffers.get();
+        copyBuffers.remove();
+        return chunk;
+    }
+
+    static void returnCopyBuffer(byte[] chunk) {
+        copyBuffers.set(chunk);
+    }
+
     /**
+     * When both sides are TransferableFilers the bytes are moved buffer to buffer or channel to channel, otherwise they go thru a pooled byte[].
      *
      * @param _from
      * @param _to
@@ -23,43 +49,76 @@ public class FilerIO {
      * @throws Exception
      */
     public static long copy(Readable _from, Writeable _to, long _bufferSize) throws IOException {
+        if (_from instanceof TransferableFiler && _to instanceof TransferableFiler) {
+            return transfer((TransferableFiler) _from, (TransferableFiler) _to, Long.MAX_VALUE);
+        }
         long byteCount = _bufferSize;
         if (_bufferSize < 1) {
-            byteCount = 1024 * 1024; //1MB
-        }
-        byte[] chunk = new byte[(int) byteCount];
-        int bytesRead;
-        long size = 0;
-        while ((bytesRead = _from.read(chunk)) > -1) {
-            _to.write(chunk, 0, bytesRead);
-            size += bytesRead;
+            byteCount = COPY_BUFFER_SIZE;
+        }
+        boolean pooled = byteCount <= COPY_BUFFER_SIZE;
+        byte[] chunk = pooled ? borrowCopyBuffer() : new byte[(int) byteCount];
+        try {
+            int bytesRead;
+            long size = 0;
+            while ((bytesRead = _from.read(chunk, 0, (int) byteCount)) > -1) {
+                _to.write(chunk, 0, bytesRead);
+                size += bytesRead;
+            }
+            return size;
+        } finally {
+            if (pooled) {
+                returnCopyBuffer(chunk);
+            }
         }
-        return size;
     }
 
     /**
+     * When both sides are TransferableFilers the bytes are moved buffer to buffer or channel to channel, otherwise they go thru a pooled byte[].
      *
      * @param _from
      * @param _to
+     * @param _maxBytes
      * @param _bufferSize
      * @return
      * @throws Exception
      */
     public static long copy(Readable _from, Writeable _to, long _maxBytes, long _bufferSize) throws IOException {
+        if (_from instanceof TransferableFiler && _to instanceof TransferableFiler) {
+            return transfer((TransferableFiler) _from, (TransferableFiler) _to, _maxBytes);
+        }
         long byteCount = _bufferSize;
         if (_bufferSize < 1) {
-            byteCount = 1024 * 1024; //1MB
+            byteCount = COPY_BUFFER_SIZE;
         }
         byteCount = Math.min(byteCount, _maxBytes);
 
-        byte[] chunk = new byte[(int) byteCount];
-        int remaining = (int) _maxBytes;
-        int bytesRead;
+        boolean pooled = byteCount <= COPY_BUFFER_SIZE;
+        byte[] chunk = pooled ? borrowCopyBuffer() : new byte[(int) byteCount];
+        try {
+            long remaining = _maxBytes;
+            int bytesRead;
+            long size = 0;
+            while (remaining > 0 && (bytesRead = _from.read(chunk, 0, (int) Math.min(remaining, byteCount))) > -1) {
+                _to.write(chunk, 0, bytesRead);
+                size += bytesRead;
+                remaining -= bytesRead;
+            }
+            return size;
+        } finally {
+            if (pooled) {
+                returnCopyBuffer(chunk);
+            }
+        }
+    }
+
+    private static long transfer(TransferableFiler _from, TransferableFiler _to, long _maxBytes) throws IOException {
+        long remaining = _maxBytes;
         long size = 0;
-        while (remaining > 0 && (bytesRead = _from.read(chunk, 0, (int) Math.min(remaining, byteCount))) > -1) {
-            _to.write(chunk, 0, bytesRead);
-            size += bytesRead;
-            remaining -= bytesRead;
+        long transferred;
+        while (remaining > 0 && (transferred = _from.transferTo(_to, remaining)) > 0) {
+            size += transferred;
+            remaining -= transferred;
         }
         return size;
     }
@@ -412,14 +471,12 @@ public class FilerIO {
         if (len < 0) {
             return;
         }
-        int index = 0;
-        byte[] buffer = new byte[len * 2]; //peformance hack
-        for (int i = 0; i < len; i++) {
-            int v = array[i];
-            buffer[index++] = (byte) (v >>> 8);
-            buffer[index++] = (byte) v;
+        ByteBuffer view = view(_filer, len * 2);
+        ByteBuffer bytes = (view != null) ? view : ByteBuffer.allocate(len * 2);
+        bytes.asCharBuffer().put(array);
+        if (view == null) {
+            _filer.write(bytes.array());
         }
-        _filer.write(buffer);
     }
 
     /**
@@ -441,14 +498,12 @@ public class FilerIO {
         if (len < 0) {
             return;
         }
-        int index = 0;
-        byte[] buffer = new byte[len * 2]; //peformance hack
-        for (int i = 0; i < len; i++) {
-            int v = array[i];
-            buffer[index++] = (byte) (v >>> 8);
-            buffer[index++] = (byte) v;
+        ByteBuffer view = view(_filer, len * 2);
+        ByteBuffer bytes = (view != null) ? view : ByteBuffer.allocate(len * 2);
+        bytes.asShortBuffer().put(array);
+        if (view == null) {
+            _filer.write(bytes.array());
         }
-        _filer.write(buffer);
     }
 
     /**
@@ -470,16 +525,12 @@ public class FilerIO {
         if (len < 0) {
             return;
         }
-        int index = 0;
-        byte[] buffer = new byte[len * 4]; //peformance hack
-        for (int i = 0; i < len; i++) {
-            int v = array[i];
-            buffer[index++] = (byte) (v >>> 24);
-            buffer[index++] = (byte) (v >>> 16);
-            buffer[index++] = (byte) (v >>> 8);
-            buffer[index++] = (byte) v;
+        ByteBuffer view = view(_filer, len * 4);
+        ByteBuffer bytes = (view != null) ? view : ByteBuffer.allocate(len * 4);
+        bytes.asIntBuffer().put(array);
+        if (view == null) {
+            _filer.write(bytes.array());
         }
-        _filer.write(buffer);
     }
 
     /**
@@ -534,18 +585,11 @@ public class FilerIO {
         if (len < 0) {
             return;
         }
-        for (int i = 0; i < len; i++) {
-            long v = array[i];
-            _filer.write(new byte[]{
-                (byte) (v >>> 56),
-                (byte) (v >>> 48),
-                (byte) (v >>> 40),
-                (byte) (v >>> 32),
-                (byte) (v >>> 24),
-                (byte) (v >>> 16),
-                (byte) (v >>> 8),
-                (byte) v
-            });
+        ByteBuffer view = view(_filer, len * 8);
+        ByteBuffer bytes = (view != null) ? view : ByteBuffer.allocate(len * 8);
+        bytes.asLongBuffer().put(array);
+        if (view == null) {
+            _filer.write(bytes.array());
         }
     }
 
@@ -564,18 +608,11 @@ public class FilerIO {
         if (_len < 0) {
             return;
         }
-        for (int i = _start; i < _start + _len; i++) {
-            long v = array[i];
-            _filer.write(new byte[]{
-                (byte) (v >>> 56),
-                (byte) (v >>> 48),
-                (byte) (v >>> 40),
-                (byte) (v >>> 32),
-                (byte) (v >>> 24),
-                (byte) (v >>> 16),
-                (byte) (v >>> 8),
-                (byte) v
-            });
+        ByteBuffer view = view(_filer, _len * 8);
+        ByteBuffer bytes = (view != null) ? view : ByteBuffer.allocate(_len * 8);
+        bytes.asLongBuffer().put(array, _start, _len);
+        if (view == null) {
+            _filer.write(bytes.array());
         }
     }
 
@@ -598,14 +635,11 @@ public class FilerIO {
         if (len < 0) {
             return;
         }
-        for (int i = 0; i < len; i++) {
-            int v = Float.floatToIntBits(array[i]);
-            _filer.write(new byte[]{
-                (byte) (v >>> 24),
-                (byte) (v >>> 16),
-                (byte) (v >>> 8),
-                (byte) v
-            });
+        ByteBuffer view = view(_filer, len * 4);
+        ByteBuffer bytes = (view != null) ? view : ByteBuffer.allocate(len * 4);
+        bytes.asFloatBuffer().put(array);
+        if (view == null) {
+            _filer.write(bytes.array());
         }
     }
 
@@ -628,19 +662,31 @@ public class FilerIO {
         if (len < 0) {
             return;
         }
-        for (int i = 0; i < len; i++) {
-            long v = Double.doubleToLongBits(array[i]);
-            _filer.write(new byte[]{
-                (byte) (v >>> 56),
-                (byte) (v >>> 48),
-                (byte) (v >>> 40),
-                (byte) (v >>> 32),
-                (byte) (v >>> 24),
-                (byte) (v >>> 16),
-                (byte) (v >>> 8),
-                (byte) v
-            });
+        ByteBuffer view = view(_filer, len * 8);
+        ByteBuffer bytes = (view != null) ? view : ByteBuffer.allocate(len * 8);
+        bytes.asDoubleBuffer().put(array);
+        if (view == null) {
+            _filer.write(bytes.array());
+        }
+    }
+
+    /**
+     * Primitive arrays are bulk copied thru a big endian view of the ByteBuffer when the filer sits directly on one and has room, otherwise they go
+     * thru a single byte[].
+     *
+     * @return a view of the next length bytes of _filer, which has already been advanced past them, or null
+     */
+    private static ByteBuffer view(Object _filer, int length) {
+        if (_filer instanceof ByteBufferBackedFiler) {
+            ByteBuffer buffer = ((ByteBufferBackedFiler) _filer).buffer;
+            if (buffer.remaining() >= length) {
+                ByteBuffer view = buffer.duplicate().order(ByteOrder.BIG_ENDIAN);
+                view.limit(view.position() + length);
+                buffer.position(buffer.position() + length);
+                return view;
+            }
         }
+        return null;
     }
 
     /**
@@ -767,17 +813,13 @@ public class FilerIO {
             return new char[0];
         }
         char[] array = new char[len];
-        byte[] bytes = new byte[2 * len];
-        _filer.read(bytes);
-        int j;
-        for (int i = 0; i < len; i++) {
-            j = i * 2;
-            char v = 0;
-            v |= (bytes[j + 0] & 0xFF);
-            v <<= 8;
-            v |= (bytes[j + 1] & 0xFF);
-            array[i] = v;
+        ByteBuffer bytes = view(_filer, 2 * len);
+        if (bytes == null) {
+            byte[] read = new byte[2 * len];
+            _filer.read(read);
+            bytes = ByteBuffer.wrap(read);
         }
+        bytes.asCharBuffer().get(array);
         return array;
     }
 
@@ -798,17 +840,13 @@ public class FilerIO {
             return new short[0];
         }
         short[] array = new short[len];
-        byte[] bytes = new byte[2 * len];
-        _filer.read(bytes);
-        int j;
-        for (int i = 0; i < len; i++) {
-            j = i * 2;
-            short v = 0;
-            v |= (bytes[j + 0] & 0xFF);
-            v <<= 8;
-            v |= (bytes[j + 1] & 0xFF);
-            array[i] = v;
+        ByteBuffer bytes = view(_filer, 2 * len);
+        if (bytes == null) {
+            byte[] read = new byte[2 * len];
+            _filer.read(read);
+            bytes = ByteBuffer.wrap(read);
         }
+        bytes.asShortBuffer().get(array);
         return array;
     }
 
@@ -828,21 +866,13 @@ public class FilerIO {
             return new int[0];
         }
         int[] array = new int[len];
-        byte[] bytes = new byte[4 * len];
-        _filer.read(bytes);
-        int j;
-        for (int i = 0; i < len; i++) {
-            j = i * 4;
-            int v = 0;
-            v |= (bytes[j + 0] & 0xFF);
-            v <<= 8;
-            v |= (bytes[j + 1] & 0xFF);
-            v <<= 8;
-            v |= (bytes[j + 2] & 0xFF);
-            v <<= 8;
-            v |= (bytes[j + 3] & 0xFF);
-            array[i] = v;
+        ByteBuffer bytes = view(_filer, 4 * len);
+        if (bytes == null) {
+            byte[] read = new byte[4 * len];
+            _filer.read(read);
+            bytes = ByteBuffer.wrap(read);
         }
+        bytes.asIntBuffer().get(array);
         return array;
     }
 
@@ -885,29 +915,13 @@ public class FilerIO {
             return new long[0];
         }
         long[] array = new long[len];
-        byte[] bytes = new byte[8 * len];
-        _filer.read(bytes);
-        int j;
-        for (int i = 0; i < len; i++) {
-            j = i * 8;
-            long v = 0;
-            v |= (bytes[j + 0] & 0xFF);
-            v <<= 8;
-            v |= (bytes[j + 1] & 0xFF);
-            v <<= 8;
-            v |= (bytes[j + 2] & 0xFF);
-            v <<= 8;
-            v |= (bytes[j + 3] & 0xFF);
-            v <<= 8;
-            v |= (bytes[j + 4] & 0xFF);
-            v <<= 8;
-            v |= (bytes[j + 5] & 0xFF);
-            v <<= 8;
-            v |= (bytes[j + 6] & 0xFF);
-            v <<= 8;
-            v |= (bytes[j + 7] & 0xFF);
-            array[i] = v;
+        ByteBuffer bytes = view(_filer, 8 * len);
+        if (bytes == null) {
+            byte[] read = new byte[8 * len];
+            _filer.read(read);
+            bytes = ByteBuffer.wrap(read);
         }
+        bytes.asLongBuffer().get(array);
         return array;
     }
 
@@ -928,21 +942,13 @@ public class FilerIO {
             return new float[0];
         }
         float[] array = new float[len];
-        byte[] bytes = new byte[4 * len];
-        _filer.read(bytes);
-        int j;
-        for (int i = 0; i < len; i++) {
-            j = i * 4;
-            int v = 0;
-            v |= (bytes[j + 0] & 0xFF);
-            v <<= 8;
-            v |= (bytes[j + 1] & 0xFF);
-            v <<= 8;
-            v |= (bytes[j + 2] & 0xFF);
-            v <<= 8;
-            v |= (bytes[j + 3] & 0xFF);
-            array[i] = Float.intBitsToFloat(v);
+        ByteBuffer bytes = view(_filer, 4 * len);
+        if (bytes == null) {
+            byte[] read = new byte[4 * len];
+            _filer.read(read);
+            bytes = ByteBuffer.wrap(read);
         }
+        bytes.asFloatBuffer().get(array);
         return array;
     }
 
@@ -963,29 +969,13 @@ public class FilerIO {
             return new double[0];
         }
         double[] array = new double[len];
-        byte[] bytes = new byte[8 * len];
-        _filer.read(bytes);
-        int j;
-        for (int i = 0; i < len; i++) {
-            j = i * 8;
-            long v = 0;
-            v |= (bytes[j + 0] & 0xFF);
-            v <<= 8;
-            v |= (bytes[j + 1] & 0xFF);
-            v <<= 8;
-            v |= (bytes[j + 2] & 0xFF);
-            v <<= 8;
-            v |= (bytes[j + 3] & 0xFF);
-            v <<= 8;
-            v |= (bytes[j + 4] & 0xFF);
-            v <<= 8;
-            v |= (bytes[j + 5] & 0xFF);
-            v <<= 8;
-            v |= (bytes[j + 6] & 0xFF);
-            v <<= 8;
-            v |= (bytes[j + 7] & 0xFF);
-            array[i] = Double.longBitsToDouble(v);
+        ByteBuffer bytes = view(_filer, 8 * len);
+        if (bytes == null) {
+            byte[] read = new byte[8 * len];
+            _filer.read(read);
+            bytes = ByteBuffer.wrap(read);
         }
+        bytes.asDoubleBuffer().get(array);
         return array;
     }
 
@@ -1714,6 +1704,224 @@ public class FilerIO {
         return Double.longBitsToDouble(bytesLong(_bytes, _offset));
     }
 
+    /**
+     * Maps signed values onto unsigned ones so small negatives stay small when varint encoded, i.e. 0, -1, 1, -2 become 0, 1, 2, 3.
+     *
+     * @param v
+     * @return
+     */
+    public static long zigZag(long v) {
+        return (v << 1) ^ (v >> 63);
+    }
+
+    /**
+     *
+     * @param v
+     * @return
+     */
+    public static long unZigZag(long v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    /**
+     *
+     * @param v
+     * @return how many bytes writeVarLong() will use for v, between 1 and 10
+     */
+    public static int varLongLength(long v) {
+        int length = 1;
+        while ((v & ~0x7FL) != 0) {
+            v >>>= 7;
+            length++;
+        }
+        return length;
+    }
+
+    /**
+     * Little endian base 128, seven bits per byte with the high bit set on every byte but the last. Negative values always take 10 bytes so zigZag()
+     * them first if they are expected.
+     *
+     * @param _filer
+     * @param v
+     * @param fieldName
+     * @throws IOException
+     */
+    public static void writeVarLong(Writeable _filer, long v, String fieldName) throws IOException {
+        while ((v & ~0x7FL) != 0) {
+            _filer.write((int) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        _filer.write((int) v);
+    }
+
+    /**
+     *
+     * @param _filer
+     * @param fieldName
+     * @return
+     * @throws IOException
+     */
+    public static long readVarLong(Readable _filer, String fieldName) throws IOException {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = _filer.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            v |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return v;
+            }
+        }
+        throw new IOException("Malformed varint for field:" + fieldName);
+    }
+
+    /**
+     *
+     * @param _filer
+     * @param v
+     * @param fieldName
+     * @throws IOException
+     */
+    public static void writeZigZagLong(Writeable _filer, long v, String fieldName) throws IOException {
+        writeVarLong(_filer, zigZag(v), fieldName);
+    }
+
+    /**
+     *
+     * @param _filer
+     * @param fieldName
+     * @return
+     * @throws IOException
+     */
+    public static long readZigZagLong(Readable _filer, String fieldName) throws IOException {
+        return unZigZag(readVarLong(_filer, fieldName));
+    }
+
+    /**
+     *
+     * @param _buffer
+     * @param v
+     */
+    public static void putVarLong(ByteBuffer _buffer, long v) {
+        while ((v & ~0x7FL) != 0) {
+            _buffer.put((byte) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        _buffer.put((byte) v);
+    }
+
+    /**
+     *
+     * @param _buffer
+     * @return
+     */
+    public static long getVarLong(ByteBuffer _buffer) {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = _buffer.get();
+            v |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return v;
+            }
+        }
+        throw new IllegalStateException("Malformed varint at " + (_buffer.position() - 10));
+    }
+
+    /**
+     *
+     * @param v
+     * @param _bytes
+     * @param _offset
+     * @return the offset just past what was written
+     */
+    public static int varLongBytes(long v, byte[] _bytes, int _offset) {
+        while ((v & ~0x7FL) != 0) {
+            _bytes[_offset++] = (byte) ((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        _bytes[_offset++] = (byte) v;
+        return _offset;
+    }
+
+    /**
+     *
+     * @param v
+     * @return
+     */
+    public static byte[] varLongBytes(long v) {
+        byte[] bytes = new byte[varLongLength(v)];
+        varLongBytes(v, bytes, 0);
+        return bytes;
+    }
+
+    /**
+     *
+     * @param _bytes
+     * @param _offset
+     * @return
+     */
+    public static long bytesVarLong(byte[] _bytes, int _offset) {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = _bytes[_offset++];
+            v |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return v;
+            }
+        }
+        throw new IllegalStateException("Malformed varint ending at offset " + _offset);
+    }
+
+    /**
+     * For sorted or regularly spaced values, e.g. timestamps or posting lists, where the change in the gap between neighbours is far smaller than the
+     * values themselves. Writes the length, the first value, the first delta and then each delta of delta, all zig zag varints.
+     *
+     * @param _filer
+     * @param array
+     * @param fieldName
+     * @throws IOException
+     */
+    public static void writeDeltaOfDeltaLongArray(Writeable _filer, long[] array, String fieldName) throws IOException {
+        if (array == null) {
+            writeZigZagLong(_filer, -1, fieldName);
+            return;
+        }
+        writeZigZagLong(_filer, array.length, fieldName);
+        long last = 0;
+        long lastDelta = 0;
+        for (int i = 0; i < array.length; i++) {
+            long delta = array[i] - last;
+            writeZigZagLong(_filer, delta - lastDelta, fieldName);
+            last = array[i];
+            lastDelta = (i == 0) ? 0 : delta;
+        }
+    }
+
+    /**
+     *
+     * @param _filer
+     * @param fieldName
+     * @return
+     * @throws IOException
+     */
+    public static long[] readDeltaOfDeltaLongArray(Readable _filer, String fieldName) throws IOException {
+        int len = (int) readZigZagLong(_filer, fieldName);
+        if (len < 0) {
+            return null;
+        }
+        long[] array = new long[len];
+        long last = 0;
+        long lastDelta = 0;
+        for (int i = 0; i < len; i++) {
+            long delta = lastDelta + readZigZagLong(_filer, fieldName);
+            array[i] = last + delta;
+            last = array[i];
+            lastDelta = (i == 0) ? 0 : delta;
+        }
+        return array;
+    }
+
     /**
      *
      * @param length
@@ -0,0 +1,215 @@
+/*
+ * Copyright 2015 Jive Software.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jivesoftware.os.filer.io;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.InstanceNotFoundException;
+import javax.management.MBeanRegistrationException;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.NotCompliantMBeanException;
+import javax.management.ObjectName;
+
+/**
+ * I/O counters and latencies for one named store, fed by InstrumentedFiler and InstrumentedByteBufferFactory and registered with JMX as
+ * Filer:type=FilerMetrics,name=...
+ *
+ * @author jonathan.colt
+ */
+public class FilerMetrics implements FilerMetricsMXBean {
+
+    private static final ConcurrentMap<String, FilerMetrics> metrics = new ConcurrentHashMap<>();
+
+    /**
+     *
+     * @param name
+     * @return the one FilerMetrics for name, registering it with JMX the first time it is asked for
+     */
+    public static FilerMetrics get(String name) {
+        FilerMetrics got = metrics.get(name);
+        if (got == null) {
+            got = new FilerMetrics(name);
+            FilerMetrics had = metrics.putIfAbsent(name, got);
+            if (had != null) {
+                got = had;
+            } else {
+                register(name, got);
+            }
+        }
+        return got;
+    }
+
+    public static Map<String, FilerMetrics> all() {
+        return metrics;
+    }
+
+    final StripedCounter bytesRead = new StripedCounter();
+    final StripedCounter bytesWritten = new StripedCounter();
+    final StripedCounter reads = new StripedCounter();
+    final StripedCounter writes = new StripedCounter();
+    final StripedCounter seeks = new StripedCounter();
+    final StripedCounter forces = new StripedCounter();
+    final StripedCounter allocations = new StripedCounter();
+    final StripedCounter remaps = new StripedCounter();
+    final StripedCounter releases = new StripedCounter();
+    final LatencyHistogram readLatency = new LatencyHistogram();
+    final LatencyHistogram writeLatency = new LatencyHistogram();
+    final LatencyHistogram forceLatency = new LatencyHistogram();
+    final LatencyHistogram remapLatency = new LatencyHistogram();
+
+    private final String name;
+
+    private FilerMetrics(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public LatencyHistogram readLatency() {
+        return readLatency;
+    }
+
+    public LatencyHistogram writeLatency() {
+        return writeLatency;
+    }
+
+    public LatencyHistogram forceLatency() {
+        return forceLatency;
+    }
+
+    public LatencyHistogram remapLatency() {
+        return remapLatency;
+    }
+
+    @Override
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    @Override
+    public long getReads() {
+        return reads.sum();
+    }
+
+    @Override
+    public long getWrites() {
+        return writes.sum();
+    }
+
+    @Override
+    public long getSeeks() {
+        return seeks.sum();
+    }
+
+    @Override
+    public long getForces() {
+        return forces.sum();
+    }
+
+    @Override
+    public long getAllocations() {
+        return allocations.sum();
+    }
+
+    @Override
+    public long getRemaps() {
+        return remaps.sum();
+    }
+
+    @Override
+    public long getReleases() {
+        return releases.sum();
+    }
+
+    @Override
+    public long[] getReadLatencyBuckets() {
+        return readLatency.buckets();
+    }
+
+    @Override
+    public long getReadLatencyP50Nanos() {
+        return readLatency.percentileNanos(50);
+    }
+
+    @Override
+    public long getReadLatencyP99Nanos() {
+        return readLatency.percentileNanos(99);
+    }
+
+    @Override
+    public long[] getWriteLatencyBuckets() {
+        return writeLatency.buckets();
+    }
+
+    @Override
+    public long getWriteLatencyP50Nanos() {
+        return writeLatency.percentileNanos(50);
+    }
+
+    @Override
+    public long getWriteLatencyP99Nanos() {
+        return writeLatency.percentileNanos(99);
+    }
+
+    @Override
+    public long getForceLatencyP99Nanos() {
+        return forceLatency.percentileNanos(99);
+    }
+
+    @Override
+    public long getRemapLatencyP99Nanos() {
+        return remapLatency.percentileNanos(99);
+    }
+
+    @Override
+    public String toString() {
+        return "FilerMetrics{" + "name=" + name + ", bytesRead=" + bytesRead + ", bytesWritten=" + bytesWritten + ", seeks=" + seeks
+            + ", remaps=" + remaps + '}';
+    }
+
+    static private void register(String name, Object mbean) {
+        String objectName = "Filer:type=" + FilerMetrics.class.getSimpleName() + ",name=" + ObjectName.quote(name);
+
+        MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+
+        try {
+            ObjectName mbeanName = new ObjectName(objectName);
+
+            // note: unregister any previous, as this may be a replacement
+            if (mbs.isRegistered(mbeanName)) {
+                mbs.unregisterMBean(mbeanName);
+            }
+
+            mbs.registerMBean(mbean, mbeanName);
+
+        } catch (MalformedObjectNameException | NotCompliantMBeanException |
+            InstanceAlreadyExistsException | InstanceNotFoundException | MBeanRegistrationException e) {
+            System.out.println("unable to register bean: " + objectName + "cause: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2015 Jive Software.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jivesoftware.os.filer.io;
+
+/**
+ * What FilerMetrics exposes over JMX.
+ *
+ * @author jonathan.colt
+ */
+public interface FilerMetricsMXBean {
+
+    long getBytesRead();
+
+    long getBytesWritten();
+
+    long getReads();
+
+    long getWrites();
+
+    long getSeeks();
+
+    long getForces();
+
+    long getAllocations();
+
+    long getRemaps();
+
+    long getReleases();
+
+    long[] getReadLatencyBuckets();
+
+    long getReadLatencyP50Nanos();
+
+    long getReadLatencyP99Nanos();
+
+    long[] getWriteLatencyBuckets();
+
+    long getWriteLatencyP50Nanos();
+
+    long getWriteLatencyP99Nanos();
+
+    long getForceLatencyP99Nanos();
+
+    long getRemapLatencyP99Nanos();
+}
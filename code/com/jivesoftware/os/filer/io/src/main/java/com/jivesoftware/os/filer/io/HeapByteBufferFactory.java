@@ -24,6 +24,10 @@ public class HeapByteBufferFactory implements ByteBufferFactory {
         return newBuffer;
     }
 
+    @Override
+    public void release(byte[] key, ByteBuffer buffer) {
+    }
+
     @Override
     public boolean exists(byte[] key) {
         return false;
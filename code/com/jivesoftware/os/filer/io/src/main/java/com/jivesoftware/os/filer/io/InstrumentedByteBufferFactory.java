@@ -0,0 +1,63 @@
+/*
+ * Copyright 2015 Jive Software.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jivesoftware.os.filer.io;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Counts allocations, remaps and releases made by the wrapped factory into a FilerMetrics. For the mapped factories a reallocate is a remap of a grown
+ * segment so its latency is recorded too.
+ *
+ * @author jonathan.colt
+ */
+public class InstrumentedByteBufferFactory implements ByteBufferFactory {
+
+    private final ByteBufferFactory factory;
+    private final FilerMetrics metrics;
+
+    public InstrumentedByteBufferFactory(ByteBufferFactory factory, FilerMetrics metrics) {
+        this.factory = factory;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public boolean exists(byte[] key) {
+        return factory.exists(key);
+    }
+
+    @Override
+    public ByteBuffer allocate(byte[] key, long size) {
+        ByteBuffer buffer = factory.allocate(key, size);
+        metrics.allocations.inc();
+        return buffer;
+    }
+
+    @Override
+    public ByteBuffer reallocate(byte[] key, ByteBuffer oldBuffer, long newSize) {
+        long start = System.nanoTime();
+        ByteBuffer buffer = factory.reallocate(key, oldBuffer, newSize);
+        metrics.remapLatency.record(System.nanoTime() - start);
+        metrics.remaps.inc();
+        return buffer;
+    }
+
+    @Override
+    public void release(byte[] key, ByteBuffer buffer) {
+        factory.release(key, buffer);
+        metrics.releases.inc();
+    }
+
+}
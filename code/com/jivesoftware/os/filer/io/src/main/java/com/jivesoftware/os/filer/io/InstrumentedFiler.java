@@ -0,0 +1,260 @@
+/*
+ * Copyright 2015 Jive Software.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jivesoftware.os.filer.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Counts what goes through a store's root filer and every duplicate taken from it into one FilerMetrics. Bulk reads, writes and forces are also timed,
+ * single byte and primitive accessors are only counted so wrapping stays cheap for the map and index monkeys which are made of them.
+ *
+ * @author jonathan.colt
+ */
+public class InstrumentedFiler implements DuplicatableFiler {
+
+    private final DuplicatableFiler filer;
+    private final FilerMetrics metrics;
+
+    public InstrumentedFiler(DuplicatableFiler filer, FilerMetrics metrics) {
+        this.filer = filer;
+        this.metrics = metrics;
+    }
+
+    public FilerMetrics getMetrics() {
+        return metrics;
+    }
+
+    @Override
+    public InstrumentedFiler duplicate(long startFP, long endFP) {
+        return new InstrumentedFiler(filer.duplicate(startFP, endFP), metrics);
+    }
+
+    @Override
+    public InstrumentedFiler duplicateNew(DuplicatableFiler current) {
+        return new InstrumentedFiler(filer.duplicateNew(((InstrumentedFiler) current).filer), metrics);
+    }
+
+    @Override
+    public InstrumentedFiler duplicateAll() {
+        return new InstrumentedFiler(filer.duplicateAll(), metrics);
+    }
+
+    @Override
+    public boolean exists() {
+        return filer.exists();
+    }
+
+    @Override
+    public long generation() {
+        return filer.generation();
+    }
+
+    @Override
+    public void reclaim(long oldestGeneration) throws IOException {
+        filer.reclaim(oldestGeneration);
+    }
+
+    @Override
+    public void force() throws IOException {
+        long start = System.nanoTime();
+        filer.force();
+        metrics.forceLatency.record(System.nanoTime() - start);
+        metrics.forces.inc();
+    }
+
+    @Override
+    public long transferTo(TransferableFiler target, long maxBytes) throws IOException {
+        long start = System.nanoTime();
+        long transferred = filer.transferTo(target, maxBytes);
+        metrics.readLatency.record(System.nanoTime() - start);
+        read(transferred);
+        return transferred;
+    }
+
+    @Override
+    public void write(ByteBuffer src) throws IOException {
+        int len = src.remaining();
+        long start = System.nanoTime();
+        filer.write(src);
+        metrics.writeLatency.record(System.nanoTime() - start);
+        written(len);
+    }
+
+    @Override
+    public void seek(long position) throws IOException {
+        filer.seek(position);
+        metrics.seeks.inc();
+    }
+
+    @Override
+    public long skip(long position) throws IOException {
+        metrics.seeks.inc();
+        return filer.skip(position);
+    }
+
+    @Override
+    public long length() throws IOException {
+        return filer.length();
+    }
+
+    @Override
+    public void setLength(long len) throws IOException {
+        filer.setLength(len);
+    }
+
+    @Override
+    public long getFilePointer() throws IOException {
+        return filer.getFilePointer();
+    }
+
+    @Override
+    public void eof() throws IOException {
+        filer.eof();
+        metrics.seeks.inc();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        filer.flush();
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = filer.read();
+        read(b < 0 ? -1 : 1);
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b) throws IOException {
+        return read(b, 0, b.length);
+    }
+
+    @Override
+    public int read(byte[] b, int _offset, int _len) throws IOException {
+        long start = System.nanoTime();
+        int read = filer.read(b, _offset, _len);
+        metrics.readLatency.record(System.nanoTime() - start);
+        read(read);
+        return read;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        filer.write(b);
+        written(1);
+    }
+
+    @Override
+    public void write(byte[] b) throws IOException {
+        write(b, 0, b.length);
+    }
+
+    @Override
+    public void write(byte[] b, int _offset, int _len) throws IOException {
+        long start = System.nanoTime();
+        filer.write(b, _offset, _len);
+        metrics.writeLatency.record(System.nanoTime() - start);
+        written(_len);
+    }
+
+    @Override
+    public void close() throws IOException {
+        filer.close();
+    }
+
+    @Override
+    public byte getByte(long position) throws IOException {
+        read(1);
+        return filer.getByte(position);
+    }
+
+    @Override
+    public short getShort(long position) throws IOException {
+        read(2);
+        return filer.getShort(position);
+    }
+
+    @Override
+    public int getInt(long position) throws IOException {
+        read(4);
+        return filer.getInt(position);
+    }
+
+    @Override
+    public long getLong(long position) throws IOException {
+        read(8);
+        return filer.getLong(position);
+    }
+
+    @Override
+    public void get(long position, byte[] b, int _offset, int _len) throws IOException {
+        long start = System.nanoTime();
+        filer.get(position, b, _offset, _len);
+        metrics.readLatency.record(System.nanoTime() - start);
+        read(_len);
+    }
+
+    @Override
+    public void putByte(long position, byte v) throws IOException {
+        filer.putByte(position, v);
+        written(1);
+    }
+
+    @Override
+    public void putShort(long position, short v) throws IOException {
+        filer.putShort(position, v);
+        written(2);
+    }
+
+    @Override
+    public void putInt(long position, int v) throws IOException {
+        filer.putInt(position, v);
+        written(4);
+    }
+
+    @Override
+    public void putLong(long position, long v) throws IOException {
+        filer.putLong(position, v);
+        written(8);
+    }
+
+    @Override
+    public void put(long position, byte[] b, int _offset, int _len) throws IOException {
+        long start = System.nanoTime();
+        filer.put(position, b, _offset, _len);
+        metrics.writeLatency.record(System.nanoTime() - start);
+        written(_len);
+    }
+
+    private void read(long count) {
+        metrics.reads.inc();
+        if (count > 0) {
+            metrics.bytesRead.add(count);
+        }
+    }
+
+    private void written(long count) {
+        metrics.writes.inc();
+        metrics.bytesWritten.add(count);
+    }
+
+    @Override
+    public String toString() {
+        return "InstrumentedFiler{" + "filer=" + filer + ", metrics=" + metrics + '}';
+    }
+}
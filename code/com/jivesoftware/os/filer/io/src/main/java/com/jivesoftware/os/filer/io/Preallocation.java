@@ -0,0 +1,100 @@
+/*
+ * Copyright 2015 Jive Software.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jivesoftware.os.filer.io;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * How far FileBackedMemMappedByteBufferFactory extends a file past what was asked for so that a growing segment isn't remapped every time it doubles.
+ * Sparse extension only sets the length of the file, dense extension writes zeros so the blocks are allocated on disk up front instead of on first touch.
+ *
+ * @author jonathan.colt
+ */
+public final class Preallocation {
+
+    public static final Preallocation NONE = new Preallocation(0, Long.MAX_VALUE, false);
+
+    /**
+     *
+     * @param extentSize files are extended in multiples of this
+     * @param maxLength never extends a file past this, should be the segment size of whatever is mapping the files
+     * @param dense
+     * @return
+     */
+    public static Preallocation extents(long extentSize, long maxLength, boolean dense) {
+        return new Preallocation(extentSize, maxLength, dense);
+    }
+
+    /**
+     *
+     * @param segmentSize files are extended to the full segment size the first time they are allocated
+     * @param dense
+     * @return
+     */
+    public static Preallocation fullSegment(long segmentSize, boolean dense) {
+        return new Preallocation(segmentSize, segmentSize, dense);
+    }
+
+    private static final byte[] zeros = new byte[1024 * 1024];
+
+    private final long extentSize;
+    private final long maxLength;
+    private final boolean dense;
+
+    private Preallocation(long extentSize, long maxLength, boolean dense) {
+        this.extentSize = extentSize;
+        this.maxLength = maxLength;
+        this.dense = dense;
+    }
+
+    /**
+     *
+     * @param length what the caller asked for
+     * @return what the file should be extended to
+     */
+    long lengthFor(long length) {
+        if (extentSize <= 0) {
+            return length;
+        }
+        long extended = ((length + extentSize - 1) / extentSize) * extentSize;
+        return Math.max(length, Math.min(extended, maxLength));
+    }
+
+    void extend(RandomAccessFile raf, long length) throws IOException {
+        long fp = raf.length();
+        if (length <= fp) {
+            return;
+        }
+        if (dense) {
+            raf.seek(fp);
+            while (fp < length) {
+                int l = (int) Math.min(zeros.length, length - fp);
+                raf.write(zeros, 0, l);
+                fp += l;
+            }
+        } else {
+            raf.seek(length - 1);
+            raf.write(0);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Preallocation{" + "extentSize=" + extentSize + ", maxLength=" + maxLength + ", dense=" + dense + '}';
+    }
+
+}
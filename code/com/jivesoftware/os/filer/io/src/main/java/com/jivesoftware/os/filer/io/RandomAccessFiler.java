@@ -136,4 +136,114 @@ public class RandomAccessFiler extends RandomAccessFile implements Filer {
     public void flush() throws IOException {
     }
 
+    @Override
+    public byte getByte(long position) throws IOException {
+        long fp = getFilePointer();
+        try {
+            seek(position);
+            return readByte();
+        } finally {
+            seek(fp);
+        }
+    }
+
+    @Override
+    public short getShort(long position) throws IOException {
+        long fp = getFilePointer();
+        try {
+            seek(position);
+            return readShort();
+        } finally {
+            seek(fp);
+        }
+    }
+
+    @Override
+    public int getInt(long position) throws IOException {
+        long fp = getFilePointer();
+        try {
+            seek(position);
+            return readInt();
+        } finally {
+            seek(fp);
+        }
+    }
+
+    @Override
+    public long getLong(long position) throws IOException {
+        long fp = getFilePointer();
+        try {
+            seek(position);
+            return readLong();
+        } finally {
+            seek(fp);
+        }
+    }
+
+    @Override
+    public void get(long position, byte[] b, int _offset, int _len) throws IOException {
+        long fp = getFilePointer();
+        try {
+            seek(position);
+            readFully(b, _offset, _len);
+        } finally {
+            seek(fp);
+        }
+    }
+
+    @Override
+    public void putByte(long position, byte v) throws IOException {
+        long fp = getFilePointer();
+        try {
+            seek(position);
+            write(v);
+        } finally {
+            seek(fp);
+        }
+    }
+
+    @Override
+    public void putShort(long position, short v) throws IOException {
+        long fp = getFilePointer();
+        try {
+            seek(position);
+            writeShort(v);
+        } finally {
+            seek(fp);
+        }
+    }
+
+    @Override
+    public void putInt(long position, int v) throws IOException {
+        long fp = getFilePointer();
+        try {
+            seek(position);
+            writeInt(v);
+        } finally {
+            seek(fp);
+        }
+    }
+
+    @Override
+    public void putLong(long position, long v) throws IOException {
+        long fp = getFilePointer();
+        try {
+            seek(position);
+            writeLong(v);
+        } finally {
+            seek(fp);
+        }
+    }
+
+    @Override
+    public void put(long position, byte[] b, int _offset, int _len) throws IOException {
+        long fp = getFilePointer();
+        try {
+            seek(position);
+            write(b, _offset, _len);
+        } finally {
+            seek(fp);
+        }
+    }
+
 }
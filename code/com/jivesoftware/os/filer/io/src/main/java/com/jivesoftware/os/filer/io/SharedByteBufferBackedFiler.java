@@ -31,13 +31,12 @@ public class SharedByteBufferBackedFiler implements Filer {
 
     @Override
     public void seek(long position) throws IOException {
-        buffer.position((int) position); // what a pain! limited to an int!
+        buffer.position(index(position));
     }
 
     @Override
     public long skip(long position) throws IOException {
-        int p = buffer.position();
-        p += position;
+        int p = index(buffer.position() + position);
         buffer.position(p);
         return p;
     }
@@ -112,4 +111,68 @@ public class SharedByteBufferBackedFiler implements Filer {
         buffer.put(b, _offset, _len);
     }
 
+    @Override
+    public byte getByte(long position) throws IOException {
+        return buffer.get(index(position));
+    }
+
+    @Override
+    public short getShort(long position) throws IOException {
+        return buffer.getShort(index(position));
+    }
+
+    @Override
+    public int getInt(long position) throws IOException {
+        return buffer.getInt(index(position));
+    }
+
+    @Override
+    public long getLong(long position) throws IOException {
+        return buffer.getLong(index(position));
+    }
+
+    @Override
+    public void get(long position, byte[] b, int _offset, int _len) throws IOException {
+        ByteBuffer view = buffer.duplicate(); // leaves the shared position alone
+        view.position(index(position));
+        view.get(b, _offset, _len);
+    }
+
+    @Override
+    public void putByte(long position, byte v) throws IOException {
+        buffer.put(index(position), v);
+    }
+
+    @Override
+    public void putShort(long position, short v) throws IOException {
+        buffer.putShort(index(position), v);
+    }
+
+    @Override
+    public void putInt(long position, int v) throws IOException {
+        buffer.putInt(index(position), v);
+    }
+
+    @Override
+    public void putLong(long position, long v) throws IOException {
+        buffer.putLong(index(position), v);
+    }
+
+    @Override
+    public void put(long position, byte[] b, int _offset, int _len) throws IOException {
+        ByteBuffer view = buffer.duplicate(); // leaves the shared position alone
+        view.position(index(position));
+        view.put(b, _offset, _len);
+    }
+
+    /**
+     * A single ByteBuffer is int addressed so anything beyond that needs a segmented filer like AutoGrowingByteBufferBackedFiler.
+     */
+    private static int index(long position) throws IOException {
+        if (position < 0 || position > Integer.MAX_VALUE) {
+            throw new IOException("Position " + position + " is not addressable by a single ByteBuffer.");
+        }
+        return (int) position;
+    }
+
 }
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2015 Jive Software.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jivesoftware.os.filer.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A filer which can move bytes straight out of and into its backing storage without going through a byte[]. FilerIO.copy() uses this whenever both sides
+ * support it.
+ *
+ * @author jonathan.colt
+ */
+public interface TransferableFiler extends Filer {
+
+    /**
+     * Moves up to maxBytes from this filer's file pointer to target's file pointer, advancing both.
+     *
+     * @param target
+     * @param maxBytes
+     * @return how many bytes were moved or -1 if this filer is already at its end
+     * @throws IOException
+     */
+    long transferTo(TransferableFiler target, long maxBytes) throws IOException;
+
+    /**
+     * Writes src.remaining() bytes at the file pointer, advancing both it and the position of src.
+     *
+     * @param src
+     * @throws IOException
+     */
+    void write(ByteBuffer src) throws IOException;
+}
@@ -0,0 +1,611 @@
+/*
+ * Copyright 2015 Jive Software.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jivesoftware.os.filer.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Lays segments out exactly like AutoGrowingByteBufferBackedFiler but only keeps as many of them mapped as fit in a mapped bytes budget. Segments are mapped
+ * on demand and a clock sweep unmaps idle ones to make room, so a store can be far larger than what the process can keep mapped. The last segment is never
+ * unmapped because it is the one which grows.
+ *
+ * Duplicates share the window and revalidate lazily: every access checks the segment is still the one the window has mapped. Segments the window lets go of
+ * stay mapped until reclaim() says no duplicate can still be using them.
+ *
+ * @author jonathan.colt
+ */
+public class WindowedByteBufferBackedFiler implements DuplicatableFiler {
+
+    private final Window window;
+    private final boolean root;
+    private final long generation;
+
+    private ByteBuffer[] sources = new ByteBuffer[0];
+    private ByteBufferBackedFiler[] segments = new ByteBufferBackedFiler[0];
+    private long fp;
+
+    /**
+     *
+     * @param byteBufferFactory must hand back the existing contents of a key when it is allocated again
+     * @param initialBufferSegmentSize
+     * @param maxBufferSegmentSize must stay the same for the life of the data
+     * @param maxMappedBytes budget for mapped segments, segments awaiting reclaim() are not counted
+     */
+    public WindowedByteBufferBackedFiler(FileBackedMemMappedByteBufferFactory byteBufferFactory,
+        long initialBufferSegmentSize,
+        long maxBufferSegmentSize,
+        long maxMappedBytes) {
+        this(byteBufferFactory, byteBufferFactory, initialBufferSegmentSize, maxBufferSegmentSize, maxMappedBytes);
+    }
+
+    /**
+     *
+     * @param files forces segments which are not currently mapped
+     * @param byteBufferFactory maps, remaps and releases the segments of files, files itself or a wrapper of it such as InstrumentedByteBufferFactory
+     * @param initialBufferSegmentSize
+     * @param maxBufferSegmentSize must stay the same for the life of the data
+     * @param maxMappedBytes budget for mapped segments, segments awaiting reclaim() are not counted
+     */
+    public WindowedByteBufferBackedFiler(FileBackedMemMappedByteBufferFactory files,
+        ByteBufferFactory byteBufferFactory,
+        long initialBufferSegmentSize,
+        long maxBufferSegmentSize,
+        long maxMappedBytes) {
+        this.window = new Window(files, byteBufferFactory, initialBufferSegmentSize, maxBufferSegmentSize, maxMappedBytes);
+        this.root = true;
+        this.generation = -1;
+    }
+
+    private WindowedByteBufferBackedFiler(Window window, long generation) {
+        this.window = window;
+        this.root = false;
+        this.generation = generation;
+    }
+
+    @Override
+    public WindowedByteBufferBackedFiler duplicate(long startFP, long endFP) {
+        return new WindowedByteBufferBackedFiler(window, window.generation);
+    }
+
+    @Override
+    public WindowedByteBufferBackedFiler duplicateNew(DuplicatableFiler current) {
+        return new WindowedByteBufferBackedFiler(window, window.generation);
+    }
+
+    @Override
+    public WindowedByteBufferBackedFiler duplicateAll() {
+        return new WindowedByteBufferBackedFiler(window, window.generation);
+    }
+
+    @Override
+    public boolean exists() {
+        return window.byteBufferFactory.exists(Window.key(0));
+    }
+
+    @Override
+    public long generation() {
+        return root ? window.generation : generation;
+    }
+
+    @Override
+    public void reclaim(long oldestGeneration) throws IOException {
+        if (root) {
+            window.reclaim(oldestGeneration);
+        }
+    }
+
+    /**
+     *
+     * @return bytes currently mapped by the window, not counting segments awaiting reclaim()
+     */
+    public long mappedBytes() {
+        return window.mappedBytes();
+    }
+
+    private ByteBufferBackedFiler segment(int f) throws IOException {
+        ByteBuffer[] mapped = window.mapped;
+        if (f >= mapped.length) {
+            throw new IOException("Position is beyond the last segment. segment=" + f + " segments=" + mapped.length);
+        }
+        ByteBuffer buffer = mapped[f];
+        if (buffer == null) {
+            buffer = window.map(f);
+        } else {
+            window.referenced(f);
+        }
+        if (f >= sources.length) {
+            sources = Arrays.copyOf(sources, mapped.length);
+            segments = Arrays.copyOf(segments, mapped.length);
+        }
+        if (sources[f] != buffer) {
+            sources[f] = buffer;
+            segments[f] = new ByteBufferBackedFiler(buffer.duplicate());
+        }
+        return segments[f];
+    }
+
+    @Override
+    public void seek(long position) throws IOException {
+        window.grow(position);
+        fp = position;
+    }
+
+    @Override
+    public long skip(long position) throws IOException {
+        seek(fp + position);
+        return position;
+    }
+
+    @Override
+    public long length() throws IOException {
+        return window.length;
+    }
+
+    @Override
+    public void setLength(long len) throws IOException {
+        window.grow(len);
+    }
+
+    @Override
+    public long getFilePointer() throws IOException {
+        return fp;
+    }
+
+    @Override
+    public void eof() throws IOException {
+        fp = window.length;
+    }
+
+    @Override
+    public void flush() throws IOException {
+    }
+
+    @Override
+    public void force() throws IOException {
+        window.force();
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (fp >= window.length) {
+            return -1;
+        }
+        int b = getByte(fp) & 0xFF;
+        fp++;
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b) throws IOException {
+        return read(b, 0, b.length);
+    }
+
+    @Override
+    public int read(byte[] b, int _offset, int _len) throws IOException {
+        if (_len == 0) {
+            return 0;
+        }
+        long remaining = window.length - fp;
+        if (remaining <= 0) {
+            return -1;
+        }
+        int count = (int) Math.min(_len, remaining);
+        get(fp, b, _offset, count);
+        fp += count;
+        return count;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        putByte(fp, (byte) b);
+        fp++;
+    }
+
+    @Override
+    public void write(byte[] b) throws IOException {
+        write(b, 0, b.length);
+    }
+
+    @Override
+    public void write(byte[] b, int _offset, int _len) throws IOException {
+        put(fp, b, _offset, _len);
+        fp += _len;
+    }
+
+    @Override
+    public void write(ByteBuffer src) throws IOException {
+        ensure(fp + src.remaining());
+        while (src.hasRemaining()) {
+            long fseek = fp & window.segmentMask;
+            int l = (int) Math.min(src.remaining(), window.maxBufferSegmentSize - fseek);
+            int f = (int) (fp >>> window.segmentShift);
+            ByteBufferBackedFiler segment = segment(f);
+            segment.seek(fseek);
+            ByteBuffer slice = src.duplicate();
+            slice.limit(slice.position() + l);
+            segment.write(slice);
+            window.dirty(f);
+            src.position(slice.position());
+            fp += l;
+        }
+    }
+
+    @Override
+    public long transferTo(TransferableFiler target, long maxBytes) throws IOException {
+        long remaining = Math.min(maxBytes, window.length - fp);
+        if (remaining <= 0) {
+            return maxBytes > 0 ? -1 : 0;
+        }
+        long transferred = 0;
+        while (remaining > 0) {
+            long fseek = fp & window.segmentMask;
+            long l = Math.min(remaining, window.maxBufferSegmentSize - fseek);
+            ByteBufferBackedFiler segment = segment((int) (fp >>> window.segmentShift));
+            segment.seek(fseek);
+            long t = segment.transferTo(target, l);
+            if (t == -1) {
+                break;
+            }
+            fp += t;
+            transferred += t;
+            remaining -= t;
+        }
+        return transferred;
+    }
+
+    @Override
+    public void close() throws IOException {
+    }
+
+    @Override
+    public byte getByte(long position) throws IOException {
+        return segment((int) (position >>> window.segmentShift)).getByte(position & window.segmentMask);
+    }
+
+    @Override
+    public short getShort(long position) throws IOException {
+        long fseek = position & window.segmentMask;
+        if (fseek + 2 <= window.maxBufferSegmentSize) {
+            return segment((int) (position >>> window.segmentShift)).getShort(fseek);
+        }
+        return (short) ((getByte(position) << 8) | (getByte(position + 1) & 0xFF));
+    }
+
+    @Override
+    public int getInt(long position) throws IOException {
+        long fseek = position & window.segmentMask;
+        if (fseek + 4 <= window.maxBufferSegmentSize) {
+            return segment((int) (position >>> window.segmentShift)).getInt(fseek);
+        }
+        int v = 0;
+        for (int i = 0; i < 4; i++) {
+            v = (v << 8) | (getByte(position + i) & 0xFF);
+        }
+        return v;
+    }
+
+    @Override
+    public long getLong(long position) throws IOException {
+        long fseek = position & window.segmentMask;
+        if (fseek + 8 <= window.maxBufferSegmentSize) {
+            return segment((int) (position >>> window.segmentShift)).getLong(fseek);
+        }
+        long v = 0;
+        for (int i = 0; i < 8; i++) {
+            v = (v << 8) | (getByte(position + i) & 0xFF);
+        }
+        return v;
+    }
+
+    @Override
+    public void get(long position, byte[] b, int _offset, int _len) throws IOException {
+        while (_len > 0) {
+            long fseek = position & window.segmentMask;
+            int l = (int) Math.min(_len, window.maxBufferSegmentSize - fseek);
+            segment((int) (position >>> window.segmentShift)).get(fseek, b, _offset, l);
+            position += l;
+            _offset += l;
+            _len -= l;
+        }
+    }
+
+    @Override
+    public void putByte(long position, byte v) throws IOException {
+        ensure(position + 1);
+        int f = (int) (position >>> window.segmentShift);
+        segment(f).putByte(position & window.segmentMask, v);
+        window.dirty(f);
+    }
+
+    @Override
+    public void putShort(long position, short v) throws IOException {
+        ensure(position + 2);
+        long fseek = position & window.segmentMask;
+        if (fseek + 2 <= window.maxBufferSegmentSize) {
+            int f = (int) (position >>> window.segmentShift);
+            segment(f).putShort(fseek, v);
+            window.dirty(f);
+        } else {
+            putByte(position, (byte) (v >>> 8));
+            putByte(position + 1, (byte) v);
+        }
+    }
+
+    @Override
+    public void putInt(long position, int v) throws IOException {
+        ensure(position + 4);
+        long fseek = position & window.segmentMask;
+        if (fseek + 4 <= window.maxBufferSegmentSize) {
+            int f = (int) (position >>> window.segmentShift);
+            segment(f).putInt(fseek, v);
+            window.dirty(f);
+        } else {
+            for (int i = 0; i < 4; i++) {
+                putByte(position + i, (byte) (v >>> (24 - (i * 8))));
+            }
+        }
+    }
+
+    @Override
+    public void putLong(long position, long v) throws IOException {
+        ensure(position + 8);
+        long fseek = position & window.segmentMask;
+        if (fseek + 8 <= window.maxBufferSegmentSize) {
+            int f = (int) (position >>> window.segmentShift);
+            segment(f).putLong(fseek, v);
+            window.dirty(f);
+        } else {
+            for (int i = 0; i < 8; i++) {
+                putByte(position + i, (byte) (v >>> (56 - (i * 8))));
+            }
+        }
+    }
+
+    @Override
+    public void put(long position, byte[] b, int _offset, int _len) throws IOException {
+        ensure(position + _len);
+        while (_len > 0) {
+            long fseek = position & window.segmentMask;
+            int l = (int) Math.min(_len, window.maxBufferSegmentSize - fseek);
+            int f = (int) (position >>> window.segmentShift);
+            segment(f).put(fseek, b, _offset, l);
+            window.dirty(f);
+            position += l;
+            _offset += l;
+            _len -= l;
+        }
+    }
+
+    private void ensure(long endPosition) throws IOException {
+        if (endPosition > window.length) {
+            window.grow(endPosition);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "WindowedByteBufferBackedFiler{" + "root=" + root + ", generation=" + generation() + ", fp=" + fp + '}';
+    }
+
+    private static class Window {
+
+        private final FileBackedMemMappedByteBufferFactory files;
+        private final ByteBufferFactory byteBufferFactory;
+        private final long initialBufferSegmentSize;
+        private final long maxBufferSegmentSize;
+        private final int segmentShift;
+        private final long segmentMask;
+        private final long maxMappedBytes;
+        private final List<Superseded> superseded = new ArrayList<>();
+
+        private volatile ByteBuffer[] mapped = new ByteBuffer[0]; // copy on write, null when a segment isn't mapped
+        private volatile boolean[] referenced = new boolean[0]; // racy by design, it only steers the clock
+        private volatile AtomicBoolean[] dirty = new AtomicBoolean[0]; // copy on write, the flags themselves carry over
+        private volatile long length;
+        private volatile long generation;
+        private long mappedBytes;
+        private int hand;
+
+        Window(FileBackedMemMappedByteBufferFactory files,
+            ByteBufferFactory byteBufferFactory,
+            long initialBufferSegmentSize,
+            long maxBufferSegmentSize,
+            long maxMappedBytes) {
+            this.files = files;
+            this.byteBufferFactory = byteBufferFactory;
+            this.initialBufferSegmentSize = FilerIO.chunkLength(FilerIO.chunkPower(initialBufferSegmentSize, 0));
+            this.maxBufferSegmentSize = Math.min(FilerIO.chunkLength(FilerIO.chunkPower(maxBufferSegmentSize, 0)),
+                AutoGrowingByteBufferBackedFiler.MAX_BUFFER_SEGMENT_SIZE);
+            this.segmentShift = Long.numberOfTrailingZeros(this.maxBufferSegmentSize);
+            this.segmentMask = this.maxBufferSegmentSize - 1;
+            this.maxMappedBytes = maxMappedBytes;
+        }
+
+        static byte[] key(int segment) {
+            return String.valueOf(segment).getBytes(StandardCharsets.UTF_8);
+        }
+
+        void referenced(int f) {
+            boolean[] r = referenced;
+            if (f < r.length && !r[f]) {
+                r[f] = true;
+            }
+        }
+
+        /**
+         * Marked after the write so a concurrent force() which clears the mark either sees the write or leaves the segment dirty.
+         */
+        void dirty(int f) {
+            AtomicBoolean d = dirty[f];
+            if (!d.get()) {
+                d.set(true);
+            }
+        }
+
+        synchronized void force() throws IOException {
+            ByteBuffer[] map = mapped;
+            AtomicBoolean[] d = dirty;
+            for (int f = 0; f < map.length; f++) {
+                if (d[f].compareAndSet(true, false)) {
+                    ByteBuffer buffer = map[f];
+                    if (buffer instanceof MappedByteBuffer) {
+                        ((MappedByteBuffer) buffer).force();
+                    } else if (buffer == null) {
+                        files.force(key(f));
+                    }
+                }
+            }
+        }
+
+        synchronized long mappedBytes() {
+            return mappedBytes;
+        }
+
+        synchronized ByteBuffer map(int f) {
+            ByteBuffer buffer = mapped[f];
+            if (buffer == null) {
+                buffer = byteBufferFactory.allocate(key(f), maxBufferSegmentSize);
+                ByteBuffer[] map = Arrays.copyOf(mapped, mapped.length);
+                map[f] = buffer;
+                mapped = map;
+                mappedBytes += buffer.capacity();
+                evict(f);
+            }
+            referenced(f);
+            return buffer;
+        }
+
+        /**
+         * Same growth policy as AutoGrowingByteBufferBackedFiler.position()
+         */
+        synchronized void grow(long position) throws IOException {
+            if (position > AutoGrowingByteBufferBackedFiler.MAX_POSITION || (position >>> segmentShift) >= Integer.MAX_VALUE) {
+                throw new IllegalStateException("Encountered a likely runaway file position! position=" + position);
+            }
+            int f = (int) (position >>> segmentShift);
+            long fseek = position & segmentMask;
+            int count = mapped.length;
+            if (f >= count) {
+                ByteBuffer[] map = Arrays.copyOf(mapped, f + 1);
+                int last = count - 1;
+                if (last > -1 && lastLength() < maxBufferSegmentSize) {
+                    map[last] = reallocate(last, maxBufferSegmentSize);
+                }
+                for (int n = count; n <= f; n++) {
+                    ByteBuffer buffer = byteBufferFactory.allocate(key(n), (n < f) ? maxBufferSegmentSize : Math.max(fseek, initialBufferSegmentSize));
+                    mappedBytes += buffer.capacity();
+                    map[n] = buffer;
+                }
+                referenced = Arrays.copyOf(referenced, f + 1);
+                AtomicBoolean[] d = Arrays.copyOf(dirty, f + 1);
+                for (int n = count; n <= f; n++) {
+                    d[n] = new AtomicBoolean(true);
+                }
+                dirty = d;
+                mapped = map;
+                length = ((long) f << segmentShift) + map[f].capacity();
+                generation++;
+                evict(f);
+            } else if (f == count - 1 && fseek > lastLength()) {
+                long newSize = lastLength() * 2;
+                while (newSize < fseek) {
+                    newSize *= 2;
+                }
+                ByteBuffer[] map = Arrays.copyOf(mapped, count);
+                map[f] = reallocate(f, Math.min(maxBufferSegmentSize, newSize));
+                mapped = map;
+                length = ((long) f << segmentShift) + map[f].capacity();
+                generation++;
+                evict(f);
+            }
+        }
+
+        private long lastLength() {
+            return length - ((long) (mapped.length - 1) << segmentShift);
+        }
+
+        private ByteBuffer reallocate(int f, long newSize) {
+            ByteBuffer oldBuffer = mapped[f];
+            ByteBuffer buffer = byteBufferFactory.reallocate(key(f), oldBuffer, newSize);
+            mappedBytes += buffer.capacity();
+            if (oldBuffer != null) {
+                mappedBytes -= oldBuffer.capacity();
+                superseded.add(new Superseded(key(f), oldBuffer, generation));
+            }
+            return buffer;
+        }
+
+        /**
+         * Clock sweep over every segment but the last and keep.
+         */
+        private void evict(int keep) {
+            int last = mapped.length - 1;
+            int sweeps = 0;
+            while (mappedBytes > maxMappedBytes && last > 0 && sweeps < 2 * last) {
+                if (hand >= last) {
+                    hand = 0;
+                }
+                int f = hand++;
+                sweeps++;
+                ByteBuffer buffer = mapped[f];
+                if (buffer == null || f == keep) {
+                    continue;
+                }
+                if (referenced[f]) {
+                    referenced[f] = false;
+                    continue;
+                }
+                ByteBuffer[] map = Arrays.copyOf(mapped, mapped.length);
+                map[f] = null;
+                mapped = map;
+                mappedBytes -= buffer.capacity();
+                superseded.add(new Superseded(key(f), buffer, generation));
+                generation++;
+            }
+        }
+
+        synchronized void reclaim(long oldestGeneration) {
+            for (Iterator<Superseded> iterator = superseded.iterator(); iterator.hasNext();) {
+                Superseded s = iterator.next();
+                if (oldestGeneration > s.generation) {
+                    byteBufferFactory.release(s.key, s.buffer);
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    private static class Superseded {
+
+        private final byte[] key;
+        private final ByteBuffer buffer;
+        private final long generation;
+
+        Superseded(byte[] key, ByteBuffer buffer, long generation) {
+            this.key = key;
+            this.buffer = buffer;
+            this.generation = generation;
+        }
+    }
+}
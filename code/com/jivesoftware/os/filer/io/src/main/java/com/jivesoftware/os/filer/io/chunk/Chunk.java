@@ -1,5 +1,7 @@
 package com.jivesoftware.os.filer.io.chunk;
 
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
  *
  */
@@ -9,7 +11,7 @@ public class Chunk<M> {
     final long chunkFP;
     final long startOfFP;
     final long endOfFP;
-    transient long acquisitions;
+    final AtomicLong acquisitions = new AtomicLong(); // shared stripe readers acquire and release concurrently
 
     public Chunk(M monkey, long chunkFP, long startOfFP, long endOfFP) {
         this.monkey = monkey;
@@ -15,77 +15,90 @@
  */
 package com.jivesoftware.os.filer.io.chunk;
 
-import com.jivesoftware.os.filer.io.ByteBufferBackedFiler;
-import com.jivesoftware.os.filer.io.ByteBufferFactory;
-import com.jivesoftware.os.filer.io.FilerIO;
-import com.jivesoftware.os.filer.io.map.MapContext;
-import com.jivesoftware.os.filer.io.map.MapStore;
 import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
+ * chunkFP to Chunk, an open addressing table with linear probing held in a long[] of keys beside the Chunk[] so a lookup never allocates. A slot is
+ * empty when its chunk is null and removal shifts the rest of the probe run back, so there are no tombstones. Not thread safe, each stripe guards its
+ * own cache. The only calls which may be made under a shared stripe lock are contains, acquireIfPresent and releaseShared.
+ *
  * @author jonathan.colt
  */
 public class ChunkCache {
 
-    private static final byte[] EMPTY_PAYLOAD = new byte[0];
-
-    private final byte[] name;
-    private final ByteBufferFactory bufferFactory;
+    private static final long PHI = 0x9E3779B97F4A7C15L;
 
-    private MapContext mapContext;
-    private ByteBufferBackedFiler mapFiler;
+    private long[] keys;
     private Chunk<?>[] chunks;
-    private long acquisitions;
-
-    public ChunkCache(byte[] name, ByteBufferFactory bufferFactory) {
-        this.name = name;
-        this.bufferFactory = bufferFactory;
-    }
+    private int shift;
+    private int count;
+    private final AtomicLong acquisitions = new AtomicLong();
 
     public long approxSize() throws IOException {
-        MapContext _mapContext = mapContext;
-        if (_mapContext == null) {
-            return 0;
-        }
-        return MapStore.INSTANCE.getApproxCount(mapContext);
+        return count;
     }
 
     <M> void set(long chunkFP, Chunk<M> chunk, int initialCapacity) throws IOException {
         ensureCapacity(initialCapacity);
-        long ai = MapStore.INSTANCE.add(mapFiler, mapContext, (byte) 1, FilerIO.longBytes(chunkFP), EMPTY_PAYLOAD);
-        chunks[(int) ai] = chunk;
+        chunks[add(chunkFP)] = chunk;
     }
 
     public boolean contains(long chunkFP) throws IOException {
-        if (mapContext != null) {
-            long ai = MapStore.INSTANCE.get(mapFiler, mapContext, FilerIO.longBytes(chunkFP));
-            return ai > -1;
-        }
-        return false;
+        return indexOf(chunkFP) > -1;
     }
 
     public <M> Chunk<M> acquireIfPresent(long chunkFP) throws IOException {
-        if (mapContext != null) {
-            long ai = MapStore.INSTANCE.get(mapFiler, mapContext, FilerIO.longBytes(chunkFP));
-            if (ai > -1) {
-                Chunk<M> chunk = (Chunk<M>) chunks[(int) ai];
-                chunk.acquisitions++;
-                acquisitions++;
-                return chunk;
-            }
+        int ai = indexOf(chunkFP);
+        if (ai > -1) {
+            Chunk<M> chunk = (Chunk<M>) chunks[ai];
+            chunk.acquisitions.incrementAndGet();
+            acquisitions.incrementAndGet();
+            return chunk;
         }
         return null;
 
     }
 
+    /**
+     * Like release but leaves an unacquired chunk in the cache, the caller has to evict it with takeIfIdle once it holds the stripe exclusively.
+     *
+     * @param chunkFP
+     * @return true when this was the chunks last acquisition
+     * @throws IOException
+     */
+    public boolean releaseShared(long chunkFP) throws IOException {
+        int ai = indexOf(chunkFP);
+        if (ai > -1) {
+            acquisitions.decrementAndGet();
+            return chunks[ai].acquisitions.decrementAndGet() == 0;
+        }
+        return false;
+    }
+
+    /**
+     * @param <M>
+     * @param chunkFP
+     * @return the chunk, which is no longer cached, if it is cached and nobody has it acquired
+     * @throws IOException
+     */
+    public <M> Chunk<M> takeIfIdle(long chunkFP) throws IOException {
+        int ai = indexOf(chunkFP);
+        if (ai > -1 && chunks[ai].acquisitions.get() == 0) {
+            Chunk<M> chunk = (Chunk<M>) chunks[ai];
+            delete(ai);
+            return chunk;
+        }
+        return null;
+    }
+
     public boolean release(long chunkFP) throws IOException {
-        if (mapContext != null) {
-            int ai = (int) MapStore.INSTANCE.get(mapFiler, mapContext, FilerIO.longBytes(chunkFP));
+        if (chunks != null) {
+            int ai = indexOf(chunkFP);
             if (ai > -1) {
-                chunks[ai].acquisitions--;
-                acquisitions--;
-                if (chunks[ai].acquisitions == 0) {
-                    remove(chunkFP);
+                acquisitions.decrementAndGet();
+                if (chunks[ai].acquisitions.decrementAndGet() == 0) {
+                    delete(ai);
                 }
                 return true;
             } else {
@@ -95,60 +108,125 @@ public class ChunkCache {
         return true;
     }
 
-    public <M> Chunk<M> remove(long chunkFP) throws IOException {
-        if (mapContext != null) {
-            int ai = (int) MapStore.INSTANCE.remove(mapFiler, mapContext, FilerIO.longBytes(chunkFP));
+    /**
+     * Like release but hands back the chunk when this was its last acquisition and it left the cache, so its monkey can be kept elsewhere.
+     *
+     * @param <M>
+     * @param chunkFP
+     * @return null while the chunk is still acquired or when it was not cached
+     * @throws IOException
+     */
+    public <M> Chunk<M> releaseAndTake(long chunkFP) throws IOException {
+        if (chunks != null) {
+            int ai = indexOf(chunkFP);
             if (ai > -1) {
                 Chunk<M> chunk = (Chunk<M>) chunks[ai];
-                acquisitions -= chunk.acquisitions;
-                chunks[ai] = null;
-                return chunk;
+                acquisitions.decrementAndGet();
+                if (chunk.acquisitions.decrementAndGet() == 0) {
+                    delete(ai);
+                    return chunk;
+                }
             }
         }
         return null;
     }
 
+    public <M> Chunk<M> remove(long chunkFP) throws IOException {
+        int ai = indexOf(chunkFP);
+        if (ai > -1) {
+            Chunk<M> chunk = (Chunk<M>) chunks[ai];
+            acquisitions.addAndGet(-chunk.acquisitions.get());
+            delete(ai);
+            return chunk;
+        }
+        return null;
+    }
+
     <M> Chunk<M> promoteAndAcquire(long chunkFP, Chunk<M> chunk, int initialCapacity) throws IOException {
         ensureCapacity(initialCapacity);
-        long ai = MapStore.INSTANCE.add(mapFiler, mapContext, (byte) 1, FilerIO.longBytes(chunkFP), EMPTY_PAYLOAD);
-        if (ai == -1) {
-            throw new IllegalStateException("Context has no room");
-        }
-        chunks[(int) ai] = chunk;
-        chunk.acquisitions++;
-        acquisitions++;
+        chunks[add(chunkFP)] = chunk;
+        chunk.acquisitions.incrementAndGet();
+        acquisitions.incrementAndGet();
         return chunk;
     }
 
     public boolean isRemovable() {
-        return acquisitions == 0;
+        return acquisitions.get() == 0;
     }
 
     void ensureCapacity(int initialCapacity) throws IOException {
-        if (mapContext == null) {
-            int size = MapStore.INSTANCE.computeFilerSize(initialCapacity, 8, false, 0, false);
-            mapFiler = new ByteBufferBackedFiler(bufferFactory.allocate(name, size));
-            mapContext = MapStore.INSTANCE.create(initialCapacity, 8, false, 0, false, mapFiler);
-            chunks = new Chunk[mapContext.capacity];
-        } else {
-            if (MapStore.INSTANCE.isFull(mapContext)) {
-                int nextGrowSize = MapStore.INSTANCE.nextGrowSize(mapContext);
-                int newSize = MapStore.INSTANCE.computeFilerSize(nextGrowSize, 8, false, 0, false);
-                ByteBufferBackedFiler newMapFiler = new ByteBufferBackedFiler(bufferFactory.allocate(name, newSize));
-                MapContext newMapContext = MapStore.INSTANCE.create(nextGrowSize, 8, false, 0, false, newMapFiler);
-                final Chunk<?>[] newChunks = new Chunk[newMapContext.capacity];
-                MapStore.INSTANCE.copyTo(mapFiler, mapContext, newMapFiler, newMapContext, new MapStore.CopyToStream() {
-                    @Override
-                    public void copied(long fromIndex, long toIndex) {
-                        newChunks[(int) toIndex] = chunks[(int) fromIndex];
-                    }
-                });
-                mapFiler = newMapFiler;
-                mapContext = newMapContext;
-                chunks = newChunks;
+        if (chunks == null) {
+            int capacity = Integer.highestOneBit(Math.max(8, initialCapacity * 2) - 1) << 1;
+            keys = new long[capacity];
+            chunks = new Chunk[capacity];
+            shift = 64 - Integer.numberOfTrailingZeros(capacity);
+        } else if ((count + 1) * 4 > chunks.length * 3) {
+            long[] oldKeys = keys;
+            Chunk<?>[] oldChunks = chunks;
+            keys = new long[oldKeys.length * 2];
+            chunks = new Chunk[oldChunks.length * 2];
+            shift--;
+            count = 0;
+            for (int i = 0; i < oldChunks.length; i++) {
+                if (oldChunks[i] != null) {
+                    chunks[add(oldKeys[i])] = oldChunks[i];
+                }
+            }
+        }
+    }
+
+    private int slot(long chunkFP) {
+        return (int) ((chunkFP * PHI) >>> shift);
+    }
 
+    private int indexOf(long chunkFP) {
+        if (chunks == null) {
+            return -1;
+        }
+        int mask = chunks.length - 1;
+        for (int i = slot(chunkFP); chunks[i] != null; i = (i + 1) & mask) {
+            if (keys[i] == chunkFP) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Call ensureCapacity first, the caller fills in the returned slot.
+     */
+    private int add(long chunkFP) {
+        int mask = chunks.length - 1;
+        int i = slot(chunkFP);
+        while (chunks[i] != null) {
+            if (keys[i] == chunkFP) {
+                return i;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = chunkFP;
+        count++;
+        return i;
+    }
+
+    private void delete(int i) {
+        int mask = chunks.length - 1;
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            if (chunks[j] == null) {
+                break;
+            }
+            int k = slot(keys[j]);
+            boolean stays = (i <= j) ? (i < k && k <= j) : (i < k || k <= j);
+            if (!stays) {
+                keys[i] = keys[j];
+                chunks[i] = chunks[j];
+                i = j;
             }
         }
+        chunks[i] = null;
+        count--;
     }
 
     public interface CacheOpener<M> {
@@ -1,7 +1,10 @@
 package com.jivesoftware.os.filer.io.chunk;
 
 import com.jivesoftware.os.filer.io.Filer;
+import com.jivesoftware.os.filer.io.FilerIO;
+import com.jivesoftware.os.filer.io.TransferableFiler;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /*
  This class segments a single Filer into segment filers where
@@ -11,7 +14,7 @@ import java.io.IOException;
 
  @author jonathan.colt
  */
-public class ChunkFiler implements Filer {
+public class ChunkFiler implements TransferableFiler {
 
     private final ChunkStore chunkStore;
     private final Filer filer;
@@ -27,6 +30,14 @@ public class ChunkFiler implements Filer {
         this.endOfFP = endOfFP;
     }
 
+    /**
+     * A filer over [offset, offset + length) of this chunk which shares this filers position and reports fp from getChunkFP(), so whoever hands
+     * out the slice can give it an address that resolves back to it.
+     */
+    ChunkFiler slice(long offset, long length, long fp) {
+        return new ChunkFiler(chunkStore, filer, fp, startOfFP + offset, startOfFP + offset + length);
+    }
+
     public ChunkStore getChunkStore() {
         return chunkStore;
     }
@@ -106,6 +117,41 @@ public class ChunkFiler implements Filer {
         filer.write(b, _offset, _len);
     }
 
+    @Override
+    public void write(ByteBuffer src) throws IOException {
+        long fp = filer.getFilePointer();
+        int len = src.remaining();
+        if (fp < startOfFP || fp > (endOfFP - len)) {
+            throw new IndexOutOfBoundsException("A write starting at fp:" + fp + " with a len:" + len + " will overflow  bounds. " + this);
+        }
+        if (filer instanceof TransferableFiler) {
+            ((TransferableFiler) filer).write(src);
+        } else if (src.hasArray()) {
+            filer.write(src.array(), src.arrayOffset() + src.position(), len);
+            src.position(src.limit());
+        } else {
+            byte[] bytes = new byte[len];
+            src.get(bytes);
+            filer.write(bytes);
+        }
+    }
+
+    @Override
+    public long transferTo(TransferableFiler target, long maxBytes) throws IOException {
+        long fp = filer.getFilePointer();
+        if (fp < startOfFP || fp > endOfFP) {
+            throw new IndexOutOfBoundsException("FP out of bounds " + fp + " " + this);
+        } else if (fp == endOfFP) {
+            return -1;
+        }
+        long len = Math.min(endOfFP - fp, maxBytes);
+        if (filer instanceof TransferableFiler) {
+            return ((TransferableFiler) filer).transferTo(target, len);
+        }
+        long transferred = FilerIO.copy(filer, target, len, -1);
+        return (transferred == 0 && len > 0) ? -1 : transferred;
+    }
+
     @Override
     final public void seek(long position) throws IOException {
         if (position > endOfFP - startOfFP) {
@@ -153,4 +199,61 @@ public class ChunkFiler implements Filer {
         filer.flush();
     }
 
+    @Override
+    final public byte getByte(long position) throws IOException {
+        return filer.getByte(absolute(position, 1));
+    }
+
+    @Override
+    final public short getShort(long position) throws IOException {
+        return filer.getShort(absolute(position, 2));
+    }
+
+    @Override
+    final public int getInt(long position) throws IOException {
+        return filer.getInt(absolute(position, 4));
+    }
+
+    @Override
+    final public long getLong(long position) throws IOException {
+        return filer.getLong(absolute(position, 8));
+    }
+
+    @Override
+    final public void get(long position, byte[] b, int _offset, int _len) throws IOException {
+        filer.get(absolute(position, _len), b, _offset, _len);
+    }
+
+    @Override
+    final public void putByte(long position, byte v) throws IOException {
+        filer.putByte(absolute(position, 1), v);
+    }
+
+    @Override
+    final public void putShort(long position, short v) throws IOException {
+        filer.putShort(absolute(position, 2), v);
+    }
+
+    @Override
+    final public void putInt(long position, int v) throws IOException {
+        filer.putInt(absolute(position, 4), v);
+    }
+
+    @Override
+    final public void putLong(long position, long v) throws IOException {
+        filer.putLong(absolute(position, 8), v);
+    }
+
+    @Override
+    final public void put(long position, byte[] b, int _offset, int _len) throws IOException {
+        filer.put(absolute(position, _len), b, _offset, _len);
+    }
+
+    private long absolute(long position, int len) {
+        if (position < 0 || position > (endOfFP - startOfFP - len)) {
+            throw new IndexOutOfBoundsException("An access at position:" + position + " with a len:" + len + " will overflow bounds. " + this);
+        }
+        return startOfFP + position;
+    }
+
 }
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2015 Jive Software.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jivesoftware.os.filer.io.chunk;
+
+import com.jivesoftware.os.filer.io.api.ChunkTransaction;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A reference counted pin on one chunk, see ChunkStore.open(). The handle is bound to the one ChunkFiler it was acquired with, every execute is handed
+ * that filer positioned at 0, so a handle must only be executed by one thread at a time. Threads which want to share a chunk each open their own
+ * handle. The chunk is released when the last reference is closed.
+ *
+ * @author jonathan.colt
+ * @param <M>
+ */
+public class ChunkHandle<M> implements Closeable {
+
+    private final ChunkStore chunkStore;
+    private final Chunk<M> chunk;
+    private final ChunkFiler chunkFiler;
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    ChunkHandle(ChunkStore chunkStore, Chunk<M> chunk, ChunkFiler chunkFiler) {
+        this.chunkStore = chunkStore;
+        this.chunk = chunk;
+        this.chunkFiler = chunkFiler;
+    }
+
+    public long getChunkFP() {
+        return chunk.chunkFP;
+    }
+
+    public <R> R execute(ChunkTransaction<M, R> chunkTransaction) throws IOException {
+        if (references.get() <= 0) {
+            throw new IllegalStateException("Handle for chunkFP:" + chunk.chunkFP + " has been closed.");
+        }
+        chunkFiler.seek(0);
+        return chunkTransaction.commit(chunk.monkey, chunkFiler, chunk);
+    }
+
+    /**
+     * Adds a reference which must be matched by its own close().
+     *
+     * @return this
+     */
+    public ChunkHandle<M> retain() {
+        while (true) {
+            int count = references.get();
+            if (count <= 0) {
+                throw new IllegalStateException("Handle for chunkFP:" + chunk.chunkFP + " has been closed.");
+            }
+            if (references.compareAndSet(count, count + 1)) {
+                return this;
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        int count = references.decrementAndGet();
+        if (count == 0) {
+            chunkStore.release(chunk.chunkFP);
+        } else if (count < 0) {
+            references.incrementAndGet();
+            throw new IllegalStateException("Handle for chunkFP:" + chunk.chunkFP + " was closed too many times.");
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ChunkHandle{" + "chunkFP=" + chunk.chunkFP + ", references=" + references.get() + '}';
+    }
+}
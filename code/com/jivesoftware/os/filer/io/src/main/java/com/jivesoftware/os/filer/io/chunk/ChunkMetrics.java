@@ -15,9 +15,11 @@
  */
 package com.jivesoftware.os.filer.io.chunk;
 
+import com.jivesoftware.os.filer.io.LatencyHistogram;
+import com.jivesoftware.os.filer.io.StripedCounter;
 import java.lang.management.ManagementFactory;
-import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import javax.management.InstanceAlreadyExistsException;
 import javax.management.InstanceNotFoundException;
 import javax.management.MBeanRegistrationException;
@@ -27,6 +29,9 @@ import javax.management.NotCompliantMBeanException;
 import javax.management.ObjectName;
 
 /**
+ * Process wide counters and latencies for chunk stores. Metrics asked for with a store name are kept apart per store and also roll up into the
+ * untagged metric of the same name, so the untagged metrics are always the sum over every store. Every metric is handed to the Exporter the first
+ * time it is asked for, by default that registers it with JMX as ChunkStore:type=ChunkMetric,leaf0=... or ChunkStore:type=ChunkMetric,store=...,leaf0=...
  *
  * @author jonathan.colt
  */
@@ -39,17 +44,50 @@ public class ChunkMetrics {
         public String getType();
     }
 
+    static public interface ChunkLatencyMXBean {
+
+        public long getCount();
+
+        public long getTotalNanos();
+
+        public long[] getBuckets();
+
+        public long getP50Nanos();
+
+        public long getP99Nanos();
+
+        public String getType();
+    }
+
+    /**
+     * Where metrics are published, called once per metric as it is first asked for and again for every existing metric by setExporter().
+     */
+    static public interface Exporter {
+
+        void export(String[] path, ChunkMetricMXBean metric);
+
+        void export(String[] path, ChunkLatencyMXBean latency);
+    }
+
     static class ChunkMetric implements ChunkMetricMXBean {
 
-        private volatile long count;
+        private final StripedCounter count = new StripedCounter();
+        private final ChunkMetric rollup;
+
+        private ChunkMetric(ChunkMetric rollup) {
+            this.rollup = rollup;
+        }
 
-        public void inc(int amount) {
-            count += amount;
+        public void inc(long amount) {
+            count.add(amount);
+            if (rollup != null) {
+                rollup.inc(amount);
+            }
         }
 
         @Override
         public long getValue() {
-            return count;
+            return count.sum();
         }
 
         @Override
@@ -59,33 +97,179 @@ public class ChunkMetrics {
 
     }
 
-    static Map<String, ChunkMetric> metrics = new ConcurrentHashMap<>();
+    static class ChunkLatency implements ChunkLatencyMXBean {
 
-    static ChunkMetric get(String... name) {
-        StringBuilder sb = new StringBuilder();
-        for (String n : name) {
-            sb.append(n);
-            sb.append('.');
+        private final LatencyHistogram histogram = new LatencyHistogram();
+        private final ChunkLatency rollup;
+
+        private ChunkLatency(ChunkLatency rollup) {
+            this.rollup = rollup;
+        }
+
+        /**
+         * @param startNanos what System.nanoTime() returned when the timed work began
+         */
+        public void since(long startNanos) {
+            record(System.nanoTime() - startNanos);
+        }
+
+        public void record(long nanos) {
+            histogram.record(nanos);
+            if (rollup != null) {
+                rollup.record(nanos);
+            }
         }
-        ChunkMetric metric = metrics.get(sb.toString());
+
+        @Override
+        public long getCount() {
+            return histogram.count();
+        }
+
+        @Override
+        public long getTotalNanos() {
+            return histogram.totalNanos();
+        }
+
+        @Override
+        public long[] getBuckets() {
+            return histogram.buckets();
+        }
+
+        @Override
+        public long getP50Nanos() {
+            return histogram.percentileNanos(50);
+        }
+
+        @Override
+        public long getP99Nanos() {
+            return histogram.percentileNanos(99);
+        }
+
+        @Override
+        public String getType() {
+            return "ChunkLatency";
+        }
+    }
+
+    static final Exporter JMX = new Exporter() {
+
+        @Override
+        public void export(String[] path, ChunkMetricMXBean metric) {
+            register(path, metric);
+        }
+
+        @Override
+        public void export(String[] path, ChunkLatencyMXBean latency) {
+            register(path, latency);
+        }
+    };
+
+    private static final String cStorePrefix = "store:"; // marks the first element of a tagged path
+
+    private static final ConcurrentMap<String, ChunkMetric> metrics = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, ChunkLatency> latencies = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, String[]> paths = new ConcurrentHashMap<>();
+    private static volatile Exporter exporter = JMX;
+
+    /**
+     * Replaces the JMX default. Every metric which already exists is exported to the new exporter before this returns.
+     *
+     * @param exporter
+     */
+    public static synchronized void setExporter(Exporter exporter) {
+        ChunkMetrics.exporter = exporter;
+        for (String key : metrics.keySet()) {
+            exporter.export(paths.get(key), metrics.get(key));
+        }
+        for (String key : latencies.keySet()) {
+            exporter.export(paths.get(key), latencies.get(key));
+        }
+    }
+
+    static ChunkMetric get(String... name) {
+        return tagged(null, name);
+    }
+
+    /**
+     * @param store nullable in which case this is the untagged metric
+     * @param name
+     * @return the one metric for store and name
+     */
+    static ChunkMetric tagged(String store, String... name) {
+        String[] path = path(store, name);
+        String key = key(path);
+        ChunkMetric metric = metrics.get(key);
         if (metric == null) {
-            metric = new ChunkMetric();
-            metrics.put(sb.toString(), metric);
-            register(name, metric);
+            synchronized (ChunkMetrics.class) {
+                metric = metrics.get(key);
+                if (metric == null) {
+                    metric = new ChunkMetric(store == null ? null : get(name));
+                    paths.put(key, path);
+                    metrics.put(key, metric);
+                    exporter.export(path, metric);
+                }
+            }
         }
         return metric;
+    }
 
+    /**
+     * @param store nullable in which case this is the untagged latency
+     * @param name
+     * @return the one latency for store and name
+     */
+    static ChunkLatency latency(String store, String... name) {
+        String[] path = path(store, name);
+        String key = key(path);
+        ChunkLatency latency = latencies.get(key);
+        if (latency == null) {
+            synchronized (ChunkMetrics.class) {
+                latency = latencies.get(key);
+                if (latency == null) {
+                    latency = new ChunkLatency(store == null ? null : latency(null, name));
+                    paths.put(key, path);
+                    latencies.put(key, latency);
+                    exporter.export(path, latency);
+                }
+            }
+        }
+        return latency;
+    }
+
+    private static String[] path(String store, String[] name) {
+        if (store == null) {
+            return name;
+        }
+        String[] path = new String[name.length + 1];
+        path[0] = cStorePrefix + store;
+        System.arraycopy(name, 0, path, 1, name.length);
+        return path;
+    }
+
+    static String key(String[] path) {
+        StringBuilder sb = new StringBuilder();
+        for (String n : path) {
+            sb.append(n);
+            sb.append('.');
+        }
+        return sb.toString();
     }
 
     static private void register(String[] path, Object mbean) {
 
         StringBuilder sb = new StringBuilder();
-        for (int i = 0; i < path.length; i++) {
-            if (i != 0) {
+        int first = 0;
+        if (path[0].startsWith(cStorePrefix)) {
+            sb.append("store=");
+            sb.append(ObjectName.quote(path[0].substring(cStorePrefix.length())));
+            first = 1;
+        }
+        for (int i = first; i < path.length; i++) {
+            if (sb.length() > 0) {
                 sb.append(",");
             }
             sb.append("leaf");
-            sb.append(i);
+            sb.append(i - first);
             sb.append("=");
             sb.append(path[i]);
         }
@@ -15,16 +15,32 @@
  */
 package com.jivesoftware.os.filer.io.chunk;
 
-import com.jivesoftware.os.filer.io.AutoGrowingByteBufferBackedFiler;
+import com.jivesoftware.os.filer.io.ByteBufferBackedFiler;
 import com.jivesoftware.os.filer.io.Copyable;
 import com.jivesoftware.os.filer.io.CreateFiler;
+import com.jivesoftware.os.filer.io.DuplicatableFiler;
 import com.jivesoftware.os.filer.io.Filer;
 import com.jivesoftware.os.filer.io.FilerIO;
 import com.jivesoftware.os.filer.io.OpenFiler;
 import com.jivesoftware.os.filer.io.api.ChunkTransaction;
 import java.io.IOException;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * @author jonathan.colt
@@ -32,31 +48,58 @@ import java.util.concurrent.atomic.AtomicLong;
 public class ChunkStore implements Copyable<ChunkStore> {
 
     private static final int maxChunkPower = 32;
-    private static ChunkMetrics.ChunkMetric[] allocates = new ChunkMetrics.ChunkMetric[maxChunkPower];
-    private static ChunkMetrics.ChunkMetric[] gets = new ChunkMetrics.ChunkMetric[maxChunkPower];
-    private static ChunkMetrics.ChunkMetric[] reuses = new ChunkMetrics.ChunkMetric[maxChunkPower];
-    private static ChunkMetrics.ChunkMetric[] removes = new ChunkMetrics.ChunkMetric[maxChunkPower];
-
-    static {
-        for (int i = 0; i < maxChunkPower; i++) {
-            String size = "2_pow_" + (i > 9 ? i : "0" + i) + "_" + FilerIO.chunkLength(i) + "_bytes";
-            allocates[i] = ChunkMetrics.get(size, "allocate");
-            gets[i] = ChunkMetrics.get(size, "get");
-            reuses[i] = ChunkMetrics.get(size, "reuse");
-            removes[i] = ChunkMetrics.get(size, "remove");
-        }
-    }
+    private ChunkMetrics.ChunkMetric[] allocates = new ChunkMetrics.ChunkMetric[maxChunkPower];
+    private ChunkMetrics.ChunkMetric[] gets = new ChunkMetrics.ChunkMetric[maxChunkPower];
+    private ChunkMetrics.ChunkMetric[] reuses = new ChunkMetrics.ChunkMetric[maxChunkPower];
+    private ChunkMetrics.ChunkMetric[] removes = new ChunkMetrics.ChunkMetric[maxChunkPower];
+    private ChunkMetrics.ChunkMetric[] splits = new ChunkMetrics.ChunkMetric[maxChunkPower];
+    private ChunkMetrics.ChunkMetric scrubPendingBytes;
+    private ChunkMetrics.ChunkMetric scrubbedBytes;
+    private ChunkMetrics.ChunkMetric reuseZeroedBytes;
+    private ChunkMetrics.ChunkMetric coalescedChunks;
+    private ChunkMetrics.ChunkMetric coalescedTailBytes;
+    private ChunkMetrics.ChunkLatency allocateLatency;
+    private ChunkMetrics.ChunkLatency getLatency;
+    private ChunkMetrics.ChunkLatency removeLatency;
 
     static final long cMagicNumber = Long.MAX_VALUE;
     static final int cMinPower = 8;
+    static final int cLegacyHeaderLength = 8 + 8 + 8 + 8; // magicNumber, chunkPower, next free chunk of equal size, chunkLength
+    static final int cCompactHeaderLength = 8; // magic:40 checksum:8 flags:8 chunkPower:8, a free chunk keeps its next free fp in its first body long
+    static final long cCompactFormat = 1; // format version, kept in the top byte of the persisted lengthOfFile so legacy stores read as 0
+    private static final long cCompactMagic = 0xC4A3D1E5B7L;
+    private static final long cCompactDirty = 1L << 8;
+    private static final long cLengthOfFileMask = (1L << 56) - 1;
+    static final long cDirty = -2; // chunkLength of a removed chunk whose bytes have not been zeroed yet, -1 once they have, never left in format 0
+    private static final long cScrubSlice = 1024 * 1024; // most bytes zeroed per stripe tx so the scrubber never holds a stripe for long
 
-    //private final TwoPhasedChunkCache chunkCache;
-    private long lengthOfFile = 8 + 8 + (8 * (64 - cMinPower));
+    private String metricsName; // null when this store only feeds the untagged metrics
+    private int maxIdleProbation = 32; // per stripe, so the default grows with the number of stripes
+    private int maxIdleProtected = 32; // per stripe
+    private volatile TwoPhasedChunkCache[] idleChunks; // opened chunks nobody has acquired, one cache per stripe
+    private final AtomicLong lengthOfFile = new AtomicLong(8 + 8 + (8 * (64 - cMinPower))); // bumped to reserve the tail for new chunks
+    private final Object headerLock = new Object();
+    private long persistedLengthOfFile; // guarded by headerLock
+    private volatile long capacity; // what the root filer was last grown to, only a hint
+    private final Object[] freeLocks = new Object[65]; // one per chunk power, guards that powers free list
+    private final AtomicIntegerArray freeHints = new AtomicIntegerArray(65); // 0 once a power's free list was seen empty, set under its free lock
+    private final ThreadLocal<Arena> arenas = new ThreadLocal<>();
+    private final Set<Arena> allArenas = Collections.newSetFromMap(new ConcurrentHashMap<Arena, Boolean>());
+    private volatile long arenaSize;
+    private final ConcurrentLinkedQueue<Long> scrubQueue = new ConcurrentLinkedQueue<>();
+    private final AtomicLong pendingScrubBytes = new AtomicLong();
+    private final AtomicReference<Throwable> forceFailure = new AtomicReference<>(); // left by a periodic force which then stopped, thrown by commit()
+    private final AtomicReference<Throwable> scrubFailure = new AtomicReference<>(); // left by a scheduled scrub which then stopped, thrown by scrub()
+    private final Set<Future<?>> scheduled = Collections.newSetFromMap(new ConcurrentHashMap<Future<?>, Boolean>()); // cancelled by close()
+    private final AtomicReference<Throwable> coalesceFailure = new AtomicReference<>(); // left by a scheduled coalesce which then stopped, thrown by coalesce()
     private long referenceNumber = 0;
+    private long format = 0; // set by createAndOpen() or open()
+    private int headerLength = cLegacyHeaderLength; // set by createAndOpen() or open()
 
     //private final Object headerLock = new Object();
-    //private AutoGrowingByteBufferBackedFiler filer;
+    //private DuplicatableFiler filer;
     private StripedFiler filer;
+    private FlushPolicy flushPolicy = FlushPolicy.none();
 
     /*
      New Call Sequence
@@ -64,10 +107,6 @@ public class ChunkStore implements Copyable<ChunkStore> {
      chunks.setup(100);
      chunks.createAndOpen(_filer);
      */
-    //public ChunkStore(ByteBufferFactory byteBufferFactory, int initialCacheSize, int maxNewCacheSize) {
-    //this.chunkCache = new TwoPhasedChunkCache(byteBufferFactory, initialCacheSize, maxNewCacheSize);
-    //}
-
     /*
      Existing Call Sequence
      ChunkStore chunks = new ChunkStore(locks, filer);
@@ -75,11 +114,54 @@ public class ChunkStore implements Copyable<ChunkStore> {
      */
     public ChunkStore(StripedFiler filer) throws Exception {
         this.filer = filer;
+        for (int i = 0; i < freeLocks.length; i++) {
+            freeLocks[i] = new Object();
+            freeHints.set(i, 1);
+        }
+        initMetrics();
+        initIdleChunks();
+    }
+
+    private void initIdleChunks() {
+        TwoPhasedChunkCache[] caches = new TwoPhasedChunkCache[filer.numberOfStripes()];
+        for (int i = 0; i < caches.length; i++) {
+            caches[i] = new TwoPhasedChunkCache(metricsName, maxIdleProbation, maxIdleProtected);
+        }
+        TwoPhasedChunkCache[] was = idleChunks;
+        idleChunks = caches;
+        if (was != null) {
+            for (TwoPhasedChunkCache cache : was) {
+                cache.clear();
+            }
+        }
+    }
+
+    private TwoPhasedChunkCache idleChunks(long chunkFP) {
+        return idleChunks[filer.stripe(chunkFP)];
+    }
+
+    private void initMetrics() {
+        for (int i = 0; i < maxChunkPower; i++) {
+            String size = "2_pow_" + (i > 9 ? i : "0" + i) + "_" + FilerIO.chunkLength(i) + "_bytes";
+            allocates[i] = ChunkMetrics.tagged(metricsName, size, "allocate");
+            gets[i] = ChunkMetrics.tagged(metricsName, size, "get");
+            reuses[i] = ChunkMetrics.tagged(metricsName, size, "reuse");
+            removes[i] = ChunkMetrics.tagged(metricsName, size, "remove");
+            splits[i] = ChunkMetrics.tagged(metricsName, size, "split");
+        }
+        scrubPendingBytes = ChunkMetrics.tagged(metricsName, "scrub", "pendingBytes");
+        scrubbedBytes = ChunkMetrics.tagged(metricsName, "scrub", "scrubbedBytes");
+        reuseZeroedBytes = ChunkMetrics.tagged(metricsName, "scrub", "reuseZeroedBytes");
+        coalescedChunks = ChunkMetrics.tagged(metricsName, "coalesce", "mergedChunks");
+        coalescedTailBytes = ChunkMetrics.tagged(metricsName, "coalesce", "tailBytes");
+        allocateLatency = ChunkMetrics.latency(metricsName, "latency", "allocate");
+        getLatency = ChunkMetrics.latency(metricsName, "latency", "get");
+        removeLatency = ChunkMetrics.latency(metricsName, "latency", "remove");
     }
 
     /*
      * file header format
-     * lengthOfFile
+     * format << 56 | lengthOfFile
      * referenceNumber
      * free 2^8
      * free 2^9
@@ -87,7 +169,7 @@ public class ChunkStore implements Copyable<ChunkStore> {
      * free 2^64
      */
     public void setup(long _referenceNumber) {
-        lengthOfFile = 8 + 8 + (8 * (64 - cMinPower));
+        lengthOfFile.set(8 + 8 + (8 * (64 - cMinPower)));
         referenceNumber = _referenceNumber;
     }
 
@@ -106,10 +188,15 @@ public class ChunkStore implements Copyable<ChunkStore> {
         this.filer.rootTx(-1L, new StripedFiler.StripeTx<Void>() {
 
             @Override
-            public Void tx(long fp, ChunkCache chunkCache, AutoGrowingByteBufferBackedFiler filer) throws IOException {
-                filer.seek(0);
-                FilerIO.writeLong(filer, lengthOfFile, "lengthOfFile");
+            public Void tx(long fp, ChunkCache chunkCache, DuplicatableFiler filer) throws IOException {
+                format = cCompactFormat;
+                headerLength = cCompactHeaderLength;
+                writeLengthOfFile(filer, lengthOfFile.get());
+                filer.seek(8);
                 FilerIO.writeLong(filer, referenceNumber, "referenceNumber");
+                synchronized (headerLock) {
+                    persistedLengthOfFile = lengthOfFile.get();
+                }
                 for (int i = cMinPower; i < 65; i++) {
                     FilerIO.writeLong(filer, -1, "free");
                 }
@@ -124,33 +211,183 @@ public class ChunkStore implements Copyable<ChunkStore> {
         this.filer.rootTx(-1L, new StripedFiler.StripeTx<Void>() {
 
             @Override
-            public Void tx(long fp, ChunkCache chunkCache, AutoGrowingByteBufferBackedFiler filer) throws IOException {
+            public Void tx(long fp, ChunkCache chunkCache, DuplicatableFiler filer) throws IOException {
                 filer.seek(0);
-                lengthOfFile = FilerIO.readLong(filer, "lengthOfFile");
+                long formatAndLength = FilerIO.readLong(filer, "lengthOfFile");
+                format = formatAndLength >>> 56;
+                if (format == 0) {
+                    headerLength = cLegacyHeaderLength;
+                } else if (format == cCompactFormat) {
+                    headerLength = cCompactHeaderLength;
+                } else {
+                    throw new IOException("Unsupported chunk store format " + format);
+                }
+                lengthOfFile.set(formatAndLength & cLengthOfFileMask);
                 referenceNumber = FilerIO.readLong(filer, "referenceNumber");
+                synchronized (headerLock) {
+                    persistedLengthOfFile = lengthOfFile.get();
+                }
                 return null;
             }
         });
     }
 
+    /**
+     * Moves a format 0 store which has never allocated a chunk onto the current format. open() never does this on its own because binaries which
+     * predate the format byte can no longer open the store afterwards, so only call it once every reader of the store understands the format.
+     * Populated format 0 stores are not migrated and keep their 32 byte chunk headers. Call right after open(), before the store is used.
+     *
+     * @return true if the store was upgraded, false if it already was on the current format or holds chunks
+     * @throws IOException
+     */
+    public boolean upgradeEmptyStore() throws IOException {
+        return filer.rootTx(-1L, new StripedFiler.StripeTx<Boolean>() {
+
+            @Override
+            public Boolean tx(long fp, ChunkCache chunkCache, DuplicatableFiler filer) throws IOException {
+                synchronized (headerLock) {
+                    long empty = 8 + 8 + (8 * (64 - cMinPower));
+                    if (format != 0 || persistedLengthOfFile != empty || lengthOfFile.get() != empty) {
+                        return false;
+                    }
+                    format = cCompactFormat;
+                    headerLength = cCompactHeaderLength;
+                    writeLengthOfFile(filer, empty);
+                    filer.flush();
+                    return true;
+                }
+            }
+        });
+    }
+
+    /**
+     * Stops the scheduled force, scrubber and coalescer, hands whatever is left of the writer threads arenas back to the free lists and forces the
+     * store. Call once nothing is writing to the store anymore, a store which used arenas and is not closed keeps their unused space reserved.
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        for (Future<?> future : scheduled) {
+            future.cancel(false);
+        }
+        scheduled.clear();
+        setArenaSize(0);
+        force();
+    }
+
     public void delete() throws IOException {
 
     }
 
+    /**
+     * Call before createAndOpen() or open(). Stores given a name keep their own ChunkMetrics tagged with it, they still add into the untagged ones.
+     *
+     * @param metricsName
+     */
+    public void setMetricsName(String metricsName) {
+        this.metricsName = metricsName;
+        initMetrics();
+        initIdleChunks();
+    }
+
+    /**
+     * Call before createAndOpen() or open().
+     *
+     * @param flushPolicy
+     */
+    public void setFlushPolicy(FlushPolicy flushPolicy) {
+        this.flushPolicy = flushPolicy;
+        if (flushPolicy.durability == FlushPolicy.Durability.PERIODIC) {
+            schedule(this, flushPolicy.executor, flushPolicy.intervalMillis, forceFailure, new ScheduledTask() {
+
+                @Override
+                public void run(ChunkStore store) throws IOException {
+                    store.force();
+                }
+            });
+        }
+    }
+
+    /**
+     * Forces everything written so far to disk when the flush policy is COMMIT, otherwise this is a no-op and durability is up to the policy. Under
+     * PERIODIC the first commit after a periodic force failed throws that failure, periodic forcing has stopped by then.
+     *
+     * @throws IOException
+     */
+    public void commit() throws IOException {
+        throwFailure(forceFailure, "Periodic force failed and was stopped.");
+        if (flushPolicy.durability == FlushPolicy.Durability.COMMIT) {
+            force();
+        }
+    }
+
+    private void force() throws IOException {
+        filer.rootTx(-1L, new StripedFiler.StripeTx<Void>() {
+
+            @Override
+            public Void tx(long fp, ChunkCache chunkCache, DuplicatableFiler filer) throws IOException {
+                filer.force();
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Runs task on executor every intervalMillis until the store is collected, the store is only held weakly so an abandoned one is left alone. A
+     * task which fails is stopped and leaves its failure in failure for the store to throw on the next matching call.
+     */
+    private static void schedule(ChunkStore chunkStore, ScheduledExecutorService executor, long intervalMillis,
+        final AtomicReference<Throwable> failure, final ScheduledTask task) {
+        final WeakReference<ChunkStore> reference = new WeakReference<>(chunkStore);
+        final Future<?>[] future = new Future<?>[1];
+        synchronized (future) {
+            future[0] = executor.scheduleWithFixedDelay(new Runnable() {
+
+                @Override
+                public void run() {
+                    ChunkStore store = reference.get();
+                    try {
+                        if (store != null) {
+                            task.run(store);
+                            return;
+                        }
+                    } catch (Throwable t) {
+                        failure.set(t);
+                    }
+                    synchronized (future) {
+                        future[0].cancel(false);
+                    }
+                }
+            }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+            chunkStore.scheduled.add(future[0]);
+        }
+    }
+
+    private interface ScheduledTask {
+
+        void run(ChunkStore store) throws IOException;
+    }
+
+    private static void throwFailure(AtomicReference<Throwable> failure, String message) throws IOException {
+        Throwable t = failure.getAndSet(null);
+        if (t != null) {
+            throw new IOException(message, t);
+        }
+    }
+
     @Override
     public void copyTo(final ChunkStore to) throws IOException {
         this.filer.rootTx(-1L, new StripedFiler.StripeTx<Void>() {
             @Override
-            public Void tx(long fp, ChunkCache chunkCache, final AutoGrowingByteBufferBackedFiler fromFiler) throws IOException {
+            public Void tx(long fp, ChunkCache chunkCache, final DuplicatableFiler fromFiler) throws IOException {
                 to.filer.rootTx(-1L,
                     new StripedFiler.StripeTx<Void>() {
 
                         @Override
-                        public Void tx(long fp, ChunkCache chunkCache, AutoGrowingByteBufferBackedFiler toFiler) throws IOException {
+                        public Void tx(long fp, ChunkCache chunkCache, DuplicatableFiler toFiler) throws IOException {
                             fromFiler.seek(0);
                             toFiler.seek(0);
-                            //TODO if these filers are both byte buffer backed then it's much faster to do an NIO ByteBuffer.put()
-                            FilerIO.copy(fromFiler, toFiler, lengthOfFile, -1);
+                            FilerIO.copy(fromFiler, toFiler, lengthOfFile.get(), -1);
                             to.open();
                             return null;
                         }
@@ -160,8 +397,15 @@ public class ChunkStore implements Copyable<ChunkStore> {
         });
     }
 
+    /**
+     * Drops every opened chunk nobody has acquired, they are reopened the next time they are executed.
+     *
+     * @throws IOException
+     */
     public void rollCache() throws IOException {
-        //chunkCache.roll();
+        for (TwoPhasedChunkCache cache : idleChunks) {
+            cache.clear();
+        }
     }
 
     public long getReferenceNumber() {
@@ -177,77 +421,591 @@ public class ChunkStore implements Copyable<ChunkStore> {
      * @throws IOException
      */
     public <M, H> long newChunk(final H hint, final CreateFiler<H, M, ChunkFiler> createFiler) throws IOException {
-        long _capacity = createFiler.sizeInBytes(hint);
+        long start = System.nanoTime();
+        final long _capacity = createFiler.sizeInBytes(hint);
         final int chunkPower = FilerIO.chunkPower(_capacity, cMinPower);
-        final long chunkLength = FilerIO.chunkLength(chunkPower)
-            + 8 // add magicNumber
-            + 8 // add chunkPower
-            + 8 // add next free chunk of equal size
-            + 8; // add bytesLength
+        final long chunkLength = FilerIO.chunkLength(chunkPower) + headerLength;
         final long chunkPosition = freeSeek(chunkPower);
-        final AtomicBoolean reused = new AtomicBoolean(false);
-        final AtomicLong chunkFP = new AtomicLong(-1);
 
-        this.filer.rootTx(-1L, new StripedFiler.StripeTx<Void>() {
+        long arenaSize = this.arenaSize;
+        boolean fromArena = arenaSize > 0 && chunkLength <= arenaSize / 8;
 
-            @Override
-            public Void tx(long fp, ChunkCache chunkCache, AutoGrowingByteBufferBackedFiler filer) throws IOException {
-                long reuseFp = reuseChunk(filer, chunkPosition);
+        long reuseFP = -1;
+        if (!fromArena || freeHints.get(chunkPower) != 0) {
+            synchronized (freeLocks[chunkPower]) {
+                reuseFP = filer.tx(chunkPosition, new StripedFiler.StripeTx<Long>() {
 
-                if (reuseFp == -1) {
-                    long newChunkFP = lengthOfFile;
-                    filer.seek(newChunkFP + chunkLength - 1); // last byte in chunk
-                    filer.write(0); // cause file backed ChunkStore to grow file on disk. Use setLength()?
-                    filer.seek(newChunkFP);
-                    FilerIO.writeLong(filer, cMagicNumber, "magicNumber");
-                    FilerIO.writeLong(filer, chunkPower, "chunkPower");
-                    FilerIO.writeLong(filer, -1, "chunkNexFreeChunkFP");
-                    FilerIO.writeLong(filer, chunkLength, "chunkLength");
-                    lengthOfFile += chunkLength;
-                    filer.seek(lengthOfFile); //  force allocation of space
-                    filer.seek(0);
-                    FilerIO.writeLong(filer, lengthOfFile, "lengthOfFile");
-                    filer.flush();
-                    reuseFp = newChunkFP;
-                    reused.set(true);
+                    @Override
+                    public Long tx(long fp, ChunkCache chunkCache, DuplicatableFiler filer) throws IOException {
+                        return reuseChunk(filer, chunkPosition);
+                    }
+                });
+                if (reuseFP == -1) {
+                    freeHints.set(chunkPower, 0);
                 }
-                chunkFP.set(reuseFp);
-                return null;
             }
-        });
+        }
 
-        if (reused.get()) {
-            reuses[chunkPower].inc(1);
-        } else {
+        if (reuseFP == -1) {
+            reuseFP = split(chunkPower);
+        }
+
+        final boolean fresh = (reuseFP == -1);
+        final long chunkFP;
+        if (fresh) {
+            if (fromArena) {
+                chunkFP = arenaAllocate(chunkLength, arenaSize);
+            } else {
+                chunkFP = lengthOfFile.getAndAdd(chunkLength);
+                ensureCapacity(chunkFP + chunkLength);
+            }
             allocates[chunkPower].inc(1);
+        } else {
+            chunkFP = reuseFP;
+            reuses[chunkPower].inc(1);
         }
 
-        filer.tx(chunkFP.get(), new StripedFiler.StripeTx<Void>() {
+        filer.tx(chunkFP, new StripedFiler.StripeTx<Void>() {
 
             @Override
-            public Void tx(long fp, ChunkCache chunkCache, AutoGrowingByteBufferBackedFiler filer) throws IOException {
-                filer.seek(fp);
-                long magicNumber = FilerIO.readLong(filer, "magicNumber");
-                if (magicNumber != cMagicNumber) {
-                    throw new IOException("Invalid chunkFP " + fp);
+            public Void tx(long fp, ChunkCache chunkCache, DuplicatableFiler filer) throws IOException {
+                if (fresh) {
+                    writeHeader(filer, fp, chunkPower, chunkLength);
+                    persistLengthOfFile(filer, fp + chunkLength);
                 }
-                int chunkPower = (int) FilerIO.readLong(filer, "chunkPower");
-                FilerIO.readLong(filer, "chunkNexFreeChunkFP");
-                FilerIO.readLong(filer, "chunkLength");
+                boolean dirty = isDirty(filer, fp);
+                int chunkPower = readHeader(filer, fp);
                 long startOfFP = filer.getFilePointer();
                 long endOfFP = startOfFP + FilerIO.chunkLength(chunkPower);
+                if (dirty) {
+                    long needed = Math.min(_capacity, endOfFP - startOfFP);
+                    zero(filer, needed);
+                    markScrubbed(filer, fp, chunkPower);
+                    reuseZeroedBytes.inc(needed);
+                }
                 ChunkFiler chunkFiler = new ChunkFiler(ChunkStore.this, filer.duplicate(startOfFP, endOfFP), fp, startOfFP, endOfFP);
                 chunkFiler.seek(0);
                 M monkey = createFiler.create(hint, chunkFiler);
-                chunkCache.set(fp, new Chunk<>(monkey, fp, startOfFP, endOfFP), 2);
+                idleChunks(fp).put(new Chunk<>(monkey, fp, startOfFP, endOfFP));
+                return null;
+            }
+        });
+        allocateLatency.since(start);
+        return chunkFP;
+    }
+
+    /**
+     * Chunks up to an eighth of arenaSize are carved out of a region each writer thread reserves for itself, so allocating one is a pointer bump which
+     * touches no shared state. Free lists are still consulted first, but only while a power is known to have something on its list. What is left of a
+     * threads region when it runs out, when the thread is found dead, or when releaseArenas() or close() is called, goes onto the free lists. Space
+     * reserved for arenas which is still unused when the process stops without close() stays unused, at most arenaSize per writer thread.
+     *
+     * @param arenaSize 0 turns arenas off
+     * @throws IOException
+     */
+    public void setArenaSize(long arenaSize) throws IOException {
+        this.arenaSize = arenaSize;
+        if (arenaSize <= 0) {
+            releaseArenas();
+        }
+    }
+
+    /**
+     * Bounds how many opened chunks are kept once their last acquisition is released, see TwoPhasedChunkCache. Each stripe keeps its own cache so the
+     * caches are only ever touched under their stripes lock, and the bounds apply to every stripe, so the store as a whole keeps up to numberOfStripes
+     * times as many. Chunks map to stripes by fp, a hot set only fits when no stripe gets more of it than these bounds. Defaults to 32 and 32, which
+     * with 128 stripes keeps up to 4096 of each across the store. Chunks which were already kept are dropped.
+     *
+     * @param maxProbation chunks executed once per stripe, 0 turns the cache off so every execute of an unacquired chunk reopens it
+     * @param maxProtected chunks executed more than once per stripe
+     */
+    public void setIdleChunkCache(int maxProbation, int maxProtected) {
+        this.maxIdleProbation = maxProbation;
+        this.maxIdleProtected = maxProtected;
+        initIdleChunks();
+    }
+
+    /**
+     * Hands whatever the writer threads haven't yet carved out of their arenas back to the free lists, call before closing or copying the store.
+     *
+     * @throws IOException
+     */
+    public void releaseArenas() throws IOException {
+        for (Arena arena : allArenas) {
+            synchronized (arena) {
+                retire(arena);
+                allArenas.remove(arena);
+            }
+        }
+    }
+
+    /**
+     * Retires the arenas of writer threads which have died, nothing else would ever hand what is left of them back.
+     */
+    private void releaseOrphanedArenas() throws IOException {
+        for (Arena arena : allArenas) {
+            Thread owner = arena.owner.get();
+            if (owner == null || !owner.isAlive()) {
+                synchronized (arena) {
+                    retire(arena);
+                    allArenas.remove(arena);
+                }
+            }
+        }
+    }
+
+    private long arenaAllocate(long chunkLength, final long arenaSize) throws IOException {
+        Arena arena = arenas.get();
+        if (arena == null) {
+            releaseOrphanedArenas();
+            arena = new Arena(Thread.currentThread());
+            arenas.set(arena);
+        }
+        synchronized (arena) {
+            if (arena.next + chunkLength > arena.end) {
+                retire(arena);
+                allArenas.add(arena); // releaseArenas() may have let go of it
+                final long start = lengthOfFile.getAndAdd(arenaSize);
+                ensureCapacity(start + arenaSize);
+                filer.tx(start, new StripedFiler.StripeTx<Void>() {
+
+                    @Override
+                    public Void tx(long fp, ChunkCache chunkCache, DuplicatableFiler filer) throws IOException {
+                        persistLengthOfFile(filer, start + arenaSize);
+                        return null;
+                    }
+                });
+                arena.next = start;
+                arena.end = start + arenaSize;
+            }
+            long chunkFP = arena.next;
+            arena.next += chunkLength;
+            return chunkFP;
+        }
+    }
+
+    /**
+     * Synchronize externally on arena. Frees whatever is left of the arena.
+     */
+    private void retire(Arena arena) throws IOException {
+        carveFree(arena.next, arena.end, false);
+        arena.next = arena.end;
+    }
+
+    /**
+     * Carves [from, to) into the largest chunks that fit and frees them. Anything smaller than the smallest chunk is left as slack after the last one,
+     * coalesce() folds slack back in once a neighbour is free. Dirty chunks are queued for the scrubber.
+     *
+     * @return how many chunks were freed
+     */
+    private int carveFree(long from, long to, final boolean dirty) throws IOException {
+        int count = 0;
+        long minChunkLength = FilerIO.chunkLength(cMinPower) + headerLength;
+        while (to - from >= minChunkLength) {
+            final int chunkPower = Math.min(maxChunkPower - 1, 63 - Long.numberOfLeadingZeros(to - from - headerLength));
+            long chunkFP = from;
+            from += FilerIO.chunkLength(chunkPower) + headerLength;
+            synchronized (freeLocks[chunkPower]) {
+                filer.tx(chunkFP, new StripedFiler.StripeTx<Void>() {
+
+                    @Override
+                    public Void tx(long fp, ChunkCache chunkCache, DuplicatableFiler filer) throws IOException {
+                        writeFreeHeader(filer, fp, chunkPower, dirty);
+                        pushFree(filer, fp, chunkPower);
+                        return null;
+                    }
+                });
+                freeHints.set(chunkPower, 1);
+            }
+            if (dirty && deferZeroing()) {
+                scrubQueue.add(chunkFP);
+            }
+            count++;
+        }
+        return count;
+    }
+
+    private void writeFreeHeader(Filer filer, long fp, int chunkPower, boolean dirty) throws IOException {
+        if (dirty && !deferZeroing()) {
+            filer.seek(fp + headerLength);
+            zero(filer, FilerIO.chunkLength(chunkPower));
+            dirty = false;
+        }
+        writeHeader(filer, fp, chunkPower, dirty ? cDirty : -1);
+        if (dirty) {
+            long bytes = FilerIO.chunkLength(chunkPower);
+            pendingScrubBytes.addAndGet(bytes);
+            scrubPendingBytes.inc(bytes);
+        }
+    }
+
+    /**
+     * Only versioned stores may hold free chunks which still need zeroing. Binaries which predate the format byte never zero a chunk on reuse and
+     * still open format 0 stores, so those are zeroed on remove like they always were.
+     */
+    private boolean deferZeroing() {
+        return format >= cCompactFormat;
+    }
+
+    /**
+     * Takes the smallest larger free chunk there is, keeps its head for a chunk of chunkPower and frees the rest as the largest chunks that fit.
+     *
+     * @return the fp of a free chunk of chunkPower, already off the free lists, or -1 if nothing larger is free
+     */
+    private long split(final int chunkPower) throws IOException {
+        for (int power = chunkPower + 1; power < maxChunkPower; power++) {
+            if (freeHints.get(power) == 0) {
+                continue;
+            }
+            final long position = freeSeek(power);
+            long splitFP;
+            synchronized (freeLocks[power]) {
+                splitFP = filer.tx(position, new StripedFiler.StripeTx<Long>() {
+
+                    @Override
+                    public Long tx(long fp, ChunkCache chunkCache, DuplicatableFiler filer) throws IOException {
+                        return reuseChunk(filer, position);
+                    }
+                });
+                if (splitFP == -1) {
+                    freeHints.set(power, 0);
+                    continue;
+                }
+            }
+
+            final int splitPower = power;
+            boolean dirty = filer.tx(splitFP, new StripedFiler.StripeTx<Boolean>() {
+
+                @Override
+                public Boolean tx(long fp, ChunkCache chunkCache, DuplicatableFiler filer) throws IOException {
+                    boolean dirty = isDirty(filer, fp);
+                    if (dirty) {
+                        long bytes = FilerIO.chunkLength(splitPower);
+                        pendingScrubBytes.addAndGet(-bytes);
+                        scrubPendingBytes.inc(-bytes);
+                    }
+                    writeFreeHeader(filer, fp, chunkPower, dirty);
+                    return dirty;
+                }
+            });
+            carveFree(splitFP + FilerIO.chunkLength(chunkPower) + headerLength, splitFP + FilerIO.chunkLength(power) + headerLength, dirty);
+            splits[power].inc(1);
+            return splitFP;
+        }
+        return -1;
+    }
+
+    /**
+     * Merges runs of adjacent free chunks into the largest chunks that fit and hands a run which reaches the end of the file back to the end of the
+     * file, so space freed as large chunks can come back as small ones and the other way round. A gap smaller than the smallest chunk between free
+     * chunks, or between a free chunk and the end of the file, can only be slack left by carving and is merged along with them. Every free list is
+     * stopped while this runs, so run it from maintenance with scheduleCoalescer() rather than on the request path.
+     *
+     * @return how many free chunks were merged away
+     * @throws IOException also when a scheduled coalesce failed since the last call
+     */
+    public long coalesce() throws IOException {
+        throwFailure(coalesceFailure, "Scheduled coalesce failed and was stopped.");
+        return coalesce(0);
+    }
+
+    /**
+     * Runs coalesce() on the executor until the store is collected. A failed run stops the coalescer and is thrown by the next coalesce().
+     *
+     * @param executor
+     * @param intervalMillis
+     */
+    public void scheduleCoalescer(ScheduledExecutorService executor, long intervalMillis) {
+        schedule(this, executor, intervalMillis, coalesceFailure, new ScheduledTask() {
+
+            @Override
+            public void run(ChunkStore store) throws IOException {
+                store.coalesce();
+            }
+        });
+    }
+
+    private long coalesce(int power) throws IOException {
+        synchronized (freeLocks[power]) {
+            if (power < freeLocks.length - 1) {
+                return coalesce(power + 1);
+            }
+        }
+        return coalesceLocked();
+    }
+
+    /**
+     * Synchronize externally on every free lock
+     */
+    private long coalesceLocked() throws IOException {
+        List<long[]> free = new ArrayList<>();
+        for (int power = cMinPower; power < maxChunkPower; power++) {
+            final long position = freeSeek(power);
+            long fp = filer.tx(position, new StripedFiler.StripeTx<Long>() {
+
+                @Override
+                public Long tx(long fp, ChunkCache chunkCache, DuplicatableFiler filer) throws IOException {
+                    filer.seek(position);
+                    long head = FilerIO.readLong(filer, "free");
+                    filer.seek(position);
+                    FilerIO.writeLong(filer, -1, "free");
+                    return head;
+                }
+            });
+            Set<Long> seen = new HashSet<>();
+            while (fp != -1 && seen.add(fp)) {
+                free.add(new long[]{fp, power});
+                fp = filer.tx(fp, new StripedFiler.StripeTx<Long>() {
+
+                    @Override
+                    public Long tx(long fp, ChunkCache chunkCache, DuplicatableFiler filer) throws IOException {
+                        return readNextFree(filer, fp);
+                    }
+                });
+            }
+            freeHints.set(power, 0);
+        }
+        Collections.sort(free, new Comparator<long[]>() {
+
+            @Override
+            public int compare(long[] o1, long[] o2) {
+                return Long.compare(o1[0], o2[0]);
+            }
+        });
+
+        long merged = 0;
+        long minChunkLength = FilerIO.chunkLength(cMinPower) + headerLength;
+        int start = 0;
+        while (start < free.size()) {
+            int end = start + 1;
+            List<long[]> slack = new ArrayList<>();
+            long runEnd = free.get(start)[0] + FilerIO.chunkLength((int) free.get(start)[1]) + headerLength;
+            while (end < free.size() && free.get(end)[0] >= runEnd && free.get(end)[0] - runEnd < minChunkLength) {
+                if (free.get(end)[0] > runEnd) {
+                    slack.add(new long[]{runEnd, free.get(end)[0] - runEnd});
+                }
+                runEnd = free.get(end)[0] + FilerIO.chunkLength((int) free.get(end)[1]) + headerLength;
+                end++;
+            }
+            final long length = lengthOfFile.get();
+            boolean atTail = length >= runEnd && length - runEnd < minChunkLength;
+            if (atTail && length > runEnd) {
+                slack.add(new long[]{runEnd, length - runEnd});
+                runEnd = length;
+            }
+            final long runStart = free.get(start)[0];
+            final long tail = runEnd;
+            if (end - start == 1 && !atTail) {
+                final int chunkPower = (int) free.get(start)[1];
+                filer.tx(runStart, new StripedFiler.StripeTx<Void>() {
+
+                    @Override
+                    public Void tx(long fp, ChunkCache chunkCache, DuplicatableFiler filer) throws IOException {
+                        pushFree(filer, fp, chunkPower);
+                        return null;
+                    }
+                });
+                freeHints.set(chunkPower, 1);
+                start = end;
+                continue;
+            }
+
+            boolean dirty = false;
+            List<Long> absorbed = new ArrayList<>();
+            for (int i = start; i < end; i++) {
+                final int chunkPower = (int) free.get(i)[1];
+                dirty |= filer.tx(free.get(i)[0], new StripedFiler.StripeTx<Boolean>() {
+
+                    @Override
+                    public Boolean tx(long fp, ChunkCache chunkCache, DuplicatableFiler filer) throws IOException {
+                        boolean dirty = isDirty(filer, fp);
+                        if (dirty) {
+                            long bytes = FilerIO.chunkLength(chunkPower);
+                            pendingScrubBytes.addAndGet(-bytes);
+                            scrubPendingBytes.inc(-bytes);
+                        }
+                        filer.seek(fp);
+                        zero(filer, headerLength + bodyLinkLength());
+                        return dirty;
+                    }
+                });
+                absorbed.add(free.get(i)[0]);
+            }
+            for (final long[] gap : slack) {
+                // slack can hold whatever was carved out of a dirty chunk but is not covered by any dirty flag
+                filer.tx(gap[0], new StripedFiler.StripeTx<Void>() {
+
+                    @Override
+                    public Void tx(long fp, ChunkCache chunkCache, DuplicatableFiler filer) throws IOException {
+                        filer.seek(fp);
+                        zero(filer, gap[1]);
+                        return null;
+                    }
+                });
+            }
+            scrubQueue.removeAll(absorbed); // before carveFree queues the merged chunks
+
+            if (atTail) {
+                // the tail hands out zeroed space so zero the run before giving it back
+                if (dirty) {
+                    for (long fp = runStart; fp < runEnd; fp += cScrubSlice) {
+                        final long slice = Math.min(cScrubSlice, runEnd - fp);
+                        filer.tx(fp, new StripedFiler.StripeTx<Void>() {
+
+                            @Override
+                            public Void tx(long fp, ChunkCache chunkCache, DuplicatableFiler filer) throws IOException {
+                                filer.seek(fp);
+                                zero(filer, slice);
+                                return null;
+                            }
+                        });
+                    }
+                    dirty = false;
+                }
+                boolean truncated = filer.tx(0, new StripedFiler.StripeTx<Boolean>() {
+
+                    @Override
+                    public Boolean tx(long fp, ChunkCache chunkCache, DuplicatableFiler filer) throws IOException {
+                        synchronized (headerLock) {
+                            if (!lengthOfFile.compareAndSet(tail, runStart)) {
+                                return false;
+                            }
+                            writeLengthOfFile(filer, runStart);
+                            persistedLengthOfFile = runStart;
+                            return true;
+                        }
+                    }
+                });
+                if (truncated) {
+                    coalescedTailBytes.inc(runEnd - runStart);
+                    merged += end - start;
+                    start = end;
+                    continue;
+                }
+            }
+
+            merged += (end - start) - carveFree(runStart, runEnd, dirty);
+            start = end;
+        }
+        coalescedChunks.inc(merged);
+        return merged;
+    }
+
+    private static class Arena {
+
+        private final WeakReference<Thread> owner;
+        private long next; // guarded by this
+        private long end; // guarded by this
+
+        Arena(Thread owner) {
+            this.owner = new WeakReference<>(owner);
+        }
+    }
+
+    /**
+     * Allocates a chunk for every hint out of one contiguous reservation at the end of the file. The free lists and arenas are skipped, the space is
+     * reserved and the header updated once and the chunk headers are written in a single sequential pass before the filers are created stripe by
+     * stripe.
+     *
+     * @param <M>
+     * @param <H>
+     * @param hints
+     * @param createFiler
+     * @return the chunkFP for each hint
+     * @throws IOException
+     */
+    public <M, H> long[] newChunks(final H[] hints, final CreateFiler<H, M, ChunkFiler> createFiler) throws IOException {
+        final long[] chunkFPs = new long[hints.length];
+        final int[] chunkPowers = new int[hints.length];
+        long totalLength = 0;
+        for (int i = 0; i < hints.length; i++) {
+            chunkPowers[i] = FilerIO.chunkPower(createFiler.sizeInBytes(hints[i]), cMinPower);
+            totalLength += FilerIO.chunkLength(chunkPowers[i]) + headerLength;
+        }
+        if (hints.length == 0) {
+            return chunkFPs;
+        }
+        final long start = lengthOfFile.getAndAdd(totalLength);
+        final long end = start + totalLength;
+        ensureCapacity(end);
+
+        filer.tx(start, new StripedFiler.StripeTx<Void>() {
+
+            @Override
+            public Void tx(long fp, ChunkCache chunkCache, DuplicatableFiler filer) throws IOException {
+                long chunkFP = start;
+                for (int i = 0; i < chunkPowers.length; i++) {
+                    long chunkLength = FilerIO.chunkLength(chunkPowers[i]) + headerLength;
+                    writeHeader(filer, chunkFP, chunkPowers[i], chunkLength);
+                    chunkFPs[i] = chunkFP;
+                    chunkFP += chunkLength;
+                }
+                persistLengthOfFile(filer, end);
                 return null;
             }
         });
-        return chunkFP.get();
+
+        Integer[] order = new Integer[hints.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+            allocates[chunkPowers[i]].inc(1);
+        }
+        for (final Integer[] run : stripeRuns(chunkFPs, order)) {
+            filer.tx(chunkFPs[run[0]], new StripedFiler.StripeTx<Void>() {
+
+                @Override
+                public Void tx(long fp, ChunkCache chunkCache, DuplicatableFiler filer) throws IOException {
+                    for (int i : run) {
+                        long chunkFP = chunkFPs[i];
+                        long startOfFP = chunkFP + headerLength;
+                        long endOfFP = startOfFP + FilerIO.chunkLength(chunkPowers[i]);
+                        ChunkFiler chunkFiler = new ChunkFiler(ChunkStore.this, filer.duplicate(startOfFP, endOfFP), chunkFP, startOfFP, endOfFP);
+                        chunkFiler.seek(0);
+                        M monkey = createFiler.create(hints[i], chunkFiler);
+                        idleChunks(chunkFP).put(new Chunk<>(monkey, chunkFP, startOfFP, endOfFP));
+                    }
+                    return null;
+                }
+            });
+        }
+        return chunkFPs;
     }
 
     /**
-     * Synchronize externally on filer.lock()
+     * Only growing the root filer needs the root lock, the space itself was already reserved by bumping lengthOfFile.
+     */
+    private void ensureCapacity(final long endOfChunk) throws IOException {
+        if (endOfChunk <= capacity) {
+            return;
+        }
+        filer.rootTx(-1L, new StripedFiler.StripeTx<Void>() {
+
+            @Override
+            public Void tx(long fp, ChunkCache chunkCache, DuplicatableFiler filer) throws IOException {
+                if (filer.length() < endOfChunk) {
+                    filer.seek(endOfChunk - 1); // last byte in chunk
+                    filer.write(0); // cause file backed ChunkStore to grow file on disk. Use setLength()?
+                }
+                capacity = Math.max(capacity, filer.length());
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Chunks are reserved out of order so the header only ever moves forward.
+     */
+    private void persistLengthOfFile(Filer filer, long length) throws IOException {
+        synchronized (headerLock) {
+            if (length > persistedLengthOfFile) {
+                writeLengthOfFile(filer, length);
+                persistedLengthOfFile = length;
+            }
+        }
+    }
+
+    /**
+     * Synchronize externally on the chunk power's free lock
      */
     private long reuseChunk(Filer filer, long position) throws IOException {
         filer.seek(position);
@@ -258,29 +1016,126 @@ public class ChunkStore implements Copyable<ChunkStore> {
         long nextFree = readNextFree(filer, reuseFP);
         filer.seek(position);
         FilerIO.writeLong(filer, nextFree, "free");
+        if (bodyLinkLength() > 0) {
+            writeNextFree(filer, reuseFP, 0); // hand out a clean body
+        }
         return reuseFP;
     }
 
     /**
-     * Synchronize externally on filer.lock()
+     * Synchronize externally on the chunk power's free lock
      */
     private long readNextFree(Filer filer, long _chunkFP) throws IOException {
-        filer.seek(_chunkFP);
-        FilerIO.readLong(filer, "magicNumber");
-        FilerIO.readLong(filer, "chunkPower");
+        filer.seek(_chunkFP + (headerLength == cLegacyHeaderLength ? 8 + 8 : headerLength));
         return FilerIO.readLong(filer, "chunkNexFreeChunkFP");
     }
 
     /**
-     * Synchronize externally on filer.lock()
+     * Synchronize externally on the chunk power's free lock
      */
     private void writeNextFree(Filer filer, long _chunkFP, long _nextFreeFP) throws IOException {
-        filer.seek(_chunkFP);
-        FilerIO.readLong(filer, "magicNumber");
-        FilerIO.readLong(filer, "chunkPower");
+        filer.seek(_chunkFP + (headerLength == cLegacyHeaderLength ? 8 + 8 : headerLength));
         FilerIO.writeLong(filer, _nextFreeFP, "chunkNexFreeChunkFP");
     }
 
+    /**
+     * Bytes at the start of a free chunks body which hold its next free fp, the scrubber leaves them alone.
+     */
+    private int bodyLinkLength() {
+        return headerLength == cLegacyHeaderLength ? 0 : 8;
+    }
+
+    /**
+     * @param chunkLength the legacy chunkLength field, the length of a fresh chunk, -1 once a chunk has been freed and zeroed or cDirty
+     */
+    private void writeHeader(Filer filer, long fp, int chunkPower, long chunkLength) throws IOException {
+        filer.seek(fp);
+        if (headerLength == cLegacyHeaderLength) {
+            FilerIO.writeLong(filer, cMagicNumber, "magicNumber");
+            FilerIO.writeLong(filer, chunkPower, "chunkPower");
+            FilerIO.writeLong(filer, -1, "chunkNexFreeChunkFP");
+            FilerIO.writeLong(filer, chunkLength, "chunkLength");
+        } else {
+            FilerIO.writeLong(filer, compactHeader(fp, chunkPower, chunkLength == cDirty), "header");
+        }
+    }
+
+    /**
+     * Validates the header of the chunk at fp and leaves the filer at the start of its body.
+     *
+     * @return chunkPower
+     */
+    private int readHeader(Filer filer, long fp) throws IOException {
+        filer.seek(fp);
+        if (headerLength == cLegacyHeaderLength) {
+            long magicNumber = FilerIO.readLong(filer, "magicNumber");
+            if (magicNumber != cMagicNumber) {
+                throw new IOException("Invalid chunkFP " + fp);
+            }
+            int chunkPower = (int) FilerIO.readLong(filer, "chunkPower");
+            FilerIO.readLong(filer, "chunkNexFreeChunkFP");
+            FilerIO.readLong(filer, "chunkLength");
+            return chunkPower;
+        } else {
+            long header = FilerIO.readLong(filer, "header");
+            if (!validCompactHeader(fp, header)) {
+                throw new IOException("Invalid chunkFP " + fp);
+            }
+            return (int) (header & 0xFF);
+        }
+    }
+
+    private boolean hasHeader(Filer filer, long fp) throws IOException {
+        filer.seek(fp);
+        if (headerLength == cLegacyHeaderLength) {
+            return FilerIO.readLong(filer, "magicNumber") == cMagicNumber;
+        } else {
+            return validCompactHeader(fp, FilerIO.readLong(filer, "header"));
+        }
+    }
+
+    private boolean isDirty(Filer filer, long fp) throws IOException {
+        if (headerLength == cLegacyHeaderLength) {
+            filer.seek(fp + 8 + 8 + 8);
+            return FilerIO.readLong(filer, "chunkLength") == cDirty;
+        } else {
+            filer.seek(fp);
+            return (FilerIO.readLong(filer, "header") & cCompactDirty) != 0;
+        }
+    }
+
+    private void setDirty(Filer filer, long fp, int chunkPower, boolean dirty) throws IOException {
+        if (headerLength == cLegacyHeaderLength) {
+            filer.seek(fp + 8 + 8 + 8);
+            FilerIO.writeLong(filer, dirty ? cDirty : -1, "chunkLength");
+        } else {
+            filer.seek(fp);
+            FilerIO.writeLong(filer, compactHeader(fp, chunkPower, dirty), "header");
+        }
+    }
+
+    /**
+     * The checksum covers the fp as well so a header is only valid where it was written.
+     */
+    private static long compactHeader(long fp, int chunkPower, boolean dirty) {
+        long header = (cCompactMagic << 24) | (dirty ? cCompactDirty : 0) | chunkPower;
+        return header | (compactChecksum(fp, header) << 16);
+    }
+
+    private static boolean validCompactHeader(long fp, long header) {
+        long unchecked = header & ~(0xFFL << 16);
+        return (header >>> 24) == cCompactMagic && ((header >>> 16) & 0xFF) == compactChecksum(fp, unchecked);
+    }
+
+    private static long compactChecksum(long fp, long header) {
+        return ((fp ^ header) * 0x9E3779B97F4A7C15L) >>> 56;
+    }
+
+    private void writeLengthOfFile(Filer filer, long length) throws IOException {
+        filer.seek(0);
+        FilerIO.writeLong(filer, (format << 56) | length, "lengthOfFile");
+    }
+
     /**
      * @param <M>
      * @param <R>
@@ -292,20 +1147,132 @@ public class ChunkStore implements Copyable<ChunkStore> {
      */
     public <M, R> R execute(final long chunkFP, final OpenFiler<M, ChunkFiler> openFiler, final ChunkTransaction<M, R> chunkTransaction) throws IOException {
 
-        final Chunky<M> chunky = filer.tx(chunkFP, new StripedFiler.StripeTx<Chunky<M>>() {
+        final Chunky<M> chunky = acquire(chunkFP, openFiler);
+
+        try {
+            return chunkTransaction.commit(chunky.chunk.monkey, chunky.filer, chunky.chunk);
+        } finally {
+            release(chunkFP);
+        }
+    }
+
+    /**
+     * Pins a chunk until the returned handle is closed so any number of transactions can be run against it without going back through the stripe. A
+     * handle holds a lease on its stripe, storage the stripe outgrows is not reclaimed until it is closed, so keep handles short lived. A handle
+     * reuses one ChunkFiler for all of its transactions and so belongs to one thread at a time.
+     *
+     * @param <M>
+     * @param chunkFP
+     * @param openFiler
+     * @return
+     * @throws IOException
+     */
+    public <M> ChunkHandle<M> open(long chunkFP, OpenFiler<M, ChunkFiler> openFiler) throws IOException {
+        Chunky<M> chunky = acquire(chunkFP, openFiler);
+        return new ChunkHandle<>(this, chunky.chunk, chunky.filer);
+    }
+
+    void release(final long chunkFP) throws IOException {
+        filer.tx(chunkFP, new StripedFiler.StripeTx<Void>() {
 
             @Override
-            public Chunky<M> tx(long fp, ChunkCache chunkCache, final AutoGrowingByteBufferBackedFiler filer) throws IOException {
+            public Void tx(long fp, ChunkCache chunkCache, DuplicatableFiler filer) throws IOException {
+                Chunk<Object> idle = chunkCache.releaseAndTake(chunkFP);
+                if (idle != null) {
+                    idleChunks(chunkFP).put(idle);
+                }
+                ChunkStore.this.filer.unlease(chunkFP);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Like execute but a chunk which is already open is looked up and released under a shared stripe lock, so readers of different chunks in the same
+     * stripe no longer wait on each other. Only the first reader in and the last reader out of a chunk take the stripe exclusively, to open it and to
+     * hand it to the idle chunk cache. The chunkTransaction must not change the chunk, it is still handed the chunks lock to exclude writers.
+     *
+     * @param <M>
+     * @param <R>
+     * @param chunkFP
+     * @param openFiler
+     * @param chunkTransaction
+     * @return
+     * @throws IOException
+     */
+    public <M, R> R readOnly(final long chunkFP, final OpenFiler<M, ChunkFiler> openFiler, final ChunkTransaction<M, R> chunkTransaction)
+        throws IOException {
+
+        long start = System.nanoTime();
+        Chunky<M> chunky = filer.readTx(chunkFP, new StripedFiler.StripeTx<Chunky<M>>() {
+
+            @Override
+            public Chunky<M> tx(long fp, ChunkCache chunkCache, DuplicatableFiler filer) throws IOException {
                 Chunk<M> chunk = chunkCache.acquireIfPresent(chunkFP);
                 if (chunk == null) {
-                    filer.seek(chunkFP);
-                    long magicNumber = FilerIO.readLong(filer, "magicNumber");
-                    if (magicNumber != cMagicNumber) {
-                        throw new IOException("Invalid chunkFP " + chunkFP);
+                    return null;
+                }
+                ChunkFiler chunkFiler = new ChunkFiler(ChunkStore.this, filer.duplicate(chunk.startOfFP, chunk.endOfFP), chunkFP, chunk.startOfFP,
+                    chunk.endOfFP);
+                chunkFiler.seek(0);
+                ChunkStore.this.filer.lease(chunkFP);
+                return new Chunky<>(chunkFiler, chunk);
+            }
+        });
+        if (chunky == null) {
+            chunky = acquire(chunkFP, openFiler);
+        } else {
+            gets[Long.numberOfTrailingZeros(chunky.chunk.endOfFP - chunky.chunk.startOfFP)].inc(1);
+            getLatency.since(start);
+        }
+
+        try {
+            return chunkTransaction.commit(chunky.chunk.monkey, chunky.filer, chunky.chunk);
+        } finally {
+
+            boolean last = filer.readTx(chunkFP, new StripedFiler.StripeTx<Boolean>() {
+
+                @Override
+                public Boolean tx(long fp, ChunkCache chunkCache, DuplicatableFiler filer) throws IOException {
+                    boolean last = chunkCache.releaseShared(chunkFP);
+                    ChunkStore.this.filer.unlease(chunkFP);
+                    return last;
+                }
+            });
+            if (last) {
+                // the shared lock can't change the stripe cache, so the last reader out evicts under the exclusive lock like release() does
+                filer.tx(chunkFP, new StripedFiler.StripeTx<Void>() {
+
+                    @Override
+                    public Void tx(long fp, ChunkCache chunkCache, DuplicatableFiler filer) throws IOException {
+                        Chunk<Object> idle = chunkCache.takeIfIdle(chunkFP);
+                        if (idle != null) {
+                            idleChunks(chunkFP).put(idle);
+                        }
+                        return null;
+                    }
+                });
+            }
+
+        }
+    }
+
+    private <M> Chunky<M> acquire(final long chunkFP, final OpenFiler<M, ChunkFiler> openFiler) throws IOException {
+        long start = System.nanoTime();
+        Chunky<M> chunky = filer.tx(chunkFP, new StripedFiler.StripeTx<Chunky<M>>() {
+
+            @Override
+            public Chunky<M> tx(long fp, ChunkCache chunkCache, final DuplicatableFiler filer) throws IOException {
+                Chunk<M> chunk = chunkCache.acquireIfPresent(chunkFP);
+                if (chunk == null) {
+                    Chunk<?> idle = idleChunks(chunkFP).take(chunkFP);
+                    if (idle != null) {
+                        chunkCache.set(chunkFP, idle, 2);
+                        chunk = chunkCache.acquireIfPresent(chunkFP);
                     }
-                    int chunkPower = (int) FilerIO.readLong(filer, "chunkPower");
-                    FilerIO.readLong(filer, "chunkNexFreeChunkFP");
-                    FilerIO.readLong(filer, "chunkLength");
+                }
+                if (chunk == null) {
+                    int chunkPower = readHeader(filer, chunkFP);
                     long startOfFP = filer.getFilePointer();
 
                     long endOfFP = startOfFP + FilerIO.chunkLength(chunkPower);
@@ -320,24 +1287,97 @@ public class ChunkStore implements Copyable<ChunkStore> {
                 ChunkFiler chunkFiler = new ChunkFiler(ChunkStore.this, filer.duplicate(chunk.startOfFP, chunk.endOfFP), chunkFP, chunk.startOfFP,
                     chunk.endOfFP);
                 chunkFiler.seek(0);
+                ChunkStore.this.filer.lease(chunkFP);
                 return new Chunky<>(chunkFiler, chunk);
             }
         });
+        gets[Long.numberOfTrailingZeros(chunky.chunk.endOfFP - chunky.chunk.startOfFP)].inc(1);
+        getLatency.since(start);
+        return chunky;
+    }
 
-        try {
-            return chunkTransaction.commit(chunky.chunk.monkey, chunky.filer, chunky.chunk);
-        } finally {
-
-            filer.tx(chunkFP, new StripedFiler.StripeTx<Void>() {
+    /**
+     * Copies the contents of many chunks into the callers buffers. The requests are sorted by stripe and then by chunkFP so each stripe is entered once
+     * and its chunks are read in file order.
+     *
+     * @param chunkFPs
+     * @param into into[i] is filled from the start of chunkFPs[i] until either runs out and is left positioned after the last byte, null entries are
+     * skipped
+     * @throws IOException
+     */
+    public void readMany(final long[] chunkFPs, final ByteBuffer[] into) throws IOException {
+        if (chunkFPs.length != into.length) {
+            throw new IllegalArgumentException("Every chunkFP needs a buffer. chunkFPs:" + chunkFPs.length + " buffers:" + into.length);
+        }
+        Integer[] order = new Integer[chunkFPs.length];
+        int count = 0;
+        for (int i = 0; i < chunkFPs.length; i++) {
+            if (into[i] != null) {
+                order[count] = i;
+                count++;
+            }
+        }
+        for (final Integer[] run : stripeRuns(chunkFPs, Arrays.copyOf(order, count))) {
+            filer.tx(chunkFPs[run[0]], new StripedFiler.StripeTx<Void>() {
 
                 @Override
-                public Void tx(long fp, ChunkCache chunkCache, AutoGrowingByteBufferBackedFiler filer) throws IOException {
-                    chunkCache.release(chunkFP);
+                public Void tx(long fp, ChunkCache chunkCache, DuplicatableFiler filer) throws IOException {
+                    for (int i : run) {
+                        long chunkFP = chunkFPs[i];
+                        long startOfFP;
+                        long endOfFP;
+                        Chunk<Object> chunk = chunkCache.acquireIfPresent(chunkFP);
+                        if (chunk != null) {
+                            startOfFP = chunk.startOfFP;
+                            endOfFP = chunk.endOfFP;
+                            Chunk<Object> idle = chunkCache.releaseAndTake(chunkFP);
+                            if (idle != null) {
+                                idleChunks(chunkFP).put(idle);
+                            }
+                        } else {
+                            int chunkPower = readHeader(filer, chunkFP);
+                            startOfFP = filer.getFilePointer();
+                            endOfFP = startOfFP + FilerIO.chunkLength(chunkPower);
+                        }
+                        filer.seek(startOfFP);
+                        FilerIO.copy(filer, new ByteBufferBackedFiler(into[i]), Math.min(into[i].remaining(), endOfFP - startOfFP), -1);
+                    }
                     return null;
                 }
             });
+        }
+    }
+
+    /**
+     *
+     * @param fps
+     * @param order indexes into fps, sorted in place
+     * @return order split into runs which share a stripe, each in fp order
+     */
+    private Integer[][] stripeRuns(final long[] fps, Integer[] order) {
+        Arrays.sort(order, new Comparator<Integer>() {
 
+            @Override
+            public int compare(Integer o1, Integer o2) {
+                long fp1 = fps[o1];
+                long fp2 = fps[o2];
+                int c = Integer.compare(filer.stripe(fp1), filer.stripe(fp2));
+                return c != 0 ? c : Long.compare(fp1, fp2);
+            }
+        });
+
+        List<Integer[]> runs = new ArrayList<>();
+        int start = 0;
+        while (start < order.length) {
+            int stripe = filer.stripe(fps[order[start]]);
+            int end = start + 1;
+            while (end < order.length && filer.stripe(fps[order[end]]) == stripe) {
+                end++;
+            }
+            runs.add(Arrays.copyOfRange(order, start, end));
+            start = end;
         }
+        return runs.toArray(new Integer[runs.size()][]);
     }
 
     private static class Chunky<M> {
@@ -352,65 +1392,174 @@ public class ChunkStore implements Copyable<ChunkStore> {
 
     }
 
+    /**
+     * Puts the chunk on its free list. A format 0 store zeroes it right away, later formats leave that to scrub() or to the chunks next reuse.
+     *
+     * @param chunkFP
+     * @throws IOException
+     */
     public void remove(long chunkFP) throws IOException {
-
+        long start = System.nanoTime();
         final Integer chunkPower = filer.tx(chunkFP, new StripedFiler.StripeTx<Integer>() {
 
             @Override
-            public Integer tx(long fp, ChunkCache chunkCache, AutoGrowingByteBufferBackedFiler filer) throws IOException {
+            public Integer tx(long fp, ChunkCache chunkCache, DuplicatableFiler filer) throws IOException {
                 chunkCache.remove(fp);
+                idleChunks(fp).invalidate(fp);
 
-                filer.seek(fp);
-                long magicNumber = FilerIO.readLong(filer, "magicNumber");
-                if (magicNumber != cMagicNumber) {
-                    throw new IOException("Invalid chunkFP " + fp);
-                }
-                int chunkPower = (int) FilerIO.readLong(filer, "chunkPower");
-                FilerIO.readLong(filer, "chunkNexFreeChunkFP");
-                FilerIO.writeLong(filer, -1, "chunkLength");
-                long chunkLength = FilerIO.chunkLength(chunkPower); // bytes
-                // fill with zeros
-                while (chunkLength >= zerosMax.length) {
-                    filer.write(zerosMax);
-                    chunkLength -= zerosMax.length;
-                }
-                while (chunkLength >= zerosMin.length) {
-                    filer.write(zerosMin);
-                    chunkLength -= zerosMin.length;
+                int chunkPower = readHeader(filer, fp);
+                if (!deferZeroing()) {
+                    zero(filer, FilerIO.chunkLength(chunkPower));
+                    setDirty(filer, fp, chunkPower, false);
+                } else if (!isDirty(filer, fp)) {
+                    setDirty(filer, fp, chunkPower, true);
+                    long bytes = FilerIO.chunkLength(chunkPower);
+                    pendingScrubBytes.addAndGet(bytes);
+                    scrubPendingBytes.inc(bytes);
                 }
                 filer.flush();
                 return chunkPower;
             }
         });
 
-        filer.rootTx(chunkFP, new StripedFiler.StripeTx<Void>() {
+        synchronized (freeLocks[chunkPower]) {
+            filer.tx(chunkFP, new StripedFiler.StripeTx<Void>() {
 
-            @Override
-            public Void tx(long fp, ChunkCache chunkCache, AutoGrowingByteBufferBackedFiler filer) throws IOException {
+                @Override
+                public Void tx(long fp, ChunkCache chunkCache, DuplicatableFiler filer) throws IOException {
 
-                // save as free chunk
-                long position = freeSeek(chunkPower);
-                filer.seek(position);
-                long freeFP = FilerIO.readLong(filer, "free");
-                if (freeFP == -1) {
-                    filer.seek(position);
-                    FilerIO.writeLong(filer, fp, "free");
-                } else {
-                    if (fp != freeFP) {
-                        filer.seek(position);
-                        FilerIO.writeLong(filer, fp, "free");
-                    } else {
-                        System.err.println("WARNING: Some one is removing the same chunk more than once. chunkFP:" + fp);
-                        new RuntimeException().printStackTrace();
-                    }
+                    pushFree(filer, fp, chunkPower);
+                    freeHints.set(chunkPower, 1);
+                    filer.flush();
+                    return null;
                 }
-                writeNextFree(filer, fp, freeFP);
-                filer.flush();
-                return null;
+            });
+        }
+
+        if (deferZeroing()) {
+            scrubQueue.add(chunkFP);
+        }
+        removes[chunkPower].inc(1);
+        removeLatency.since(start);
+    }
+
+    /**
+     * Bytes of removed chunks which have not been zeroed yet. Only counts chunks removed since this store was opened, chunks left dirty by an earlier
+     * run are zeroed when they are reused.
+     *
+     * @return
+     */
+    public long getPendingScrubBytes() {
+        return pendingScrubBytes.get();
+    }
+
+    /**
+     * Zeros removed chunks in the order they were removed. A chunk which was reused before the scrubber got to it was already zeroed by newChunk and
+     * is skipped.
+     *
+     * @param maxBytes stop once this many bytes have been zeroed, the chunk in progress is finished first
+     * @return bytes zeroed
+     * @throws IOException also when a scheduled scrub failed since the last call
+     */
+    public long scrub(long maxBytes) throws IOException {
+        throwFailure(scrubFailure, "Scheduled scrub failed and was stopped.");
+        final long[] scrubbed = new long[1];
+        Long chunkFP;
+        while (scrubbed[0] < maxBytes && (chunkFP = scrubQueue.poll()) != null) {
+            long offset = bodyLinkLength();
+            while (offset != -1) {
+                final long sliceOffset = offset;
+                offset = filer.tx(chunkFP, new StripedFiler.StripeTx<Long>() {
+
+                    @Override
+                    public Long tx(long fp, ChunkCache chunkCache, DuplicatableFiler filer) throws IOException {
+                        if (!hasHeader(filer, fp)) {
+                            return -1L; // merged away by coalesce()
+                        }
+                        if (!isDirty(filer, fp)) {
+                            return -1L;
+                        }
+                        int chunkPower = readHeader(filer, fp);
+                        long length = FilerIO.chunkLength(chunkPower);
+                        long slice = Math.min(cScrubSlice, length - sliceOffset);
+                        filer.seek(filer.getFilePointer() + sliceOffset);
+                        zero(filer, slice);
+                        scrubbed[0] += slice;
+                        scrubbedBytes.inc(slice);
+                        if (sliceOffset + slice < length) {
+                            return sliceOffset + slice;
+                        }
+                        markScrubbed(filer, fp, chunkPower);
+                        filer.flush();
+                        return -1L;
+                    }
+                });
+            }
+        }
+        return scrubbed[0];
+    }
+
+    /**
+     * Runs scrub(maxBytesPerRun) on the executor until the store is collected. A failed run stops the scrubber and is thrown by the next scrub().
+     *
+     * @param executor
+     * @param intervalMillis
+     * @param maxBytesPerRun
+     */
+    public void scheduleScrubber(ScheduledExecutorService executor, long intervalMillis, final long maxBytesPerRun) {
+        schedule(this, executor, intervalMillis, scrubFailure, new ScheduledTask() {
+
+            @Override
+            public void run(ChunkStore store) throws IOException {
+                store.scrub(maxBytesPerRun);
             }
         });
+    }
 
-        removes[chunkPower].inc(1);
+    /**
+     * Call within the chunk's stripe tx while it is dirty.
+     */
+    private void markScrubbed(Filer filer, long fp, int chunkPower) throws IOException {
+        setDirty(filer, fp, chunkPower, false);
+        long bytes = FilerIO.chunkLength(chunkPower);
+        pendingScrubBytes.addAndGet(-bytes);
+        scrubPendingBytes.inc(-bytes);
+    }
+
+    static void zero(Filer filer, long length) throws IOException {
+        while (length >= zerosMax.length) {
+            filer.write(zerosMax);
+            length -= zerosMax.length;
+        }
+        while (length >= zerosMin.length) {
+            filer.write(zerosMin);
+            length -= zerosMin.length;
+        }
+        if (length > 0) {
+            filer.write(zerosMin, 0, (int) length);
+        }
+    }
+
+    /**
+     * Synchronize externally on the chunk power's free lock
+     */
+    private void pushFree(Filer filer, long fp, int chunkPower) throws IOException {
+        long position = freeSeek(chunkPower);
+        filer.seek(position);
+        long freeFP = FilerIO.readLong(filer, "free");
+        if (freeFP == -1) {
+            filer.seek(position);
+            FilerIO.writeLong(filer, fp, "free");
+        } else {
+            if (fp != freeFP) {
+                filer.seek(position);
+                FilerIO.writeLong(filer, fp, "free");
+            } else {
+                System.err.println("WARNING: Some one is removing the same chunk more than once. chunkFP:" + fp);
+                new RuntimeException().printStackTrace();
+            }
+        }
+        writeNextFree(filer, fp, freeFP);
     }
 
     private long freeSeek(long _chunkPower) {
@@ -424,13 +1573,11 @@ public class ChunkStore implements Copyable<ChunkStore> {
         return filer.tx(chunkFP, new StripedFiler.StripeTx<Boolean>() {
 
             @Override
-            public Boolean tx(long fp, ChunkCache chunkCache, AutoGrowingByteBufferBackedFiler filer) throws IOException {
+            public Boolean tx(long fp, ChunkCache chunkCache, DuplicatableFiler filer) throws IOException {
                 if (chunkCache.contains(fp)) {
                     return true;
                 }
-                filer.seek(fp);
-                long magicNumber = FilerIO.readLong(filer, "magicNumber");
-                return magicNumber == cMagicNumber;
+                return hasHeader(filer, fp);
             }
         });
 
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2015 Jive Software.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jivesoftware.os.filer.io.chunk;
+
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * When a ChunkStore forces what has been written to it down to disk. Filer.flush() is never a durability point, only ChunkStore.commit() and the periodic
+ * flusher are, and both only force segments which have been written to since they were last forced.
+ *
+ * @author jonathan.colt
+ */
+public final class FlushPolicy {
+
+    public static enum Durability {
+
+        /**
+         * Nothing is ever forced, the OS writes pages back whenever it sees fit.
+         */
+        NONE,
+        /**
+         * Dirty segments are forced on a background schedule so at most one interval of writes is exposed.
+         */
+        PERIODIC,
+        /**
+         * Dirty segments are forced synchronously by ChunkStore.commit().
+         */
+        COMMIT
+    }
+
+    private static final FlushPolicy NONE = new FlushPolicy(Durability.NONE, null, -1);
+    private static final FlushPolicy COMMIT = new FlushPolicy(Durability.COMMIT, null, -1);
+
+    public static FlushPolicy none() {
+        return NONE;
+    }
+
+    public static FlushPolicy onCommit() {
+        return COMMIT;
+    }
+
+    /**
+     *
+     * @param executor shared by every store using this policy
+     * @param intervalMillis
+     * @return
+     */
+    public static FlushPolicy periodic(ScheduledExecutorService executor, long intervalMillis) {
+        return new FlushPolicy(Durability.PERIODIC, executor, intervalMillis);
+    }
+
+    final Durability durability;
+    final ScheduledExecutorService executor;
+    final long intervalMillis;
+
+    private FlushPolicy(Durability durability, ScheduledExecutorService executor, long intervalMillis) {
+        this.durability = durability;
+        this.executor = executor;
+        this.intervalMillis = intervalMillis;
+    }
+
+    public Durability getDurability() {
+        return durability;
+    }
+
+    @Override
+    public String toString() {
+        return "FlushPolicy{" + "durability=" + durability + ", intervalMillis=" + intervalMillis + '}';
+    }
+
+}
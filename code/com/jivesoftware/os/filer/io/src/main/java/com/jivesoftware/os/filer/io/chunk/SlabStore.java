@@ -0,0 +1,329 @@
+/*
+ * Copyright 2015 Jive Software.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jivesoftware.os.filer.io.chunk;
+
+import com.jivesoftware.os.filer.io.CreateFiler;
+import com.jivesoftware.os.filer.io.FilerIO;
+import com.jivesoftware.os.filer.io.OpenFiler;
+import com.jivesoftware.os.filer.io.api.ChunkTransaction;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * Packs objects too small to be worth a chunk of their own into shared slab chunks. Every slab holds slots of one power of two size between 2^3 and
+ * 2^7 bytes and tracks which are taken with a bitmap at its head. A slot is addressed by (slabFP, slot) packed into one long, and is created and
+ * opened through the same CreateFiler / OpenFiler contracts as a chunk, the filer handed out simply covers the slot and reports the slot address
+ * from getChunkFP(), which resolves back through this SlabStore rather than the ChunkStore.
+ *
+ * <pre>
+ * directory chunk: headSlabFP per slot power
+ * slab chunk: slotPower, nextSlabFP, bitmap longs, slots
+ * </pre>
+ *
+ * Slot monkeys are not cached, they are opened on every execute. Every slot in a slab shares the slabs lock.
+ *
+ * @author jonathan.colt
+ */
+public class SlabStore {
+
+    static final int cMinSlotPower = 3;
+    static final int cMaxSlotPower = 7;
+    static final int cSlotBits = 12;
+    static final long cSlabLength = 4_096;
+
+    private final ChunkStore chunkStore;
+    private final long directoryFP;
+    private final Object[] slabLocks = new Object[cMaxSlotPower + 1]; // guards creating a slab and linking it into the directory
+    private final List<ConcurrentSkipListSet<Long>> partial = new ArrayList<>(cMaxSlotPower + 1); // slabs of each power with at least one free slot, as far as we know
+
+    /**
+     * Creates an empty directory in chunkStore, keep the returned fp to open the SlabStore later.
+     *
+     * @param chunkStore
+     * @return directoryFP
+     * @throws IOException
+     */
+    public static long create(ChunkStore chunkStore) throws IOException {
+        return chunkStore.newChunk(8L * (cMaxSlotPower + 1), new CreateFiler<Long, Void, ChunkFiler>() {
+
+            @Override
+            public long sizeInBytes(Long hint) throws IOException {
+                return hint;
+            }
+
+            @Override
+            public Void create(Long hint, ChunkFiler filer) throws IOException {
+                for (int i = 0; i <= cMaxSlotPower; i++) {
+                    filer.putLong(i * 8, -1);
+                }
+                return null;
+            }
+        });
+    }
+
+    public SlabStore(ChunkStore chunkStore, long directoryFP) throws IOException {
+        this.chunkStore = chunkStore;
+        this.directoryFP = directoryFP;
+        for (int i = 0; i <= cMaxSlotPower; i++) {
+            slabLocks[i] = new Object();
+            partial.add(new ConcurrentSkipListSet<Long>());
+        }
+        for (int slotPower = cMinSlotPower; slotPower <= cMaxSlotPower; slotPower++) {
+            long slabFP = head(slotPower);
+            while (slabFP != -1) {
+                final long fp = slabFP;
+                slabFP = chunkStore.execute(slabFP, openSlab, new ChunkTransaction<Slab, Long>() {
+
+                    @Override
+                    public Long commit(Slab slab, ChunkFiler filer, Object lock) throws IOException {
+                        synchronized (lock) {
+                            if (slab.free(filer) > 0) {
+                                partial.get(slab.slotPower).add(fp);
+                            }
+                            return filer.getLong(8);
+                        }
+                    }
+                });
+            }
+        }
+    }
+
+    public static long address(long slabFP, int slot) {
+        return (slabFP << cSlotBits) | slot;
+    }
+
+    public static long slabFP(long address) {
+        return address >>> cSlotBits;
+    }
+
+    public static int slot(long address) {
+        return (int) (address & ((1 << cSlotBits) - 1));
+    }
+
+    /**
+     *
+     * @param <M>
+     * @param <H>
+     * @param hint
+     * @param createFiler sizeInBytes may be at most 2^7
+     * @return the address of the new slot
+     * @throws IOException
+     */
+    public <M, H> long newSlot(final H hint, final CreateFiler<H, M, ChunkFiler> createFiler) throws IOException {
+        long size = createFiler.sizeInBytes(hint);
+        final int slotPower = FilerIO.chunkPower(Math.max(1, size), cMinSlotPower);
+        if (slotPower > cMaxSlotPower) {
+            throw new IllegalArgumentException("Slots hold at most " + FilerIO.chunkLength(cMaxSlotPower) + " bytes, use a chunk for " + size + " bytes.");
+        }
+        while (true) {
+            Long slabFP = partial.get(slotPower).pollFirst();
+            if (slabFP == null) {
+                slabFP = newSlab(slotPower);
+            }
+            final long fp = slabFP;
+            int slot = chunkStore.execute(fp, openSlab, new ChunkTransaction<Slab, Integer>() {
+
+                @Override
+                public Integer commit(Slab slab, ChunkFiler filer, Object lock) throws IOException {
+                    synchronized (lock) {
+                        int slot = slab.claim(filer);
+                        if (slot == -1) {
+                            return -1;
+                        }
+                        if (slab.free(filer) > 0) {
+                            partial.get(slotPower).add(fp);
+                        }
+                        ChunkFiler slotFiler = slab.slot(filer, fp, slot);
+                        slotFiler.seek(0);
+                        createFiler.create(hint, slotFiler);
+                        return slot;
+                    }
+                }
+            });
+            if (slot != -1) {
+                return address(fp, slot);
+            }
+        }
+    }
+
+    public <M, R> R execute(final long address, final OpenFiler<M, ChunkFiler> openFiler, final ChunkTransaction<M, R> chunkTransaction) throws IOException {
+        return chunkStore.execute(slabFP(address), openSlab, new ChunkTransaction<Slab, R>() {
+
+            @Override
+            public R commit(Slab slab, ChunkFiler filer, Object lock) throws IOException {
+                int slot = slot(address);
+                synchronized (lock) {
+                    if (!slab.taken(filer, slot)) {
+                        throw new IOException("Invalid slot address " + address);
+                    }
+                }
+                ChunkFiler slotFiler = slab.slot(filer, slabFP(address), slot);
+                slotFiler.seek(0);
+                return chunkTransaction.commit(openFiler.open(slotFiler), slotFiler, lock);
+            }
+        });
+    }
+
+    /**
+     * Zeros the slot and gives it back to its slab. Empty slabs are kept for reuse.
+     *
+     * @param address
+     * @throws IOException
+     */
+    public void remove(final long address) throws IOException {
+        chunkStore.execute(slabFP(address), openSlab, new ChunkTransaction<Slab, Void>() {
+
+            @Override
+            public Void commit(Slab slab, ChunkFiler filer, Object lock) throws IOException {
+                synchronized (lock) {
+                    int slot = slot(address);
+                    if (!slab.taken(filer, slot)) {
+                        throw new IOException("Invalid slot address " + address);
+                    }
+                    ChunkFiler slotFiler = slab.slot(filer, slabFP(address), slot);
+                    slotFiler.seek(0);
+                    ChunkStore.zero(slotFiler, slotFiler.length());
+                    slab.release(filer, slot);
+                    partial.get(slab.slotPower).add(slabFP(address));
+                    return null;
+                }
+            }
+        });
+    }
+
+    private long head(final int slotPower) throws IOException {
+        return chunkStore.execute(directoryFP, openDirectory, new ChunkTransaction<Void, Long>() {
+
+            @Override
+            public Long commit(Void monkey, ChunkFiler filer, Object lock) throws IOException {
+                synchronized (lock) {
+                    return filer.getLong(slotPower * 8);
+                }
+            }
+        });
+    }
+
+    private long newSlab(final int slotPower) throws IOException {
+        synchronized (slabLocks[slotPower]) {
+            Long slabFP = partial.get(slotPower).pollFirst();
+            if (slabFP != null) {
+                return slabFP;
+            }
+            final long next = head(slotPower);
+            final long fp = chunkStore.newChunk(slotPower, new CreateFiler<Integer, Slab, ChunkFiler>() {
+
+                @Override
+                public long sizeInBytes(Integer slotPower) throws IOException {
+                    return cSlabLength;
+                }
+
+                @Override
+                public Slab create(Integer slotPower, ChunkFiler filer) throws IOException {
+                    filer.putLong(0, slotPower);
+                    filer.putLong(8, next);
+                    return new Slab(slotPower);
+                }
+            });
+            chunkStore.execute(directoryFP, openDirectory, new ChunkTransaction<Void, Void>() {
+
+                @Override
+                public Void commit(Void monkey, ChunkFiler filer, Object lock) throws IOException {
+                    synchronized (lock) {
+                        filer.putLong(slotPower * 8, fp);
+                        return null;
+                    }
+                }
+            });
+            return fp;
+        }
+    }
+
+    private static final OpenFiler<Void, ChunkFiler> openDirectory = new OpenFiler<Void, ChunkFiler>() {
+
+        @Override
+        public Void open(ChunkFiler filer) throws IOException {
+            return null;
+        }
+    };
+
+    private static final OpenFiler<Slab, ChunkFiler> openSlab = new OpenFiler<Slab, ChunkFiler>() {
+
+        @Override
+        public Slab open(ChunkFiler filer) throws IOException {
+            return new Slab((int) filer.getLong(0));
+        }
+    };
+
+    /**
+     * Layout of a slab, every bitmap and slot access is made under the slab chunks lock.
+     */
+    static class Slab {
+
+        final int slotPower;
+        final int slotCount;
+        final int slotsOffset;
+
+        Slab(int slotPower) {
+            this.slotPower = slotPower;
+            long slotLength = FilerIO.chunkLength(slotPower);
+            int count = (int) ((cSlabLength - 8 - 8) / slotLength);
+            while (8 + 8 + ((count + 63) / 64) * 8 + count * slotLength > cSlabLength) {
+                count--;
+            }
+            this.slotCount = count;
+            this.slotsOffset = 8 + 8 + ((count + 63) / 64) * 8;
+        }
+
+        int claim(ChunkFiler filer) throws IOException {
+            for (int i = 0; i < (slotCount + 63) / 64; i++) {
+                long bits = filer.getLong(8 + 8 + i * 8);
+                if (bits != -1) {
+                    int slot = i * 64 + Long.numberOfTrailingZeros(~bits);
+                    if (slot >= slotCount) {
+                        return -1;
+                    }
+                    filer.putLong(8 + 8 + i * 8, bits | (1L << (slot & 63)));
+                    return slot;
+                }
+            }
+            return -1;
+        }
+
+        void release(ChunkFiler filer, int slot) throws IOException {
+            long bits = filer.getLong(8 + 8 + (slot / 64) * 8);
+            filer.putLong(8 + 8 + (slot / 64) * 8, bits & ~(1L << (slot & 63)));
+        }
+
+        boolean taken(ChunkFiler filer, int slot) throws IOException {
+            return slot < slotCount && (filer.getLong(8 + 8 + (slot / 64) * 8) & (1L << (slot & 63))) != 0;
+        }
+
+        int free(ChunkFiler filer) throws IOException {
+            int taken = 0;
+            for (int i = 0; i < (slotCount + 63) / 64; i++) {
+                taken += Long.bitCount(filer.getLong(8 + 8 + i * 8));
+            }
+            return slotCount - taken;
+        }
+
+        ChunkFiler slot(ChunkFiler filer, long slabFP, int slot) {
+            long slotLength = FilerIO.chunkLength(slotPower);
+            return filer.slice(slotsOffset + slot * slotLength, slotLength, address(slabFP, slot));
+        }
+    }
+}
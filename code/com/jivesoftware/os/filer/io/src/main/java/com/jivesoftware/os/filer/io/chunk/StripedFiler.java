@@ -15,10 +15,11 @@
  */
 package com.jivesoftware.os.filer.io.chunk;
 
-import com.jivesoftware.os.filer.io.AutoGrowingByteBufferBackedFiler;
-import com.jivesoftware.os.filer.io.ByteBufferFactory;
-import com.jivesoftware.os.filer.io.FilerIO;
+import com.jivesoftware.os.filer.io.DuplicatableFiler;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  *
@@ -26,26 +27,25 @@ import java.io.IOException;
  */
 public class StripedFiler {
 
-    private final AutoGrowingByteBufferBackedFiler root;
-    private final Object[] locks;
-    private final AutoGrowingByteBufferBackedFiler[] stripes;
-    private final byte[] name;
-    private final ByteBufferFactory bufferFactory;
+    private final DuplicatableFiler root;
+    private final ReentrantReadWriteLock[] locks;
+    private final DuplicatableFiler[] stripes;
     private final ChunkCache[] stripesChunkCaches;
+    private final long[] stripesGeneration; // guarded by root
+    private final AtomicIntegerArray stripesLeases; // changed under the stripes lock, shared or exclusive
+    private long rootGeneration; // guarded by root
 
-    public StripedFiler(AutoGrowingByteBufferBackedFiler root,
-        byte[] name,
-        ByteBufferFactory bufferFactory,
-        int numberOfStripes) {
+    public StripedFiler(DuplicatableFiler root, int numberOfStripes) {
         this.root = root;
-        this.name = name;
-        this.bufferFactory = bufferFactory;
-        this.locks = new Object[numberOfStripes];
+        this.locks = new ReentrantReadWriteLock[numberOfStripes];
         for (int i = 0; i < locks.length; i++) {
-            locks[i] = new Object();
+            locks[i] = new ReentrantReadWriteLock();
         }
-        this.stripes = new AutoGrowingByteBufferBackedFiler[numberOfStripes];
+        this.stripes = new DuplicatableFiler[numberOfStripes];
         this.stripesChunkCaches = new ChunkCache[numberOfStripes];
+        this.stripesGeneration = new long[numberOfStripes];
+        Arrays.fill(stripesGeneration, Long.MAX_VALUE);
+        this.stripesLeases = new AtomicIntegerArray(numberOfStripes);
     }
 
     public long length() throws IOException {
@@ -54,33 +54,120 @@ public class StripedFiler {
 
     public <R> R rootTx(long fp, StripeTx<R> stripeTx) throws IOException {
         synchronized (root) {
-            return stripeTx.tx(fp, null, root);
+            try {
+                return stripeTx.tx(fp, null, root);
+            } finally {
+                if (root.generation() != rootGeneration) {
+                    rootGeneration = root.generation();
+                    reclaim();
+                }
+            }
         }
     }
 
     public <R> R tx(long fp, StripeTx<R> stripeTx) throws IOException {
-        int stripe = (int) Math.abs(fp % stripes.length);
-        synchronized (locks[stripe]) {
+        int stripe = stripe(fp);
+        locks[stripe].writeLock().lock();
+        try {
             if (stripes[stripe] == null) {
-                stripes[stripe] = root.duplicateAll();
-                stripesChunkCaches[stripe] = new ChunkCache(join(name, FilerIO.intBytes(stripe)), bufferFactory);
-            } else if (root.length() > stripes[stripe].length()) {
-                stripes[stripe] = root.duplicateNew(stripes[stripe]);
+                synchronized (root) {
+                    stripes[stripe] = root.duplicateAll();
+                    stripesGeneration[stripe] = stripes[stripe].generation();
+                }
+                stripesChunkCaches[stripe] = new ChunkCache();
+            } else if (root.generation() != stripes[stripe].generation()) {
+                synchronized (root) {
+                    stripes[stripe] = root.duplicateNew(stripes[stripe]);
+                    if (stripesLeases.get(stripe) == 0) {
+                        stripesGeneration[stripe] = stripes[stripe].generation();
+                        reclaim();
+                    }
+                }
             }
             return stripeTx.tx(fp, stripesChunkCaches[stripe], stripes[stripe]);
+        } finally {
+            locks[stripe].writeLock().unlock();
         }
     }
 
-    public static interface StripeTx<R> {
+    /**
+     * Like tx(fp) but any number of readTx share the stripe. The stripeTx must leave the position of the filer it is handed alone, read through
+     * duplicates or absolute gets instead, may only touch the chunk cache through contains, acquireIfPresent and releaseShared, and must not call
+     * tx(fp) on the same stripe.
+     */
+    public <R> R readTx(long fp, StripeTx<R> stripeTx) throws IOException {
+        int stripe = stripe(fp);
+        while (true) {
+            locks[stripe].readLock().lock();
+            try {
+                DuplicatableFiler filer = stripes[stripe];
+                if (filer != null && root.generation() == filer.generation()) {
+                    return stripeTx.tx(fp, stripesChunkCaches[stripe], filer);
+                }
+            } finally {
+                locks[stripe].readLock().unlock();
+            }
+            tx(fp, new StripeTx<Void>() {
+
+                @Override
+                public Void tx(long fp, ChunkCache chunkCache, DuplicatableFiler filer) throws IOException {
+                    return null; // tx brings the stripe up to date before calling us
+                }
+            });
+        }
+    }
+
+    /**
+     * Must be called from within tx(fp) or readTx(fp) when something derived from the stripes filer will be used after the tx returns. Storage the
+     * root supersedes while the lease is out stays mapped until the matching unlease(fp).
+     */
+    public void lease(long fp) {
+        stripesLeases.incrementAndGet(stripe(fp));
+    }
 
-        R tx(long fp, ChunkCache chunkCache, AutoGrowingByteBufferBackedFiler filer) throws IOException;
+    /**
+     * Must be called from within tx(fp) or readTx(fp).
+     */
+    public void unlease(long fp) throws IOException {
+        int stripe = stripe(fp);
+        if (stripesLeases.decrementAndGet(stripe) == 0) {
+            synchronized (root) {
+                long generation = stripes[stripe].generation();
+                if (generation > stripesGeneration[stripe]) {
+                    stripesGeneration[stripe] = generation;
+                    reclaim();
+                }
+            }
+        }
     }
 
-    static byte[] join(byte[] array1, byte[] array2) {
-        final byte[] joinedArray = new byte[array1.length + array2.length];
-        System.arraycopy(array1, 0, joinedArray, 0, array1.length);
-        System.arraycopy(array2, 0, joinedArray, array1.length, array2.length);
-        return joinedArray;
+    public int numberOfStripes() {
+        return stripes.length;
+    }
+
+    /**
+     *
+     * @param fp
+     * @return fps which share a stripe are always handed the same stripe filer and chunk cache by tx(fp)
+     */
+    public int stripe(long fp) {
+        return (int) Math.abs(fp % stripes.length);
+    }
+
+    /**
+     * Synchronize externally on root.
+     */
+    private void reclaim() throws IOException {
+        long oldest = Long.MAX_VALUE;
+        for (long generation : stripesGeneration) {
+            oldest = Math.min(oldest, generation);
+        }
+        root.reclaim(oldest);
+    }
+
+    public static interface StripeTx<R> {
+
+        R tx(long fp, ChunkCache chunkCache, DuplicatableFiler filer) throws IOException;
     }
 
 }
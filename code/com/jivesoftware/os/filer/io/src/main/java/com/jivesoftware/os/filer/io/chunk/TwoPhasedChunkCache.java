@@ -15,131 +15,131 @@
  */
 package com.jivesoftware.os.filer.io.chunk;
 
-import com.jivesoftware.os.filer.io.ByteBufferFactory;
-import com.jivesoftware.os.filer.io.chunk.ChunkCache.CacheOpener;
-import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
+ * A bounded cache of opened chunks which nobody has acquired, so a chunk whose last acquisition was released does not have its header parsed and its
+ * monkey reopened the next time it is executed. Chunks are taken out while they are acquired and put back by their last release, a chunk is only ever
+ * in its stripes ChunkCache or here. ChunkStore keeps one per stripe and only touches it under that stripes lock, so its monitor is not shared between
+ * stripes.
+ *
+ * The two phases are the segments of a segmented LRU. A chunk put back for the first time lands in probation, a chunk which was taken from either
+ * segment is put back into protected. Protected overflows into the front of probation and probation overflows out of the cache, so a scan of cold
+ * chunks only ever churns probation and the hot set survives it.
+ *
  * @author jonathan.colt
  */
 public class TwoPhasedChunkCache {
 
-    private static final ChunkMetrics.ChunkMetric EVICTED = ChunkMetrics.get("chunkCache", "evicted");
-    private static final ChunkMetrics.ChunkMetric EVICTIONS = ChunkMetrics.get("chunkCache", "evictions");
-    private static final ChunkMetrics.ChunkMetric REVIVALS = ChunkMetrics.get("chunkCache", "revivals");
-    private static final ChunkMetrics.ChunkMetric SLOUGHS_ALLOWED = ChunkMetrics.get("chunkCache", "sloughsAllowed");
-    private static final ChunkMetrics.ChunkMetric SLOUGHS_REFUSED = ChunkMetrics.get("chunkCache", "sloughsRefused");
-    private static final ChunkMetrics.ChunkMetric ROLLS_ALLOWED = ChunkMetrics.get("chunkCache", "rollsAllowed");
-    private static final ChunkMetrics.ChunkMetric ROLLS_REFUSED = ChunkMetrics.get("chunkCache", "rollsRefused");
-
-    private static final byte[] name = new byte[] { 0 };
+    private final ChunkMetrics.ChunkMetric hits;
+    private final ChunkMetrics.ChunkMetric misses;
+    private final ChunkMetrics.ChunkMetric promotions;
+    private final ChunkMetrics.ChunkMetric demotions;
+    private final ChunkMetrics.ChunkMetric evictions;
+    private final ChunkMetrics.ChunkMetric invalidations;
 
-    private final ByteBufferFactory bufferFactory;
-    private ChunkCache oldCache;
-    private ChunkCache newCache;
-    private final int initialCacheSize;
-    private final int maxNewCacheSize;
+    private final int maxProbation;
+    private final int maxProtected;
+    private final Map<Long, Chunk<?>> probation = new LinkedHashMap<>(16, 0.75f, true); // eldest first
+    private final Map<Long, Chunk<?>> protectedChunks = new LinkedHashMap<>(16, 0.75f, true); // eldest first
+    private final Map<Long, Boolean> taken = new LinkedHashMap<>(); // hits which are out being acquired, earns them protected when put back
 
-    public TwoPhasedChunkCache(ByteBufferFactory bufferFactory,
-        int initialCacheSize,
-        int maxNewCacheSize) {
-        this.bufferFactory = bufferFactory;
-        this.oldCache = new ChunkCache(name, bufferFactory);
-        this.newCache = new ChunkCache(name, bufferFactory);
-        this.initialCacheSize = initialCacheSize;
-        this.maxNewCacheSize = maxNewCacheSize;
+    /**
+     * @param maxProbation chunks seen once which are kept, 0 disables the cache
+     * @param maxProtected chunks seen more than once which are kept
+     */
+    public TwoPhasedChunkCache(int maxProbation, int maxProtected) {
+        this(null, maxProbation, maxProtected);
     }
 
-    public <M> void set(long chunkFP, Chunk<M> chunk) throws IOException {
-        synchronized (this) {
-            newCache.set(chunkFP, chunk, initialCacheSize);
-        }
+    /**
+     * @param metricsName nullable, the store the chunkCache metrics are tagged with
+     */
+    public TwoPhasedChunkCache(String metricsName, int maxProbation, int maxProtected) {
+        this.maxProbation = maxProbation;
+        this.maxProtected = maxProtected;
+        this.hits = ChunkMetrics.tagged(metricsName, "chunkCache", "hits");
+        this.misses = ChunkMetrics.tagged(metricsName, "chunkCache", "misses");
+        this.promotions = ChunkMetrics.tagged(metricsName, "chunkCache", "promotions");
+        this.demotions = ChunkMetrics.tagged(metricsName, "chunkCache", "demotions");
+        this.evictions = ChunkMetrics.tagged(metricsName, "chunkCache", "evictions");
+        this.invalidations = ChunkMetrics.tagged(metricsName, "chunkCache", "invalidations");
     }
 
-    public void roll() throws IOException {
-        synchronized (this) {
-            if (newCache.approxSize() == 0 && oldCache.approxSize() == 0) {
-                // do nothing
-            } else if (oldCache.isRemovable()) {
-                evictAndAllocate();
-                ROLLS_ALLOWED.inc(1);
-            } else {
-                ROLLS_REFUSED.inc(1);
-            }
-        }
+    public synchronized long approxSize() {
+        return probation.size() + protectedChunks.size();
     }
 
-    public <M> Chunk<M> acquire(long chunkFP, final CacheOpener<M> opener) throws IOException {
-        boolean revived = false;
-        try {
-            synchronized (this) {
-                if (newCache.approxSize() > maxNewCacheSize) {
-                    if (oldCache.isRemovable()) {
-                        evictAndAllocate();
-                        SLOUGHS_ALLOWED.inc(1);
-                    } else {
-                        SLOUGHS_REFUSED.inc(1);
-                    }
-                }
-
-                Chunk<M> chunk = newCache.acquireIfPresent(chunkFP);
-                if (chunk == null) {
-                    chunk = oldCache.remove(chunkFP);
-                    if (chunk != null) {
-                        chunk = newCache.promoteAndAcquire(chunkFP, chunk, initialCacheSize);
-                        revived = true;
-                    } else {
-                        chunk = newCache.promoteAndAcquire(chunkFP, opener.open(chunkFP), initialCacheSize);
-                    }
-                }
-                return chunk;
-            }
-        } finally {
-            if (revived) {
-                REVIVALS.inc(1);
-            }
+    /**
+     * @param chunkFP
+     * @return the chunk, which is no longer in this cache, or null when it has to be opened
+     */
+    public synchronized Chunk<?> take(long chunkFP) {
+        Chunk<?> chunk = protectedChunks.remove(chunkFP);
+        if (chunk == null) {
+            chunk = probation.remove(chunkFP);
         }
+        if (chunk == null) {
+            misses.inc(1);
+            return null;
+        }
+        hits.inc(1);
+        taken.put(chunkFP, Boolean.TRUE);
+        if (taken.size() > maxProbation + maxProtected) {
+            Iterator<Long> eldest = taken.keySet().iterator();
+            eldest.next();
+            eldest.remove();
+        }
+        return chunk;
     }
 
-    /*
-     * Synchronize externally.
+    /**
+     * Called with a chunk whose last acquisition was just released.
+     *
+     * @param chunk
      */
-    private void evictAndAllocate() throws IOException {
-        EVICTIONS.inc(1);
-        EVICTED.inc((int) oldCache.approxSize());
-        oldCache = newCache;
-        newCache = new ChunkCache(name, bufferFactory);
-    }
-
-    public boolean contains(long chunkFP) throws IOException {
-        synchronized (this) {
-            return newCache.contains(chunkFP) || oldCache.contains(chunkFP);
+    public synchronized void put(Chunk<?> chunk) {
+        if (maxProbation <= 0) {
+            return;
         }
-    }
-
-    public void release(long chunkFP) throws IOException {
-        synchronized (this) {
-            if (!newCache.release(chunkFP)) {
-                if (!oldCache.release(chunkFP)) {
-                    throw new IllegalStateException("Attempted to release nonexistent chunkFP: " + chunkFP);
-                }
+        if (taken.remove(chunk.chunkFP) != null && maxProtected > 0) {
+            protectedChunks.put(chunk.chunkFP, chunk);
+            promotions.inc(1);
+            if (protectedChunks.size() > maxProtected) {
+                Iterator<Map.Entry<Long, Chunk<?>>> eldest = protectedChunks.entrySet().iterator();
+                Map.Entry<Long, Chunk<?>> demoted = eldest.next();
+                eldest.remove();
+                probation.put(demoted.getKey(), demoted.getValue());
+                demotions.inc(1);
             }
+        } else {
+            probation.put(chunk.chunkFP, chunk);
+        }
+        if (probation.size() > maxProbation) {
+            Iterator<Long> eldest = probation.keySet().iterator();
+            eldest.next();
+            eldest.remove();
+            evictions.inc(1);
         }
     }
 
-    public void remove(long chunkFP) throws IOException {
-        synchronized (this) {
-            Chunk<Object> chunk = newCache.remove(chunkFP);
-            if (chunk == null) {
-                chunk = oldCache.remove(chunkFP);
-                if (chunk == null) {
-                    // probably rolled
-                    return;
-                }
-            }
-            if (chunk.acquisitions > 0) {
-                throw new IllegalStateException("Removed an active chunkFP: " + chunkFP + " acquisitions=" + chunk.acquisitions);
-            }
+    /**
+     * Must be called whenever the chunk at chunkFP is removed so a chunk later handed out at the same fp is reopened.
+     *
+     * @param chunkFP
+     */
+    public synchronized void invalidate(long chunkFP) {
+        taken.remove(chunkFP);
+        if (protectedChunks.remove(chunkFP) != null || probation.remove(chunkFP) != null) {
+            invalidations.inc(1);
         }
     }
+
+    public synchronized void clear() {
+        probation.clear();
+        protectedChunks.clear();
+        taken.clear();
+    }
 }
@@ -1,6 +1,7 @@
 package com.jivesoftware.os.filer.io.map;
 
 import com.jivesoftware.os.filer.io.Filer;
+import com.jivesoftware.os.filer.io.FilerIO;
 import java.io.IOException;
 import java.util.Arrays;
 
@@ -684,11 +685,14 @@ public class MapStore {
         } else {
             throw new RuntimeException("Unsupported keylength=" + keyLength);
         }
-        byte[] currentKey = new byte[keySize];
-        filer.seek(start);
-        filer.read(currentKey);
-        for (int i = 0; i < keySize; i++) {
-            if (currentKey[i] != b[boffset + i]) {
+        int i = 0;
+        for (; i + 8 <= keySize; i += 8) {
+            if (filer.getLong(start + i) != FilerIO.bytesLong(b, boffset + i)) {
+                return false;
+            }
+        }
+        for (; i < keySize; i++) {
+            if (filer.getByte(start + i) != b[boffset + i]) {
                 return false;
             }
         }
@@ -696,139 +700,51 @@ public class MapStore {
     }
 
     byte read(Filer filer, long start) throws IOException {
-        filer.seek(start);
-        return (byte) filer.read();
+        return filer.getByte(start);
     }
 
     void write(Filer filer, long start, byte v) throws IOException {
-        filer.seek(start);
-        filer.write(v);
+        filer.putByte(start, v);
     }
 
     int readShort(Filer filer, long start) throws IOException {
-        filer.seek(start);
-        byte[] bytes = new byte[2];
-        filer.read(bytes);
-        short v = 0;
-        v |= (bytes[0] & 0xFF);
-        v <<= 8;
-        v |= (bytes[1] & 0xFF);
-        return v;
+        return filer.getShort(start);
     }
 
     int readUnsignedShort(Filer filer, long start) throws IOException {
-        filer.seek(start);
-        byte[] bytes = new byte[2];
-        filer.read(bytes);
-        int v = 0;
-        v |= (bytes[0] & 0xFF);
-        v <<= 8;
-        v |= (bytes[1] & 0xFF);
-        return v;
+        return filer.getShort(start) & 0xFFFF;
     }
 
     int readInt(Filer filer, long start) throws IOException {
-        filer.seek(start);
-        byte[] bytes = new byte[4];
-        filer.read(bytes);
-        int v = 0;
-        v |= (bytes[0] & 0xFF);
-        v <<= 8;
-        v |= (bytes[1] & 0xFF);
-        v <<= 8;
-        v |= (bytes[2] & 0xFF);
-        v <<= 8;
-        v |= (bytes[3] & 0xFF);
-        return v;
+        return filer.getInt(start);
     }
 
     float readFloat(Filer filer, long start) throws IOException {
-        filer.seek(start);
-        byte[] bytes = new byte[4];
-        filer.read(bytes);
-        int v = 0;
-        v |= (bytes[0] & 0xFF);
-        v <<= 8;
-        v |= (bytes[1] & 0xFF);
-        v <<= 8;
-        v |= (bytes[2] & 0xFF);
-        v <<= 8;
-        v |= (bytes[3] & 0xFF);
-        return Float.intBitsToFloat(v);
+        return Float.intBitsToFloat(filer.getInt(start));
     }
 
     long readLong(Filer filer, long start) throws IOException {
-        filer.seek(start);
-        byte[] bytes = new byte[8];
-        filer.read(bytes);
-        long v = 0;
-        v |= (bytes[0] & 0xFF);
-        v <<= 8;
-        v |= (bytes[1] & 0xFF);
-        v <<= 8;
-        v |= (bytes[2] & 0xFF);
-        v <<= 8;
-        v |= (bytes[3] & 0xFF);
-        v <<= 8;
-        v |= (bytes[4] & 0xFF);
-        v <<= 8;
-        v |= (bytes[5] & 0xFF);
-        v <<= 8;
-        v |= (bytes[6] & 0xFF);
-        v <<= 8;
-        v |= (bytes[7] & 0xFF);
-        return v;
+        return filer.getLong(start);
     }
 
     double readDouble(Filer filer, long start) throws IOException {
-        filer.seek(start);
-        byte[] bytes = new byte[8];
-        filer.read(bytes);
-        long v = 0;
-        v |= (bytes[0] & 0xFF);
-        v <<= 8;
-        v |= (bytes[1] & 0xFF);
-        v <<= 8;
-        v |= (bytes[2] & 0xFF);
-        v <<= 8;
-        v |= (bytes[3] & 0xFF);
-        v <<= 8;
-        v |= (bytes[4] & 0xFF);
-        v <<= 8;
-        v |= (bytes[5] & 0xFF);
-        v <<= 8;
-        v |= (bytes[6] & 0xFF);
-        v <<= 8;
-        v |= (bytes[7] & 0xFF);
-        return Double.longBitsToDouble(v);
+        return Double.longBitsToDouble(filer.getLong(start));
     }
 
     void writeUnsignedShort(Filer filer, long start, int v) throws IOException {
-        filer.seek(start);
-        filer.write(new byte[]{
-            (byte) (v >>> 8),
-            (byte) v
-        });
+        filer.putShort(start, (short) v);
     }
 
     void writeInt(Filer filer, long start, int v) throws IOException {
-        filer.seek(start);
-        filer.write(new byte[]{
-            (byte) (v >>> 24),
-            (byte) (v >>> 16),
-            (byte) (v >>> 8),
-            (byte) v
-        });
+        filer.putInt(start, v);
     }
 
     void read(Filer filer, int start, byte[] read, int offset, int length) throws IOException {
-        filer.seek(start);
-        filer.read(read, offset, length);
+        filer.get(start, read, offset, length);
     }
 
     void write(Filer filer, int start, byte[] towrite, int offest, int length) throws IOException {
-        filer.seek(start);
-        filer.write(towrite, offest, length);
+        filer.put(start, towrite, offest, length);
     }
 
 }
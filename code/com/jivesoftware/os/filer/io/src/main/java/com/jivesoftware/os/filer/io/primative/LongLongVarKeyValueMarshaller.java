@@ -0,0 +1,48 @@
+/*
+ * Copyright 2015 Jive Software.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jivesoftware.os.filer.io.primative;
+
+import com.jivesoftware.os.filer.io.FilerIO;
+import com.jivesoftware.os.filer.io.KeyValueMarshaller;
+
+/**
+ * Zig zag varint keys and values, between 1 and 10 bytes each, so the store must be created with variable key and payload sizes of at least 10.
+ *
+ * @author jonathan.colt
+ */
+public class LongLongVarKeyValueMarshaller implements KeyValueMarshaller<Long, Long> {
+
+    @Override
+    public byte[] keyBytes(Long key) {
+        return FilerIO.varLongBytes(FilerIO.zigZag(key));
+    }
+
+    @Override
+    public Long bytesKey(byte[] keyBytes, int offset) {
+        return FilerIO.unZigZag(FilerIO.bytesVarLong(keyBytes, offset));
+    }
+
+    @Override
+    public Long bytesValue(Long key, byte[] valueBytes, int offset) {
+        return FilerIO.unZigZag(FilerIO.bytesVarLong(valueBytes, offset));
+    }
+
+    @Override
+    public byte[] valueBytes(Long value) {
+        return FilerIO.varLongBytes(FilerIO.zigZag(value));
+    }
+
+}
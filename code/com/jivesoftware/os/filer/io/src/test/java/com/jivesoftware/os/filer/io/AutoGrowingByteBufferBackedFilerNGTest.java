@@ -114,4 +114,162 @@ public class AutoGrowingByteBufferBackedFilerNGTest {
         }
     }
 
+    @Test
+    public void positionalTest() throws Exception {
+        for (int b = 1; b < 10; b++) {
+            Path createTempDirectory = Files.createTempDirectory("positionalTest");
+
+            ByteBufferFactory[] bufferFactorys = new ByteBufferFactory[]{
+                new HeapByteBufferFactory(),
+                new DirectByteBufferFactory(),
+                new FileBackedMemMappedByteBufferFactory("f", 0, createTempDirectory.toFile())
+            };
+            for (ByteBufferFactory bf : bufferFactorys) {
+
+                AutoGrowingByteBufferBackedFiler filer = new AutoGrowingByteBufferBackedFiler(bf, 1, b);
+                for (int i = 0; i < b * 4; i++) {
+                    filer.putLong(i * 15, i);
+                    filer.putInt(i * 15 + 8, i);
+                    filer.putShort(i * 15 + 12, (short) i);
+                    filer.putByte(i * 15 + 14, (byte) i);
+                }
+                Assert.assertEquals(filer.getFilePointer(), 0, "Positional writes moved the fp at " + b + " " + bf);
+                for (int i = 0; i < b * 4; i++) {
+                    Assert.assertEquals(filer.getLong(i * 15), i, "Boo " + i + " at " + b + " " + bf);
+                    Assert.assertEquals(filer.getInt(i * 15 + 8), i, "Boo " + i + " at " + b + " " + bf);
+                    Assert.assertEquals(filer.getShort(i * 15 + 12), i, "Boo " + i + " at " + b + " " + bf);
+                    Assert.assertEquals(filer.getByte(i * 15 + 14), i, "Boo " + i + " at " + b + " " + bf);
+
+                    filer.seek(i * 15);
+                    Assert.assertEquals(FilerIO.readLong(filer, ""), i, "Boo " + i + " at " + b + " " + bf);
+                }
+
+                byte[] bytes = new byte[b * 3];
+                for (int i = 0; i < bytes.length; i++) {
+                    bytes[i] = (byte) i;
+                }
+                filer.put(b * 100 + 1, bytes, 0, bytes.length);
+                byte[] got = new byte[bytes.length];
+                filer.get(b * 100 + 1, got, 0, got.length);
+                Assert.assertEquals(got, bytes, "Boo at " + b + " " + bf);
+            }
+        }
+    }
+
+    @Test
+    public void straddleSegmentsTest() throws Exception {
+        for (int b = 1; b < 10; b++) {
+            Path createTempDirectory = Files.createTempDirectory("straddleSegmentsTest");
+
+            ByteBufferFactory[] bufferFactorys = new ByteBufferFactory[]{
+                new HeapByteBufferFactory(),
+                new DirectByteBufferFactory(),
+                new FileBackedMemMappedByteBufferFactory("f", 0, createTempDirectory.toFile())
+            };
+            for (ByteBufferFactory bf : bufferFactorys) {
+
+                AutoGrowingByteBufferBackedFiler filer = new AutoGrowingByteBufferBackedFiler(bf, 1, b);
+                byte[] bytes = new byte[b * 5];
+                for (int i = 0; i < bytes.length; i++) {
+                    bytes[i] = (byte) (i + 1);
+                }
+                filer.seek(b / 2);
+                filer.write(bytes, 0, bytes.length);
+                Assert.assertEquals(filer.getFilePointer(), b / 2 + bytes.length, "Boo at " + b + " " + bf);
+
+                byte[] got = new byte[bytes.length + 2];
+                filer.seek(b / 2);
+                Assert.assertEquals(filer.read(got, 2, bytes.length), bytes.length, "Boo at " + b + " " + bf);
+                for (int i = 0; i < bytes.length; i++) {
+                    Assert.assertEquals(got[i + 2], bytes[i], "Boo " + i + " at " + b + " " + bf);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void reclaimSupersededMappingsTest() throws Exception {
+        Path createTempDirectory = Files.createTempDirectory("reclaimSupersededMappingsTest");
+        FileBackedMemMappedByteBufferFactory bf = new FileBackedMemMappedByteBufferFactory("f", 0, createTempDirectory.toFile());
+
+        AutoGrowingByteBufferBackedFiler filer = new AutoGrowingByteBufferBackedFiler(bf, 16, 1024);
+        filer.putByte(0, (byte) 1);
+        Assert.assertEquals(bf.mappedCount(), 1);
+
+        AutoGrowingByteBufferBackedFiler duplicate = filer.duplicateAll();
+        filer.putByte(100, (byte) 2);
+        Assert.assertEquals(bf.mappedCount(), 2);
+        Assert.assertEquals(bf.supersededCount(), 1);
+
+        filer.reclaim(duplicate.generation());
+        Assert.assertEquals(bf.supersededCount(), 1);
+        Assert.assertEquals(duplicate.getByte(0), 1);
+
+        duplicate = filer.duplicateNew(duplicate);
+        filer.reclaim(duplicate.generation());
+        Assert.assertEquals(bf.mappedCount(), 1);
+        Assert.assertEquals(bf.supersededCount(), 0);
+        Assert.assertEquals(bf.mappedBytes(), filer.length());
+        Assert.assertEquals(duplicate.getByte(0), 1);
+        Assert.assertEquals(duplicate.getByte(100), 2);
+    }
+
+    @Test
+    public void transferAcrossSegmentsTest() throws Exception {
+        Path createTempDirectory = Files.createTempDirectory("transferAcrossSegmentsTest");
+        AutoGrowingByteBufferBackedFiler from = new AutoGrowingByteBufferBackedFiler(new HeapByteBufferFactory(), 4, 8);
+        byte[] bytes = new byte[100];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) (i + 1);
+        }
+        from.write(bytes);
+
+        Filer[] tos = new Filer[]{
+            new AutoGrowingByteBufferBackedFiler(new DirectByteBufferFactory(), 4, 16),
+            new WindowedByteBufferBackedFiler(new FileBackedMemMappedByteBufferFactory("w", 0, createTempDirectory.toFile()), 4, 16, 32),
+            new FileChannelFiler(createTempDirectory.resolve("c").toFile(), new FileChannelPageCache(16, 4)),
+            new RandomAccessFiler(createTempDirectory.resolve("r").toFile(), "rw")
+        };
+        for (Filer to : tos) {
+            from.seek(0);
+            Assert.assertEquals(FilerIO.copy(from, to, bytes.length, -1), bytes.length, "Boo " + to);
+            Assert.assertEquals(to.getFilePointer(), bytes.length, "Boo " + to);
+
+            byte[] got = new byte[bytes.length];
+            to.seek(0);
+            to.read(got);
+            Assert.assertEquals(got, bytes, "Boo " + to);
+        }
+
+        FileChannelFiler channelTo = new FileChannelFiler(createTempDirectory.resolve("c2").toFile(), new FileChannelPageCache(16, 4));
+        channelTo.putByte(0, (byte) 0);
+        Assert.assertEquals(channelTo.getByte(0), 0); // loads a page which the transfer must invalidate
+        tos[2].seek(0);
+        Assert.assertEquals(FilerIO.copy(tos[2], channelTo, -1), bytes.length);
+        byte[] got = new byte[bytes.length];
+        channelTo.get(0, got, 0, got.length);
+        Assert.assertEquals(got, bytes);
+    }
+
+    @Test
+    public void preallocatedSegmentsTest() throws Exception {
+        for (boolean dense : new boolean[]{false, true}) {
+            Path createTempDirectory = Files.createTempDirectory("preallocatedSegmentsTest");
+            FileBackedMemMappedByteBufferFactory bf = new FileBackedMemMappedByteBufferFactory("f", 0, Preallocation.fullSegment(1024, dense),
+                createTempDirectory.toFile());
+
+            AutoGrowingByteBufferBackedFiler filer = new AutoGrowingByteBufferBackedFiler(bf, 16, 1024);
+            filer.putByte(0, (byte) 1);
+            Assert.assertEquals(filer.length(), 1024);
+
+            filer.putByte(1000, (byte) 2);
+            filer.putByte(2000, (byte) 3);
+            Assert.assertEquals(bf.mappedCount(), 2, "dense:" + dense);
+            Assert.assertEquals(filer.length(), 2048);
+            Assert.assertEquals(filer.getByte(0), 1);
+            Assert.assertEquals(filer.getByte(1000), 2);
+            Assert.assertEquals(filer.getByte(2000), 3);
+        }
+    }
+
 }
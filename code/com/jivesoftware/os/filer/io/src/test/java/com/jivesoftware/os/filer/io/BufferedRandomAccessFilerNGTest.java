@@ -0,0 +1,95 @@
+/*
+ * Copyright 2015 Jive Software.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jivesoftware.os.filer.io;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Random;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ *
+ * @author jonathan.colt
+ */
+public class BufferedRandomAccessFilerNGTest {
+
+    @Test
+    public void matchesRandomAccessFilerTest() throws Exception {
+        File dir = Files.createTempDirectory("matchesRandomAccessFilerTest").toFile();
+        Random random = new Random(1234);
+        for (int[] sizes : new int[][]{{0, 0}, {16, 8}, {64, 256}}) {
+            RandomAccessFiler expected = new RandomAccessFiler(new File(dir, "expected" + sizes[0]), "rw");
+            BufferedRandomAccessFiler buffered = new BufferedRandomAccessFiler(new File(dir, "buffered" + sizes[0]), "rw", sizes[0], sizes[1]);
+            for (int i = 0; i < 10_000; i++) {
+                long length = expected.length();
+                int op = random.nextInt(6);
+                if (op == 0) {
+                    long fp = length == 0 ? 0 : random.nextInt((int) length + 1);
+                    expected.seek(fp);
+                    buffered.seek(fp);
+                } else if (op == 1) {
+                    byte[] bytes = new byte[random.nextInt(40)];
+                    random.nextBytes(bytes);
+                    expected.write(bytes);
+                    buffered.write(bytes);
+                } else if (op == 2) {
+                    int b = random.nextInt(256);
+                    expected.write(b);
+                    buffered.write(b);
+                } else if (op == 3) {
+                    byte[] e = new byte[random.nextInt(40)];
+                    byte[] b = new byte[e.length];
+                    Assert.assertEquals(buffered.read(b), expected.read(e, 0, e.length));
+                    Assert.assertEquals(b, e);
+                } else if (op == 4) {
+                    Assert.assertEquals(buffered.read(), expected.read());
+                } else if (length >= 8) {
+                    long position = random.nextInt((int) length - 7);
+                    Assert.assertEquals(buffered.getLong(position), expected.getLong(position));
+                    buffered.putInt(position, i);
+                    expected.putInt(position, i);
+                }
+                Assert.assertEquals(buffered.getFilePointer(), expected.getFilePointer(), "op:" + op + " i:" + i);
+                Assert.assertEquals(buffered.length(), expected.length(), "op:" + op + " i:" + i);
+            }
+            buffered.close();
+            expected.close();
+            Assert.assertEquals(Files.readAllBytes(new File(dir, "buffered" + sizes[0]).toPath()),
+                Files.readAllBytes(new File(dir, "expected" + sizes[0]).toPath()));
+        }
+    }
+
+    @Test
+    public void truncateAfterWriteTest() throws Exception {
+        File dir = Files.createTempDirectory("truncateAfterWriteTest").toFile();
+        BufferedRandomAccessFiler buffered = new BufferedRandomAccessFiler(new File(dir, "buffered"), "rw", 64, 256);
+        buffered.seek(1000);
+        buffered.write(new byte[]{1, 2, 3, 4});
+        Assert.assertEquals(buffered.length(), 1004);
+
+        buffered.seek(5);
+        buffered.eof();
+        Assert.assertEquals(buffered.length(), 5);
+
+        buffered.seek(1000);
+        buffered.write(new byte[]{1, 2, 3, 4});
+        buffered.setLength(5);
+        Assert.assertEquals(buffered.length(), 5);
+        buffered.close();
+        Assert.assertEquals(new File(dir, "buffered").length(), 5);
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2015 Jive Software.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jivesoftware.os.filer.io;
+
+import com.jivesoftware.os.filer.io.primative.LongLongVarKeyValueMarshaller;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ *
+ * @author jonathan.colt
+ */
+public class FilerIONGTest {
+
+    @Test
+    public void primitiveArraysTest() throws Exception {
+        long[] longs = new long[]{Long.MIN_VALUE, -1, 0, 1, Long.MAX_VALUE};
+        int[] ints = new int[]{Integer.MIN_VALUE, -1, 0, 1, Integer.MAX_VALUE};
+        short[] shorts = new short[]{Short.MIN_VALUE, -1, 0, 1, Short.MAX_VALUE};
+        char[] chars = "filer".toCharArray();
+        float[] floats = new float[]{Float.MIN_VALUE, -1.5f, 0, Float.NaN, Float.MAX_VALUE};
+        double[] doubles = new double[]{Double.MIN_VALUE, -1.5d, 0, Double.NaN, Double.MAX_VALUE};
+
+        // a heap buffer, a little endian buffer which must still be written big endian, and a segmented filer which takes the byte[] path
+        Filer[] filers = new Filer[]{
+            new ByteBufferBackedFiler(ByteBuffer.allocate(1024)),
+            new ByteBufferBackedFiler(ByteBuffer.allocateDirect(1024).order(ByteOrder.LITTLE_ENDIAN)),
+            new AutoGrowingByteBufferBackedFiler(new HeapByteBufferFactory(), 8, 16)
+        };
+        byte[] expected = null;
+        for (Filer filer : filers) {
+            FilerIO.writeLongArray(filer, longs, "longs");
+            FilerIO.writeLongArray(filer, longs, 1, 3, "someLongs");
+            FilerIO.writeIntArray(filer, ints, "ints");
+            FilerIO.writeShortArray(filer, shorts, "shorts");
+            FilerIO.writeCharArray(filer, chars, "chars");
+            FilerIO.writeFloatArray(filer, floats, "floats");
+            FilerIO.writeDoubleArray(filer, doubles, "doubles");
+            long length = filer.getFilePointer();
+
+            filer.seek(0);
+            Assert.assertEquals(FilerIO.readLongArray(filer, "longs"), longs);
+            Assert.assertEquals(FilerIO.readLongArray(filer, "someLongs"), new long[]{-1, 0, 1});
+            Assert.assertEquals(FilerIO.readIntArray(filer, "ints"), ints);
+            Assert.assertEquals(FilerIO.readShortArray(filer, "shorts"), shorts);
+            Assert.assertEquals(FilerIO.readCharArray(filer, "chars"), chars);
+            Assert.assertEquals(FilerIO.readFloatArray(filer, "floats"), floats);
+            Assert.assertEquals(FilerIO.readDoubleArray(filer, "doubles"), doubles);
+            Assert.assertEquals(filer.getFilePointer(), length);
+
+            byte[] bytes = new byte[(int) length];
+            filer.get(0, bytes, 0, bytes.length);
+            if (expected != null) {
+                Assert.assertEquals(bytes, expected, "Boo " + filer);
+            }
+            expected = bytes;
+        }
+    }
+
+    @Test
+    public void varLongTest() throws Exception {
+        long[] values = new long[]{0, 1, -1, 63, -64, 64, 127, 128, 300, -300, Integer.MAX_VALUE, Integer.MIN_VALUE, Long.MAX_VALUE, Long.MIN_VALUE};
+        LongLongVarKeyValueMarshaller marshaller = new LongLongVarKeyValueMarshaller();
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        Filer filer = new ByteBufferBackedFiler(ByteBuffer.allocate(1024));
+        for (long v : values) {
+            FilerIO.writeVarLong(filer, v, "v");
+            FilerIO.writeZigZagLong(filer, v, "v");
+            FilerIO.putVarLong(buffer, FilerIO.zigZag(v));
+            Assert.assertEquals(FilerIO.varLongBytes(v).length, FilerIO.varLongLength(v));
+            Assert.assertEquals(marshaller.bytesKey(marshaller.keyBytes(v), 0).longValue(), v);
+        }
+        Assert.assertEquals(FilerIO.varLongLength(FilerIO.zigZag(-1)), 1);
+        Assert.assertEquals(FilerIO.varLongLength(-1), 10);
+
+        filer.seek(0);
+        buffer.flip();
+        for (long v : values) {
+            Assert.assertEquals(FilerIO.readVarLong(filer, "v"), v);
+            Assert.assertEquals(FilerIO.readZigZagLong(filer, "v"), v);
+            Assert.assertEquals(FilerIO.unZigZag(FilerIO.getVarLong(buffer)), v);
+        }
+    }
+
+    @Test
+    public void deltaOfDeltaTest() throws Exception {
+        long[] timestamps = new long[100];
+        for (int i = 0; i < timestamps.length; i++) {
+            timestamps[i] = 1_420_070_400_000L + (i * 1000) + (i % 3);
+        }
+        Filer filer = new ByteBufferBackedFiler(ByteBuffer.allocate(1024));
+        FilerIO.writeDeltaOfDeltaLongArray(filer, timestamps, "timestamps");
+        FilerIO.writeDeltaOfDeltaLongArray(filer, null, "none");
+        FilerIO.writeDeltaOfDeltaLongArray(filer, new long[]{Long.MIN_VALUE, Long.MAX_VALUE, 0}, "extremes");
+        Assert.assertTrue(filer.getFilePointer() < 8 * timestamps.length / 2, "fp:" + filer.getFilePointer());
+
+        filer.seek(0);
+        Assert.assertEquals(FilerIO.readDeltaOfDeltaLongArray(filer, "timestamps"), timestamps);
+        Assert.assertNull(FilerIO.readDeltaOfDeltaLongArray(filer, "none"));
+        Assert.assertEquals(FilerIO.readDeltaOfDeltaLongArray(filer, "extremes"), new long[]{Long.MIN_VALUE, Long.MAX_VALUE, 0});
+    }
+}
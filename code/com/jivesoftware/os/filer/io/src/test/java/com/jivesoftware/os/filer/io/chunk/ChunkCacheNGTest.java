@@ -0,0 +1,64 @@
+/*
+ * Copyright 2015 Jive Software.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jivesoftware.os.filer.io.chunk;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ *
+ * @author jonathan.colt
+ */
+public class ChunkCacheNGTest {
+
+    @Test
+    public void randomOpsTest() throws Exception {
+        ChunkCache cache = new ChunkCache();
+        Map<Long, Chunk<Object>> expected = new HashMap<>();
+        Random random = new Random(1234);
+        for (int i = 0; i < 100_000; i++) {
+            long chunkFP = random.nextInt(2_000) * 264L; // chunk fps are spaced by chunk lengths, not random
+            int op = random.nextInt(4);
+            if (op == 0) {
+                Chunk<Object> chunk = new Chunk<>(null, chunkFP, chunkFP + 8, chunkFP + 264);
+                cache.set(chunkFP, chunk, 2);
+                expected.put(chunkFP, chunk);
+            } else if (op == 1) {
+                Assert.assertSame(cache.remove(chunkFP), expected.remove(chunkFP));
+            } else if (op == 2) {
+                Chunk<Object> chunk = cache.acquireIfPresent(chunkFP);
+                Assert.assertSame(chunk, expected.get(chunkFP));
+                if (chunk != null) {
+                    cache.release(chunkFP);
+                    if (chunk.acquisitions.get() == 0) {
+                        expected.remove(chunkFP);
+                    }
+                }
+            } else {
+                Assert.assertEquals(cache.contains(chunkFP), expected.containsKey(chunkFP));
+            }
+            Assert.assertEquals(cache.approxSize(), expected.size());
+        }
+        for (Long chunkFP : expected.keySet()) {
+            Assert.assertSame(cache.remove(chunkFP), expected.get(chunkFP));
+        }
+        Assert.assertEquals(cache.approxSize(), 0);
+        Assert.assertTrue(cache.isRemovable());
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2015 Jive Software.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jivesoftware.os.filer.io.chunk;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+/**
+ *
+ * @author jonathan.colt
+ */
+public class ChunkMetricsNGTest {
+
+    @Test
+    public void concurrentIncTest() throws Exception {
+        final ChunkMetrics.ChunkMetric untagged = ChunkMetrics.get("test", "concurrentInc");
+        final ChunkMetrics.ChunkMetric tagged = ChunkMetrics.tagged("a", "test", "concurrentInc");
+        assertSame(ChunkMetrics.tagged(null, "test", "concurrentInc"), untagged);
+
+        ExecutorService executorService = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                futures.add(executorService.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (int i = 0; i < 100_000; i++) {
+                            tagged.inc(1);
+                        }
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executorService.shutdownNow();
+        }
+        ChunkMetrics.tagged("b", "test", "concurrentInc").inc(5);
+
+        assertEquals(tagged.getValue(), 800_000L);
+        assertEquals(untagged.getValue(), 800_005L, "tagged metrics roll up into the untagged one");
+    }
+
+    @Test
+    public void exporterTest() throws Exception {
+        ChunkMetrics.ChunkLatency latency = ChunkMetrics.latency("a", "test", "exported");
+        latency.record(1_000);
+        latency.record(3_000);
+        assertEquals(latency.getCount(), 2);
+        assertEquals(ChunkMetrics.latency(null, "test", "exported").getTotalNanos(), 4_000L);
+
+        final List<String> exported = new ArrayList<>();
+        ChunkMetrics.setExporter(new ChunkMetrics.Exporter() {
+
+            @Override
+            public void export(String[] path, ChunkMetrics.ChunkMetricMXBean metric) {
+                exported.add(ChunkMetrics.key(path));
+            }
+
+            @Override
+            public void export(String[] path, ChunkMetrics.ChunkLatencyMXBean latency) {
+                exported.add(ChunkMetrics.key(path));
+            }
+        });
+        try {
+            assertTrue(exported.contains("store:a.test.exported."), exported.toString());
+            ChunkMetrics.get("test", "afterExporter");
+            assertTrue(exported.contains("test.afterExporter."));
+        } finally {
+            ChunkMetrics.setExporter(ChunkMetrics.JMX);
+        }
+    }
+}
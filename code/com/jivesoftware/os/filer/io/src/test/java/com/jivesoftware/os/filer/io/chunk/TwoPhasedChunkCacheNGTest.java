@@ -0,0 +1,57 @@
+/*
+ * Copyright 2015 Jive Software.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jivesoftware.os.filer.io.chunk;
+
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+
+/**
+ *
+ * @author jonathan.colt
+ */
+public class TwoPhasedChunkCacheNGTest {
+
+    @Test
+    public void scanResistanceTest() throws Exception {
+        TwoPhasedChunkCache cache = new TwoPhasedChunkCache(4, 4);
+        Chunk<Object> hot = new Chunk<>(null, 1, 9, 264);
+        cache.put(hot);
+        assertSame(cache.take(1), hot);
+        cache.put(hot); // taken once, now protected
+
+        for (long chunkFP = 100; chunkFP < 200; chunkFP++) {
+            assertNull(cache.take(chunkFP));
+            cache.put(new Chunk<>(null, chunkFP, chunkFP + 8, chunkFP + 264));
+        }
+        assertSame(cache.take(1), hot, "a scan of cold chunks should not evict the hot set");
+        assertNull(cache.take(100), "probation is bounded");
+        assertNotNull(cache.take(199));
+
+        cache.put(hot);
+        cache.invalidate(1);
+        assertNull(cache.take(1));
+    }
+
+    @Test
+    public void disabledTest() throws Exception {
+        TwoPhasedChunkCache cache = new TwoPhasedChunkCache(0, 0);
+        cache.put(new Chunk<>(null, 1, 9, 264));
+        assertNull(cache.take(1));
+    }
+}
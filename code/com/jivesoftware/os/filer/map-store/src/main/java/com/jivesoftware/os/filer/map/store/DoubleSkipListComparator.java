@@ -29,10 +29,8 @@ public class DoubleSkipListComparator implements SkipListComparator {
     static final public DoubleSkipListComparator cSingleton = new DoubleSkipListComparator();
 
     public int compare(Filer a, int astart, Filer b, int bstart, int length) throws IOException {
-        a.seek(astart);
-        double ad = FilerIO.readDouble(a, "a");
-        b.seek(bstart);
-        double bd = FilerIO.readDouble(b, "b");
+        double ad = Double.longBitsToDouble(a.getLong(astart));
+        double bd = Double.longBitsToDouble(b.getLong(bstart));
         return Double.compare(ad, bd);
     }
 